@@ -1,6 +1,8 @@
 package cpm.data;
 
 import java.util.ArrayList;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
@@ -49,6 +51,25 @@ public class CourseProfile
         }
     }
 
+    /**
+     * Create a CourseProfile from the profile in a course manifest, which has the attributes of the configuration file
+     */
+    public CourseProfile (int courseID, JSONObject profile)
+    {
+        this.courseID = courseID;
+        rootFolder = profile.getString("root");
+        formatFileName = profile.getString("format");
+        libraryFileName = profile.getString("library");
+
+        JSONArray projects = profile.getJSONArray("projects");
+        projectTypes = new ArrayList<>();
+        for (int i = 0; i < projects.length(); i++)
+        {
+            JSONObject project = projects.getJSONObject(i);
+            projectTypes.add(new ProjectType(project.getString("name"), project.getString("folder")));
+        }
+    }
+
     /**
      * Returns Canvas course ID
      */
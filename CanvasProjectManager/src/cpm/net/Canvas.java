@@ -9,6 +9,8 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -18,6 +20,7 @@ import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.entity.mime.content.StringBody;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
@@ -41,6 +44,67 @@ public class Canvas
 
     /** Name of the configuration file */
     private final static String CONFIG_FILE = "CPMConfig.xml";
+
+    /** Members of Canvas course and assignment objects that this plugin reads, which the proxy can trim them to */
+    private final static String COURSE_FIELDS = "fields=id,name";
+    private final static String ASSIGNMENT_FIELDS = "fields=id,name,locked_for_user,allowed_extensions";
+
+    /** Version of the course manifest format that this plugin reads */
+    private final static int MANIFEST_VERSION = 1;
+
+    /** Milliseconds for which a course manifest is reused */
+    private final static long MANIFEST_LIFETIME = 60 * 1000;
+
+    /** Course manifests fetched from the proxy, by course ID, with null for courses that have none */
+    private final static HashMap<Integer, JSONObject> manifests = new HashMap<>();
+
+    /** When each course manifest was fetched, by course ID */
+    private final static HashMap<Integer, Long> manifestTimes = new HashMap<>();
+
+    /** Course listings kept up to date with the proxy's delta sync, by course ID and kind */
+    private final static HashMap<String, JSONObject> listings = new HashMap<>();
+
+    /** Makes a Course of each Canvas course */
+    private final static RecordMapper<Course> COURSES = new RecordMapper<Course>()
+    {
+        @Override
+        public Course map (JSONObject record)
+        {
+            return new Course(record);
+        }
+    };
+
+    /** Makes an Assignment of each Canvas assignment that is open to zip file submissions, leaving out the rest */
+    private final static RecordMapper<Assignment> OPEN_ASSIGNMENTS = new RecordMapper<Assignment>()
+    {
+        @Override
+        public Assignment map (JSONObject record)
+        {
+            Assignment assignment = new Assignment(record);
+            return (assignment.isOpen() && assignment.acceptsZip()) ? assignment : null;
+        }
+    };
+
+    /** Makes an assignment Project of each subfolder of a project folder */
+    private final static RecordMapper<Project> FOLDER_PROJECTS = new RecordMapper<Project>()
+    {
+        @Override
+        public Project map (JSONObject record)
+        {
+            return new Project(record.getString("name"), true);
+        }
+    };
+
+    /** Makes a non-assignment Project of each zip file in a project folder, leaving out other files */
+    private final static RecordMapper<Project> FILE_PROJECTS = new RecordMapper<Project>()
+    {
+        @Override
+        public Project map (JSONObject record)
+        {
+            String name = record.getString("filename");
+            return name.endsWith(".zip") ? new Project(name, false) : null;
+        }
+    };
     
     /**
      * Set up authentication on startup
@@ -80,6 +144,23 @@ public class Canvas
         public T consume (InputStream input) throws CanvasProjectException;
     }
 
+    /**
+     * Implement this interface to consume server-sent events
+     */
+    public interface EventConsumer
+    {
+        public void consume (String event, String data) throws CanvasProjectException;
+    }
+
+    /**
+     * Implement this interface to turn the records of a listing into objects
+     */
+    public interface RecordMapper<T>
+    {
+        /** Returns the object for the record, or null to leave the record out */
+        public T map (JSONObject record) throws JSONException;
+    }
+
     /**
      * Implement this interface to be able to filter by filename
      */
@@ -94,6 +175,18 @@ public class Canvas
     public static void logout () throws CanvasProjectException
     {
         Rest.deleteRefeshToken(baseURL);
+
+        // What was kept belongs to the user who is leaving
+        synchronized (manifests)
+        {
+            manifests.clear();
+            manifestTimes.clear();
+        }
+        synchronized (listings)
+        {
+            listings.clear();
+        }
+        Rest.clearValidated();
     }
 
     /**
@@ -123,19 +216,29 @@ public class Canvas
             // This will contain the information about courses that have the special XML file
             ArrayList<Course> list = new ArrayList<>();
 
+            // The proxy can search the courses in parallel, unless it is too old to know how
+            try
+            {
+                return Rest.getRequestList(baseURL, "cpm/courses?" + COURSE_FIELDS, COURSES);
+            }
+            catch (StatusCodeException e)
+            {
+                if (e.getStatus() != HttpStatus.SC_NOT_FOUND) throw e;
+            }
+
             // Get the courses in which the user is enrolled
-            JSONArray courses = Rest.getRequestArray(baseURL, "api/v1/courses?per_page=100&enrollment_state=active");
+            ArrayList<Course> courses = Rest.getRequestList(baseURL,
+                    "api/v1/courses?per_page=100&enrollment_state=active&" + COURSE_FIELDS, COURSES);
 
             // Identify courses that have the special XML file
-            for (int i = 0; i < courses.length(); i++)
+            for (Course course : courses)
             {
-                JSONObject course = courses.getJSONObject(i);
                 try
                 {
-                    JSONArray files = Rest.getRequestArray(baseURL, "api/v1/courses/" + course.getInt("id") + "/files?search_term=" + CONFIG_FILE);
+                    JSONArray files = Rest.getRequestArray(baseURL, "api/v1/courses/" + course.getCourseID() + "/files?search_term=" + CONFIG_FILE);
                     if (files.length() == 1)
                     {
-                        list.add(new Course(course));
+                        list.add(course);
                     }
                 }
                 catch (StatusCodeException e)
@@ -160,20 +263,14 @@ public class Canvas
     {
         try
         {
-            // Get all the assignments
-            JSONArray assignments = Rest.getRequestArray(baseURL, "api/v1/courses/" + courseID + "/assignments");
-
-            // Find the ones that are pertinent
-            ArrayList<Assignment> openAssignments = new ArrayList<>();
-            for (int i = 0; i < assignments.length(); i++)
+            // Get the pertinent assignments, from the proxy's delta sync if it has one
+            JSONArray assignments = getListing(courseID, "assignments");
+            if (assignments == null)
             {
-                Assignment assignment = new Assignment(assignments.getJSONObject(i));
-                if (assignment.isOpen() && assignment.acceptsZip())
-                {
-                    openAssignments.add(assignment);
-                }
+                return Rest.getRequestList(baseURL, "api/v1/courses/" + courseID + "/assignments?" + ASSIGNMENT_FIELDS,
+                        OPEN_ASSIGNMENTS);
             }
-            return openAssignments;
+            return map(assignments, OPEN_ASSIGNMENTS);
         }
         catch (StatusCodeException e)
         {
@@ -190,37 +287,94 @@ public class Canvas
     {
         try
         {
+            // The proxy's delta sync lists the projects if it has one
+            JSONArray listing = getListing(courseID, "files");
+            if (listing != null)
+            {
+                return getListedProjects(listing, rootFolder + "/" + projectFolder, assignmentOnly);
+            }
+
+            // The course manifest lists the projects if the proxy has one
+            JSONObject manifestFolder = getManifestFolder(courseID, rootFolder + "/" + projectFolder);
+            if (manifestFolder != null)
+            {
+                return getProjects(manifestFolder.getJSONArray("folders"), manifestFolder.getJSONArray("files"), assignmentOnly);
+            }
+
             // Get information about the projectFolder
             JSONArray path = Rest.getRequestArray(baseURL,
                     "api/v1/courses/" + courseID + "/folders/by_path/" + rootFolder + "/" + projectFolder + "?per_page=100");
             int folderID = path.getJSONObject(path.length() - 1).getInt("id");
 
-            // Get the nested folders (they contain assignment projects)
-            ArrayList<Project> projects = new ArrayList<>();
-            JSONArray folders = Rest.getRequestArray(baseURL, "api/v1/folders/" + folderID + "/folders?per_page=100");
-            for (int i = 0; i < folders.length(); i++)
+            // The nested folders contain assignment projects and the zip files contain non-assignment projects
+            ArrayList<Project> projects = Rest.getRequestList(baseURL, "api/v1/folders/" + folderID + "/folders?per_page=100",
+                    FOLDER_PROJECTS);
+            if (!assignmentOnly)
+            {
+                projects.addAll(Rest.getRequestList(baseURL, "api/v1/folders/" + folderID + "/files?per_page=100",
+                        FILE_PROJECTS));
+            }
+            Collections.sort(projects);
+            return projects;
+        }
+        catch (StatusCodeException e)
+        {
+            throw new CanvasProjectException(e, "while getting projects");
+        }
+    }
+
+    /**
+     * Returns the assignment projects in each of the project folders, in the same order. The proxy's delta sync or
+     * course manifest lists them if it has them; otherwise Canvas is asked about all of the folders at once, which
+     * takes two round trips however many folders there are.
+     */
+    private static ArrayList<ArrayList<Project>> getAssignmentProjects (int courseID, String rootFolder,
+            ArrayList<String> projectFolders) throws CanvasProjectException
+    {
+        ArrayList<ArrayList<Project>> result = new ArrayList<>();
+        try
+        {
+            // The proxy's delta sync lists the projects if it has one
+            JSONArray listing = getListing(courseID, "files");
+            if (listing != null)
             {
-                projects.add(new Project(folders.getJSONObject(i).getString("name"), true));
+                for (String projectFolder : projectFolders)
+                {
+                    result.add(getListedProjects(listing, rootFolder + "/" + projectFolder, true));
+                }
+                return result;
             }
 
-            // Get the zip files (they contain non-assignment projects)
-            if (!assignmentOnly)
+            // The course manifest lists the projects if the proxy has one
+            if (getManifest(courseID) != null)
             {
-                JSONArray files = Rest.getRequestArray(baseURL, "api/v1/folders/" + folderID + "/files?per_page=100");
-                for (int i = 0; i < files.length(); i++)
+                for (String projectFolder : projectFolders)
                 {
-                    JSONObject file = files.getJSONObject(i);
-                    String name = file.getString("filename");
-                    if (name.endsWith(".zip"))
-                    {
-                        projects.add(new Project(files.getJSONObject(i).getString("filename"), false));
-                    }
+                    JSONObject manifestFolder = getManifestFolder(courseID, rootFolder + "/" + projectFolder);
+                    result.add((manifestFolder == null) ? getProjects(courseID, rootFolder, projectFolder, true)
+                            : getProjects(manifestFolder.getJSONArray("folders"), manifestFolder.getJSONArray("files"), true));
                 }
+                return result;
             }
 
-            // Sort and return
-            Collections.sort(projects);
-            return projects;
+            // Get information about every project folder, then about the folders nested in each
+            String[] urls = new String[projectFolders.size()];
+            for (int i = 0; i < urls.length; i++)
+            {
+                urls[i] = "api/v1/courses/" + courseID + "/folders/by_path/" + rootFolder + "/" + projectFolders.get(i)
+                        + "?per_page=100";
+            }
+            JSONArray[] paths = Rest.batch(baseURL, urls);
+            for (int i = 0; i < urls.length; i++)
+            {
+                int folderID = paths[i].getJSONObject(paths[i].length() - 1).getInt("id");
+                urls[i] = "api/v1/folders/" + folderID + "/folders?per_page=100";
+            }
+            for (JSONArray folders : Rest.batch(baseURL, urls))
+            {
+                result.add(getProjects(folders, new JSONArray(), true));
+            }
+            return result;
         }
         catch (StatusCodeException e)
         {
@@ -228,11 +382,72 @@ public class Canvas
         }
     }
 
+    /**
+     * Returns the projects in the project folder at the path, as listed by the proxy's delta sync, sorted.
+     */
+    private static ArrayList<Project> getListedProjects (JSONArray listing, String path, boolean assignmentOnly)
+    {
+        path = trimSlashes(path);
+        JSONArray folders = new JSONArray();
+        JSONArray files = new JSONArray();
+        for (int i = 0; i < listing.length(); i++)
+        {
+            JSONObject item = listing.getJSONObject(i);
+            if (trimSlashes(item.getString("path")).equals(path))
+            {
+                (item.getString("type").equals("folder") ? folders : files).put(item);
+            }
+        }
+        return getProjects(folders, files, assignmentOnly);
+    }
+
+    /**
+     * Returns the projects in a project folder with the given subfolders and files, sorted.
+     */
+    private static ArrayList<Project> getProjects (JSONArray folders, JSONArray files, boolean assignmentOnly)
+    {
+        // The nested folders contain assignment projects and the zip files contain non-assignment projects
+        ArrayList<Project> projects = map(folders, FOLDER_PROJECTS);
+        if (!assignmentOnly)
+        {
+            projects.addAll(map(files, FILE_PROJECTS));
+        }
+
+        // Sort and return
+        Collections.sort(projects);
+        return projects;
+    }
+
+    /**
+     * Returns what the mapper makes of each object in the array, leaving out nulls
+     */
+    private static <T> ArrayList<T> map (JSONArray records, RecordMapper<T> mapper)
+    {
+        ArrayList<T> list = new ArrayList<>();
+        for (int i = 0; i < records.length(); i++)
+        {
+            T mapped = mapper.map(records.getJSONObject(i));
+            if (mapped != null)
+            {
+                list.add(mapped);
+            }
+        }
+        return list;
+    }
+
     /**
      * Downloads and returns the course configuration, or null if it doesn't exist.
      */
     public static CourseProfile getCourseProfile (int courseID) throws CanvasProjectException
     {
+        // This starts project creation and verification, so fetch the course manifest afresh for them to use
+        forgetManifest(courseID);
+        JSONObject manifest = getManifest(courseID);
+        if (manifest != null)
+        {
+            return new CourseProfile(courseID, manifest.getJSONObject("profile"));
+        }
+
         String downloadURL = Canvas.getFileFromFolder(courseID, "", CONFIG_FILE);
         return (downloadURL == null) ? null : new CourseProfile(courseID, downloadXMLFile(downloadURL));
     }
@@ -242,11 +457,39 @@ public class Canvas
      */
     public static Document getFormatFile (int courseID, String rootFolder, String formatFilename) throws CanvasProjectException
     {
-        String downloadURL = getFileFromFolder(courseID, rootFolder, formatFilename);
+        return getFormatFile(getFileFromFolder(courseID, rootFolder, formatFilename));
+    }
+
+    /**
+     * Downloads and returns the format file from its download url, as found by getCourseFileURLs.
+     */
+    public static Document getFormatFile (String downloadURL) throws CanvasProjectException
+    {
         if (downloadURL == null) throw new CanvasProjectException("Format file not found on server");
         return downloadXMLFile(downloadURL);
     }
 
+    /**
+     * Returns the download urls of the files with the given names in the root folder, in the same order, looking the
+     * folder up only once. The url is null for a file that isn't there and for a null name.
+     */
+    public static String[] getCourseFileURLs (int courseID, String rootFolder, String... filenames) throws CanvasProjectException
+    {
+        FilenameFilter[] filters = new FilenameFilter[filenames.length];
+        for (int i = 0; i < filenames.length; i++)
+        {
+            final String filename = filenames[i];
+            filters[i] = new FilenameFilter()
+            {
+                public boolean accept (String file)
+                {
+                    return filename != null && file.equals(filename);
+                }
+            };
+        }
+        return getFilesFromFolder(courseID, rootFolder, filters);
+    }
+
     /**
      * Returns the download url to the library file from the root folder, or null if there isn't one.
      */
@@ -263,15 +506,20 @@ public class Canvas
      */
     public static String getVerificationTests (CourseProfile profile, String assignmentName) throws Exception
     {
-        // Look for the assignment folder
+        // Look for the assignment folder in every project folder at once
+        ArrayList<String> projectFolders = new ArrayList<>();
         for (ProjectType type : profile.getProjectTypes())
         {
-            ArrayList<Project> info = Canvas.getProjects(profile.getCourseID(), profile.getRootFolder(), type.getFolder(), true);
-            for (Project p : info)
+            projectFolders.add(type.getFolder());
+        }
+        ArrayList<ArrayList<Project>> projects = getAssignmentProjects(profile.getCourseID(), profile.getRootFolder(), projectFolders);
+        for (int i = 0; i < projectFolders.size(); i++)
+        {
+            for (Project p : projects.get(i))
             {
                 if (p.isAssignment() && p.getProjectName().equals(assignmentName))
                 {
-                    String path = profile.getRootFolder() + "/" + type.getFolder() + "/" + assignmentName;
+                    String path = profile.getRootFolder() + "/" + projectFolders.get(i) + "/" + assignmentName;
                     return getFileFromFolder(profile.getCourseID(), path, new FilenameFilter()
                     {
                         public boolean accept (String filename)
@@ -295,6 +543,26 @@ public class Canvas
         return Rest.getRequestStream(absoluteURL, baseURL, consumer);
     }
 
+    /**
+     * Passes each of the proxy's change events for the course to the consumer until the stream closes.
+     */
+    static void getCourseEvents (int courseID, EventConsumer consumer) throws CanvasProjectException, StatusCodeException
+    {
+        Rest.getRequestEvents(baseURL, "cpm/events/" + courseID, consumer);
+    }
+
+    /**
+     * Discards the course's manifest so that the next lookup fetches it again.
+     */
+    static void forgetManifest (int courseID)
+    {
+        synchronized (manifests)
+        {
+            manifests.remove(courseID);
+            manifestTimes.remove(courseID);
+        }
+    }
+
     /**
      * Downloads the the named zipped project file. The file will be moved to a temporary folder, and the method will
      * return the absolute path to it. Returns null if there is no such file.
@@ -402,6 +670,40 @@ public class Canvas
      * null if there is no such file.
      */
     private static String getFileFromFolder (int courseID, String path, FilenameFilter filter) throws CanvasProjectException
+    {
+        return getFilesFromFolder(courseID, path, filter)[0];
+    }
+
+    /**
+     * Returns the URLs of the files that satisfy each of the filters that appear in the folder at the end of the path,
+     * in the same order, looking the folder up only once. The URL is null for a filter that no file satisfies.
+     */
+    private static String[] getFilesFromFolder (int courseID, String path, FilenameFilter... filters) throws CanvasProjectException
+    {
+        // The course manifest has the files if the proxy has one
+        JSONArray files;
+        JSONObject manifestFolder = getManifestFolder(courseID, path);
+        if (manifestFolder != null)
+        {
+            files = manifestFolder.getJSONArray("files");
+        }
+        else
+        {
+            files = getFolderFiles(courseID, path);
+        }
+
+        String[] urls = new String[filters.length];
+        for (int i = 0; i < filters.length; i++)
+        {
+            urls[i] = findFile(files, filters[i]);
+        }
+        return urls;
+    }
+
+    /**
+     * Returns Canvas's descriptions of the files that appear in the folder at the end of the path.
+     */
+    private static JSONArray getFolderFiles (int courseID, String path) throws CanvasProjectException
     {
         try
         {
@@ -410,25 +712,177 @@ public class Canvas
             JSONObject folder = folderInfo.getJSONObject(folderInfo.length() - 1);
             int folderID = folder.getInt("id");
 
-            // Get the information about the file of interest
-            JSONArray files = Rest.getRequestArray(baseURL, "api/v1/folders/" + folderID + "/files?per_page=100");
-            for (int i = 0; i < files.length(); i++)
+            // Get the information about the files in it
+            return Rest.getRequestArray(baseURL, "api/v1/folders/" + folderID + "/files?per_page=100");
+        }
+        catch (StatusCodeException e)
+        {
+            throw new CanvasProjectException(e, "Finding file");
+        }
+    }
+
+    /**
+     * Returns the URL of the first of the files that satisfies the filter, or null if none does.
+     */
+    private static String findFile (JSONArray files, FilenameFilter filter)
+    {
+        for (int i = 0; i < files.length(); i++)
+        {
+            JSONObject file = files.getJSONObject(i);
+            if (filter.accept(file.getString("filename")))
             {
-                JSONObject file = files.getJSONObject(i);
-                String name = file.getString("filename");
-                if (filter.accept(name))
-                {
-                    return file.getString("url");
-                }
+                return file.getString("url");
             }
+        }
+        return null;
+    }
 
-            // Didn't find it
-            return null;
+    /**
+     * Returns the proxy's manifest of the course's CPM folders, fetching it if there is no recent one. Returns null if
+     * the course has no manifest, including when the proxy is too old to make one.
+     */
+    private static JSONObject getManifest (int courseID) throws CanvasProjectException
+    {
+        synchronized (manifests)
+        {
+            Long fetched = manifestTimes.get(courseID);
+            if (fetched != null && System.currentTimeMillis() - fetched < MANIFEST_LIFETIME)
+            {
+                return manifests.get(courseID);
+            }
+        }
+
+        JSONObject manifest;
+        try
+        {
+            manifest = Rest.getRequestObject(baseURL, "cpm/courses/" + courseID + "/manifest");
+            if (manifest.getInt("version") != MANIFEST_VERSION) manifest = null;
         }
         catch (StatusCodeException e)
         {
-            throw new CanvasProjectException(e, "Finding file");
+            if (e.getStatus() != HttpStatus.SC_NOT_FOUND) throw new CanvasProjectException(e, "while getting course manifest");
+            manifest = null;
+        }
+
+        synchronized (manifests)
+        {
+            manifests.put(courseID, manifest);
+            manifestTimes.put(courseID, System.currentTimeMillis());
+        }
+        return manifest;
+    }
+
+    /**
+     * Returns the items of the course's listing of the kind, in order, after bringing the copy kept here up to date
+     * with the changes the proxy reports since its version. Returns null if the proxy has no such listing, including
+     * when it is too old to offer delta sync.
+     */
+    private static JSONArray getListing (int courseID, String kind) throws CanvasProjectException
+    {
+        String key = courseID + "/" + kind;
+        JSONObject listing;
+        synchronized (listings)
+        {
+            listing = listings.get(key);
+        }
+
+        JSONObject delta;
+        try
+        {
+            delta = Rest.getRequestObject(baseURL,
+                    "cpm/delta/" + key + ((listing == null) ? "" : "?since=" + listing.getString("version")));
+        }
+        catch (StatusCodeException e)
+        {
+            if (e.getStatus() != HttpStatus.SC_NOT_FOUND) throw new CanvasProjectException(e, "while getting " + kind);
+            return null;
+        }
+
+        // Apply the changes to a copy, so that a listing once kept is never modified
+        JSONObject items = new JSONObject();
+        if (listing != null && !delta.getBoolean("full"))
+        {
+            JSONObject heldItems = listing.getJSONObject("items");
+            Iterator<?> heldKeys = heldItems.keys();
+            while (heldKeys.hasNext())
+            {
+                String itemKey = (String) heldKeys.next();
+                items.put(itemKey, heldItems.get(itemKey));
+            }
+        }
+        JSONObject changed = delta.getJSONObject("items");
+        Iterator<?> changedKeys = changed.keys();
+        while (changedKeys.hasNext())
+        {
+            String itemKey = (String) changedKeys.next();
+            items.put(itemKey, changed.get(itemKey));
+        }
+        JSONArray removed = delta.getJSONArray("removed");
+        for (int i = 0; i < removed.length(); i++)
+        {
+            items.remove(removed.getString(i));
+        }
+
+        listing = new JSONObject();
+        listing.put("version", delta.getString("version"));
+        listing.put("items", items);
+        synchronized (listings)
+        {
+            listings.put(key, listing);
+        }
+
+        JSONArray order = delta.getJSONArray("order");
+        JSONArray result = new JSONArray();
+        for (int i = 0; i < order.length(); i++)
+        {
+            result.put(items.getJSONObject(order.getString(i)));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the path without leading or trailing slashes
+     */
+    private static String trimSlashes (String path)
+    {
+        return path.replaceAll("^/+|/+$", "");
+    }
+
+    /**
+     * Returns the manifest's description of the folder at the path, which is relative to the course's top folder.
+     * Returns null if there is no manifest or it doesn't list the folder, so that the caller can ask Canvas instead.
+     */
+    private static JSONObject getManifestFolder (int courseID, String path) throws CanvasProjectException
+    {
+        JSONObject manifest = getManifest(courseID);
+        if (manifest == null) return null;
+
+        // The top folder is listed only for its configuration file
+        if (path.isEmpty())
+        {
+            JSONObject top = new JSONObject();
+            top.put("files", new JSONArray().put(manifest.getJSONObject("config")));
+            top.put("folders", new JSONArray());
+            return top;
+        }
+
+        // Everything else is below the root folder
+        String root = manifest.getJSONObject("profile").getString("root");
+        if (!root.isEmpty() && !(path + "/").startsWith(root + "/")) return null;
+        JSONObject folder = manifest.getJSONObject("root");
+        for (String name : path.substring(root.length()).split("/"))
+        {
+            if (name.isEmpty()) continue;
+            JSONObject next = null;
+            JSONArray folders = folder.getJSONArray("folders");
+            for (int i = 0; i < folders.length() && next == null; i++)
+            {
+                if (folders.getJSONObject(i).getString("name").equals(name)) next = folders.getJSONObject(i);
+            }
+            if (next == null) return null;
+            folder = next;
         }
+        return folder;
     }
 
     /**
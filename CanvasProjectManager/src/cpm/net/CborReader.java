@@ -0,0 +1,286 @@
+package cpm.net;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import cpm.net.Canvas.RecordMapper;
+
+/**
+ * Decodes the CBOR bodies that the proxy sends in place of JSON when asked. Values are decoded into the same types
+ * that org.json produces, so code that reads them can't tell the two formats apart, but without building and then
+ * scanning a string. The proxy only sends the data items that JSON has; tags are skipped and byte strings are read as
+ * text.
+ */
+class CborReader
+{
+    /** Media type of CBOR bodies */
+    static final String CONTENT_TYPE = "application/cbor";
+
+    /** Marks the end of an indefinite-length item */
+    private static final Object BREAK = new Object();
+
+    /** The body and the position of the next byte */
+    private final byte[] body;
+    private int position = 0;
+
+    CborReader (byte[] body)
+    {
+        this.body = body;
+    }
+
+    /**
+     * Decodes the body, which is one data item
+     */
+    Object read () throws JSONException
+    {
+        Object value = readItem();
+        if (value == BREAK || position != body.length)
+        {
+            throw new JSONException("Malformed CBOR body");
+        }
+        return value;
+    }
+
+    /**
+     * Decodes the body, which is an array of maps, passing each one to the mapper as soon as it is decoded, and adds
+     * the non-null results to the list.
+     */
+    <T> void readRecords (RecordMapper<T> mapper, ArrayList<T> list) throws JSONException
+    {
+        int head = nextByte();
+        if (head >> 5 != 4)
+        {
+            throw new JSONException("CBOR body is not an array");
+        }
+        long length = readLength(head);
+        for (long i = 0; length < 0 || i < length; i++)
+        {
+            Object record = readItem();
+            if (record == BREAK)
+            {
+                break;
+            }
+            if (!(record instanceof JSONObject))
+            {
+                throw new JSONException("CBOR array element is not a map");
+            }
+            T mapped = mapper.map((JSONObject) record);
+            if (mapped != null)
+            {
+                list.add(mapped);
+            }
+        }
+        if (position != body.length)
+        {
+            throw new JSONException("Malformed CBOR body");
+        }
+    }
+
+    /**
+     * Decodes the next data item, returning BREAK if it is the end of an indefinite-length item
+     */
+    private Object readItem () throws JSONException
+    {
+        int head = nextByte();
+        int major = head >> 5;
+        switch (major)
+        {
+        case 0:
+            return toNumber(readArgument(head));
+        case 1:
+            return toNumber(-1 - readArgument(head));
+        case 2:
+        case 3:
+            return readString(head);
+        case 4:
+        {
+            JSONArray array = new JSONArray();
+            long length = readLength(head);
+            for (long i = 0; length < 0 || i < length; i++)
+            {
+                Object element = readItem();
+                if (element == BREAK)
+                {
+                    break;
+                }
+                array.put(element);
+            }
+            return array;
+        }
+        case 5:
+        {
+            JSONObject object = new JSONObject();
+            long length = readLength(head);
+            for (long i = 0; length < 0 || i < length; i++)
+            {
+                Object name = readItem();
+                if (name == BREAK)
+                {
+                    break;
+                }
+                object.put(name.toString(), readItem());
+            }
+            return object;
+        }
+        case 6:
+            readArgument(head);
+            return readItem();
+        default:
+            return readSimple(head);
+        }
+    }
+
+    /**
+     * Decodes a simple value or floating-point number
+     */
+    private Object readSimple (int head) throws JSONException
+    {
+        switch (head & 0x1f)
+        {
+        case 20:
+            return Boolean.FALSE;
+        case 21:
+            return Boolean.TRUE;
+        case 22:
+        case 23:
+            return JSONObject.NULL;
+        case 25:
+            return Double.valueOf(halfToDouble((int) readBytes(2)));
+        case 26:
+            return Double.valueOf(Float.intBitsToFloat((int) readBytes(4)));
+        case 27:
+            return Double.valueOf(Double.longBitsToDouble(readBytes(8)));
+        case 31:
+            return BREAK;
+        default:
+            throw new JSONException("Unsupported CBOR simple value " + (head & 0x1f));
+        }
+    }
+
+    /**
+     * Decodes a text or byte string, joining the chunks of an indefinite-length one
+     */
+    private String readString (int head) throws JSONException
+    {
+        long length = readLength(head);
+        if (length >= 0)
+        {
+            if (length > body.length - position)
+            {
+                throw new JSONException("Truncated CBOR body");
+            }
+            String text = new String(body, position, (int) length, StandardCharsets.UTF_8);
+            position += (int) length;
+            return text;
+        }
+        StringBuilder text = new StringBuilder();
+        while (true)
+        {
+            int chunk = nextByte();
+            if (chunk == 0xff)
+            {
+                return text.toString();
+            }
+            text.append(readString(chunk));
+        }
+    }
+
+    /**
+     * Returns the length given by the head of a string, array or map, or -1 if it has an indefinite length
+     */
+    private long readLength (int head) throws JSONException
+    {
+        if ((head & 0x1f) == 31)
+        {
+            return -1;
+        }
+        return readArgument(head);
+    }
+
+    /**
+     * Returns the unsigned argument of a data item's head
+     */
+    private long readArgument (int head) throws JSONException
+    {
+        int info = head & 0x1f;
+        if (info < 24)
+        {
+            return info;
+        }
+        switch (info)
+        {
+        case 24:
+            return readBytes(1);
+        case 25:
+            return readBytes(2);
+        case 26:
+            return readBytes(4);
+        case 27:
+            return readBytes(8);
+        default:
+            throw new JSONException("Malformed CBOR head " + head);
+        }
+    }
+
+    /**
+     * Returns the next count bytes as a big-endian number
+     */
+    private long readBytes (int count) throws JSONException
+    {
+        long value = 0;
+        for (int i = 0; i < count; i++)
+        {
+            value = (value << 8) | nextByte();
+        }
+        return value;
+    }
+
+    /**
+     * Returns the next byte
+     */
+    private int nextByte () throws JSONException
+    {
+        if (position >= body.length)
+        {
+            throw new JSONException("Truncated CBOR body");
+        }
+        return body[position++] & 0xff;
+    }
+
+    /**
+     * Returns an integer as org.json would: as an Integer if it fits, otherwise as a Long
+     */
+    private static Object toNumber (long n)
+    {
+        if (n >= Integer.MIN_VALUE && n <= Integer.MAX_VALUE)
+        {
+            return Integer.valueOf((int) n);
+        }
+        return Long.valueOf(n);
+    }
+
+    /**
+     * Converts a half-precision float to a double
+     */
+    private static double halfToDouble (int half)
+    {
+        int exponent = (half >> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+        double value;
+        if (exponent == 0)
+        {
+            value = mantissa * Math.pow(2, -24);
+        }
+        else if (exponent == 31)
+        {
+            value = (mantissa == 0) ? Double.POSITIVE_INFINITY : Double.NaN;
+        }
+        else
+        {
+            value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+        }
+        return ((half & 0x8000) != 0) ? -value : value;
+    }
+}
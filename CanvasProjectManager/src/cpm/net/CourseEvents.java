@@ -0,0 +1,275 @@
+package cpm.net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.json.JSONException;
+import org.json.JSONObject;
+import cpm.logging.CanvasProjectException;
+import cpm.logging.StatusCodeException;
+import cpm.net.Canvas.EventConsumer;
+
+/**
+ * Listens to the proxy's stream of change events for each course the plugin is showing, and keeps copies of course
+ * data for as long as the stream says they are current. The events only name the kind of data that changed, so the
+ * data itself is always fetched again with the user's own token. A proxy that doesn't offer the stream answers 404,
+ * after which nothing is kept for that course.
+ */
+public class CourseEvents
+{
+    /** Kinds of change the proxy announces */
+    public static final String ASSIGNMENTS = "assignments";
+    public static final String FOLDERS = "folders";
+    public static final String CONFIG = "config";
+
+    /** Milliseconds to wait before reconnecting a stream that failed */
+    private static final long RECONNECT_DELAY = 10 * 1000;
+
+    /**
+     * Implement this interface to hear about changes to a course
+     */
+    public interface Listener
+    {
+        public void changed (int courseID, String kind);
+    }
+
+    /** Streams by course ID. All stream state is guarded by this map. */
+    private static final Map<Integer, Stream> streams = new HashMap<>();
+
+    /**
+     * Registers the listener for changes to the course, starting the course's stream if necessary.
+     */
+    public static void addListener (int courseID, Listener listener)
+    {
+        synchronized (streams)
+        {
+            getStream(courseID).listeners.add(listener);
+        }
+    }
+
+    /**
+     * Unregisters the listener for changes to the course.
+     */
+    public static void removeListener (int courseID, Listener listener)
+    {
+        synchronized (streams)
+        {
+            Stream stream = streams.get(courseID);
+            if (stream != null)
+            {
+                stream.listeners.remove(listener);
+            }
+        }
+    }
+
+    /**
+     * Returns the value kept for the course under the key, or null if there is none or it can't be known to be
+     * current.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T get (int courseID, String key)
+    {
+        synchronized (streams)
+        {
+            Stream stream = streams.get(courseID);
+            if (stream == null || !stream.live)
+            {
+                return null;
+            }
+            return (T) stream.values.get(key);
+        }
+    }
+
+    /**
+     * Keeps the value for the course under the key until a change of the kind is announced.
+     */
+    public static void put (int courseID, String key, String kind, Object value)
+    {
+        synchronized (streams)
+        {
+            Stream stream = getStream(courseID);
+            if (!stream.unsupported)
+            {
+                stream.values.put(key, value);
+                stream.kinds.put(key, kind);
+            }
+        }
+    }
+
+    /**
+     * Returns the course's stream, starting it if necessary. Must be called while holding the streams lock.
+     */
+    private static Stream getStream (int courseID)
+    {
+        Stream stream = streams.get(courseID);
+        if (stream == null)
+        {
+            stream = new Stream(courseID);
+            streams.put(courseID, stream);
+            Thread thread = new Thread(stream, "cpm-events-" + courseID);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return stream;
+    }
+
+    /**
+     * One course's connection to the proxy, which is kept open and reopened for the life of the plugin
+     */
+    private static class Stream implements Runnable, EventConsumer
+    {
+        /** The course */
+        private final int courseID;
+
+        /** Who to tell about changes */
+        private final ArrayList<Listener> listeners = new ArrayList<>();
+
+        /** Kept values and their kinds, by key */
+        private final HashMap<String, Object> values = new HashMap<>();
+        private final HashMap<String, String> kinds = new HashMap<>();
+
+        /** Last version of each kind heard from the proxy */
+        private final HashMap<String, String> versions = new HashMap<>();
+
+        /** True while the stream is connected and has reported the course's state */
+        private boolean live = false;
+
+        /** True once the proxy turns out not to offer the stream */
+        private boolean unsupported = false;
+
+        private Stream (int courseID)
+        {
+            this.courseID = courseID;
+        }
+
+        @Override
+        public void run ()
+        {
+            while (true)
+            {
+                try
+                {
+                    Canvas.getCourseEvents(courseID, this);
+                }
+                catch (StatusCodeException e)
+                {
+                    if (e.getStatus() == 404)
+                    {
+                        synchronized (streams)
+                        {
+                            unsupported = true;
+                            live = false;
+                            values.clear();
+                            kinds.clear();
+                        }
+                        return;
+                    }
+                }
+                catch (CanvasProjectException e)
+                {
+                    // Reconnect below
+                }
+
+                // Nothing kept can be trusted until the stream reports the state again
+                synchronized (streams)
+                {
+                    live = false;
+                }
+                try
+                {
+                    Thread.sleep(RECONNECT_DELAY);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Deals with one event. A state event lists the version of each kind, so a kind that changed while the
+         * stream was closed is caught when it reopens. Any other event announces the new version of one kind.
+         */
+        @Override
+        public void consume (String event, String data)
+        {
+            ArrayList<String> changed = new ArrayList<>();
+            try
+            {
+                JSONObject payload = new JSONObject(data);
+                synchronized (streams)
+                {
+                    if (event.equals("state"))
+                    {
+                        Iterator<?> kindNames = payload.keys();
+                        while (kindNames.hasNext())
+                        {
+                            String kind = (String) kindNames.next();
+                            if (!kind.equals("course") && update(kind, payload.getString(kind)))
+                            {
+                                changed.add(kind);
+                            }
+                        }
+                        live = true;
+                    }
+                    else if (update(event, payload.getString("version")))
+                    {
+                        changed.add(event);
+                    }
+                }
+            }
+            catch (JSONException e)
+            {
+                return;
+            }
+
+            for (String kind : changed)
+            {
+                if (kind.equals(FOLDERS) || kind.equals(CONFIG))
+                {
+                    Canvas.forgetManifest(courseID);
+                }
+                for (Listener listener : getListeners())
+                {
+                    listener.changed(courseID, kind);
+                }
+            }
+        }
+
+        /**
+         * Records the kind's version and, if it differs from a version already known, drops the values of that
+         * kind and returns true. Must be called while holding the streams lock.
+         */
+        private boolean update (String kind, String version)
+        {
+            String previous = versions.put(kind, version);
+            if (previous == null || previous.equals(version))
+            {
+                return false;
+            }
+            Iterator<Map.Entry<String, String>> entries = kinds.entrySet().iterator();
+            while (entries.hasNext())
+            {
+                Map.Entry<String, String> entry = entries.next();
+                if (entry.getValue().equals(kind))
+                {
+                    values.remove(entry.getKey());
+                    entries.remove();
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns a copy of the listeners, so that they can be called without holding the lock
+         */
+        private ArrayList<Listener> getListeners ()
+        {
+            synchronized (streams)
+            {
+                return new ArrayList<>(listeners);
+            }
+        }
+    }
+}
@@ -4,12 +4,18 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Scanner;
+import org.apache.http.Header;
 import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
@@ -18,10 +24,15 @@ import org.apache.http.entity.StringEntity;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.message.BasicHeaderValueParser;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import cpm.logging.CanvasProjectException;
 import cpm.logging.StatusCodeException;
+import cpm.net.Canvas.EventConsumer;
+import cpm.net.Canvas.RecordMapper;
 import cpm.net.Canvas.StreamConsumer;
 import state.StateCache;
 
@@ -39,6 +50,99 @@ public class Rest
     /** Name of authenticated student */
     private static String studentName = null;
 
+    /** Milliseconds of silence after which an event stream is given up for dead */
+    private static final int EVENT_TIMEOUT = 90 * 1000;
+
+    /** Most response bodies kept for conditional requests */
+    private static final int MAX_VALIDATED = 64;
+
+    /** Media types asked of GET requests for JSON. The proxy sends CBOR in its place, which is faster to decode. */
+    private static final String ACCEPT_JSON = CborReader.CONTENT_TYPE + ", application/json;q=0.9";
+
+    /** Recent GET response bodies with their entity tags, by URL, least recently used first */
+    private static final LinkedHashMap<String, Body> validated = new LinkedHashMap<String, Body>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry (Map.Entry<String, Body> eldest)
+        {
+            return size() > MAX_VALIDATED;
+        }
+    };
+
+    /**
+     * The body of a successful GET response, in JSON or CBOR, with its entity tag if it has one
+     */
+    private static class Body
+    {
+        private final String etag;
+        private final byte[] bytes;
+        private final boolean cbor;
+
+        private Body (String etag, byte[] bytes, boolean cbor)
+        {
+            this.etag = etag;
+            this.bytes = bytes;
+            this.cbor = cbor;
+        }
+
+        /**
+         * Decodes the body, which holds an object
+         */
+        private JSONObject decodeObject ()
+        {
+            if (!cbor)
+            {
+                return new JSONObject(new String(bytes, StandardCharsets.UTF_8));
+            }
+            Object value = new CborReader(bytes).read();
+            if (!(value instanceof JSONObject))
+            {
+                throw new JSONException("CBOR body is not a map");
+            }
+            return (JSONObject) value;
+        }
+
+        /**
+         * Decodes the body, which holds an array
+         */
+        private JSONArray decodeArray ()
+        {
+            if (!cbor)
+            {
+                return new JSONArray(new String(bytes, StandardCharsets.UTF_8));
+            }
+            Object value = new CborReader(bytes).read();
+            if (!(value instanceof JSONArray))
+            {
+                throw new JSONException("CBOR body is not an array");
+            }
+            return (JSONArray) value;
+        }
+
+        /**
+         * Decodes the body, which holds an array of objects, passing each one to the mapper
+         */
+        private <T> void decodeRecords (RecordMapper<T> mapper, ArrayList<T> list)
+        {
+            if (cbor)
+            {
+                new CborReader(bytes).readRecords(mapper, list);
+                return;
+            }
+            JSONArray records = new JSONArray(new String(bytes, StandardCharsets.UTF_8));
+            for (int i = 0; i < records.length(); i++)
+            {
+                T mapped = mapper.map(records.getJSONObject(i));
+                if (mapped != null)
+                {
+                    list.add(mapped);
+                }
+            }
+        }
+    }
+
     /**
      * Initializes tokens and name on startup
      */
@@ -167,7 +271,7 @@ public class Rest
      */
     private static void refreshAuthToken (String baseURL) throws CanvasProjectException
     {
-        try (CloseableHttpClient client = HttpClients.createMinimal())
+        try (CloseableHttpClient client = createMinimalClient())
         {
             // Build body
             JSONObject body = new JSONObject();
@@ -223,16 +327,17 @@ public class Rest
 
     /**
      * Runs the GET request encoded in the URL and returns the JSONObject contained in the response. Refreshes the
-     * authentication token as necessary.
+     * authentication token as necessary. If an unexpected status code is received, throws a StatusCodeException.
      */
-    static JSONObject getRequestObject (String base, String url) throws CanvasProjectException
+    static JSONObject getRequestObject (String base, String url) throws CanvasProjectException, StatusCodeException
     {
         try (CloseableHttpClient client = HttpClients.createDefault())
         {
             // Execute the request
             HttpGet getRequest = new HttpGet(base + url);
             getRequest.addHeader("Authorization", "Bearer " + authToken);
-            getRequest.addHeader("accept", "application/json");
+            getRequest.addHeader("accept", ACCEPT_JSON);
+            Body kept = addValidator(getRequest, base + url);
             HttpResponse response = client.execute(getRequest);
 
             // If we were unauthorized, refresh the authorization token and retry request
@@ -245,14 +350,14 @@ public class Rest
             }
 
             // Deal with response
-            int statusCode = response.getStatusLine().getStatusCode();
-            if (statusCode != HttpStatus.SC_OK)
+            Body body = getValidatedBody(response, base + url, kept);
+            if (body == null)
             {
-                throw new CanvasProjectException(statusCode);
+                throw new StatusCodeException(response.getStatusLine().getStatusCode());
             }
             else
             {
-                return new JSONObject(getPayloadString(response));
+                return body.decodeObject();
             }
         }
         catch (IOException e)
@@ -266,20 +371,56 @@ public class Rest
      * authentication token if necessary. If an unexpected status code is received, throws a StatusCodeException.
      */
     static JSONArray getRequestArray (String base, String url) throws CanvasProjectException, StatusCodeException
+    {
+        JSONArray finalArray = null;
+        for (Body page : getRequestPages(base, url))
+        {
+            JSONArray array = page.decodeArray();
+            finalArray = (finalArray == null) ? array : append(finalArray, array);
+        }
+        return finalArray;
+    }
+
+    /**
+     * Runs the GET request encoded in the URL, whose response is an array of objects, and returns what the mapper
+     * makes of each of them, leaving out nulls. Each object is mapped as soon as it is decoded, so the array is never
+     * built. Refreshes the authentication token if necessary. If an unexpected status code is received, throws a
+     * StatusCodeException.
+     */
+    static <T> ArrayList<T> getRequestList (String base, String url, RecordMapper<T> mapper)
+            throws CanvasProjectException, StatusCodeException
+    {
+        ArrayList<T> list = new ArrayList<>();
+        for (Body page : getRequestPages(base, url))
+        {
+            page.decodeRecords(mapper, list);
+        }
+        return list;
+    }
+
+    /**
+     * Runs the GET request encoded in the URL and returns the bodies of the pages of the response, following the Link
+     * header if the proxy doesn't send them all at once. Refreshes the authentication token if necessary. If an
+     * unexpected status code is received, throws a StatusCodeException.
+     */
+    private static ArrayList<Body> getRequestPages (String base, String url) throws CanvasProjectException, StatusCodeException
     {
         try (CloseableHttpClient client = HttpClients.createDefault())
         {
             // The URL and final result
             url = base + url;
-            JSONArray finalArray = null;
+            ArrayList<Body> pages = new ArrayList<>();
 
             // Repeat until the entire array is obtained since it can require multiple requests
             while (url != null)
             {
-                // Execute the request
+                // Execute the request, asking the proxy to return every page at once.  If it doesn't, the Link
+                // header is followed below.
                 HttpGet getRequest = new HttpGet(url);
                 getRequest.addHeader("Authorization", "Bearer " + authToken);
-                getRequest.addHeader("accept", "application/json");
+                getRequest.addHeader("accept", ACCEPT_JSON);
+                getRequest.addHeader("X-Aggregate-Pages", "true");
+                Body kept = addValidator(getRequest, url);
                 HttpResponse response = client.execute(getRequest);
 
                 // If we were unauthorized, refresh the authorization token and retry request.
@@ -292,35 +433,101 @@ public class Rest
                 }
 
                 // Deal with unexpected response
-                int statusCode = response.getStatusLine().getStatusCode();
-                if (statusCode != HttpStatus.SC_OK)
+                Body body = getValidatedBody(response, url, kept);
+                if (body == null)
                 {
-                    throw new StatusCodeException(statusCode);
+                    throw new StatusCodeException(response.getStatusLine().getStatusCode());
                 }
-
-                // Get the array from the response and append to finalArray
-                JSONArray array = new JSONArray(getPayloadString(response));
-                finalArray = (finalArray == null) ? array : append(finalArray, array);
+                pages.add(body);
 
                 // There can be multiple pages so we have to concatenate them
-                url = null;
-                if (response.getHeaders("Link").length > 0)
+                Header link = response.getFirstHeader("Link");
+                url = getNextLink((link == null) ? null : link.getValue());
+            }
+
+            // The entire response has been read
+            return pages;
+        }
+        catch (IOException e)
+        {
+            throw new CanvasProjectException(e, "Problem contacting remote server");
+        }
+    }
+
+    /**
+     * Runs the GET requests encoded in the URLs, each of whose responses is an array, and returns the arrays in the
+     * same order. The proxy answers them all in one round trip, and the rest of any listing that it answers only in
+     * part is then fetched page by page. A proxy too old to take batches is sent the requests one at a time.
+     * Refreshes the authentication token if necessary. If an unexpected status code is received for any of the
+     * requests, throws a StatusCodeException.
+     */
+    static JSONArray[] batch (String base, String... urls) throws CanvasProjectException, StatusCodeException
+    {
+        JSONArray[] arrays = new JSONArray[urls.length];
+        try (CloseableHttpClient client = createMinimalClient())
+        {
+            // Execute the request, whose body lists the paths
+            JSONArray paths = new JSONArray();
+            for (String url : urls)
+            {
+                paths.put("/" + url);
+            }
+            HttpPost postRequest = new HttpPost(base + "cpm/batch");
+            postRequest.addHeader("Authorization", "Bearer " + authToken);
+            postRequest.addHeader("accept", ACCEPT_JSON);
+            postRequest.setEntity(new StringEntity(paths.toString(), ContentType.APPLICATION_JSON));
+            HttpResponse response = client.execute(postRequest);
+
+            // If we were unauthorized, refresh the authorization token and retry request.
+            if (authTokenExpired(response))
+            {
+                refreshAuthToken(base);
+                postRequest.removeHeaders("Authorization");
+                postRequest.addHeader("Authorization", "Bearer " + authToken);
+                response = client.execute(postRequest);
+            }
+
+            // A proxy that doesn't take batches, or not this many, is sent the requests one at a time
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == HttpStatus.SC_NOT_FOUND || statusCode == HttpStatus.SC_REQUEST_TOO_LONG)
+            {
+                EntityUtils.consume(response.getEntity());
+                for (int i = 0; i < urls.length; i++)
                 {
-                    HeaderElement[] headerElements = response.getHeaders("Link")[0].getElements();
-                    for (HeaderElement element : headerElements)
-                    {
-                        if (element.getParameterByName("rel").getValue().equals("next"))
-                        {
-                            url = element.toString();
-                            url = url.substring(1, url.indexOf('>'));
-                            break;
-                        }
-                    }
+                    arrays[i] = getRequestArray(base, urls[i]);
                 }
+                return arrays;
+            }
+            if (statusCode != HttpStatus.SC_OK)
+            {
+                EntityUtils.consume(response.getEntity());
+                throw new StatusCodeException(statusCode);
             }
+            Body body = readBody(response);
 
-            // The entire response has been read
-            return finalArray;
+            // Each item has the status, Link header and body of one response
+            JSONArray items = body.decodeArray();
+            for (int i = 0; i < urls.length; i++)
+            {
+                JSONObject item = items.getJSONObject(i);
+                if (item.getInt("status") != HttpStatus.SC_OK)
+                {
+                    throw new StatusCodeException(item.getInt("status"));
+                }
+                arrays[i] = item.getJSONArray("body");
+
+                // The rest of a listing is fetched from the next page on, unless it is elsewhere
+                String next = getNextLink(item.optString("link", null));
+                if (next != null && next.startsWith(base))
+                {
+                    append(arrays[i], getRequestArray(base, next.substring(base.length())));
+                }
+                else if (next != null)
+                {
+                    arrays[i] = getRequestArray(base, urls[i]);
+                }
+            }
+            return arrays;
         }
         catch (IOException e)
         {
@@ -354,13 +561,83 @@ public class Rest
         }
     }
 
+    /**
+     * Makes a GET request for the stream of server-sent events at the url and passes each event to the consumer until
+     * the server closes the stream. Refreshes the authentication token if necessary. If an unexpected status code is
+     * received, throws a StatusCodeException.
+     */
+    static void getRequestEvents (String base, String url, EventConsumer consumer) throws CanvasProjectException, StatusCodeException
+    {
+        // The proxy sends a comment every half minute, so a longer silence means the connection is gone
+        RequestConfig config = RequestConfig.custom().setSocketTimeout(EVENT_TIMEOUT).build();
+        try (CloseableHttpClient client = HttpClients.custom().setDefaultRequestConfig(config).build())
+        {
+            // Execute the request
+            HttpGet getRequest = new HttpGet(base + url);
+            getRequest.addHeader("Authorization", "Bearer " + authToken);
+            getRequest.addHeader("accept", "text/event-stream");
+            HttpResponse response = client.execute(getRequest);
+
+            // If we were unauthorized, refresh the authorization token and retry request
+            if (authTokenExpired(response))
+            {
+                EntityUtils.consume(response.getEntity());
+                refreshAuthToken(base);
+                getRequest.removeHeaders("Authorization");
+                getRequest.addHeader("Authorization", "Bearer " + authToken);
+                response = client.execute(getRequest);
+            }
+
+            // Deal with unexpected response
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != HttpStatus.SC_OK)
+            {
+                throw new StatusCodeException(statusCode);
+            }
+
+            // Each event is a group of lines ended by a blank one
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8)))
+            {
+                String event = "message";
+                StringBuilder data = new StringBuilder();
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    if (line.isEmpty())
+                    {
+                        if (data.length() > 0)
+                        {
+                            consumer.consume(event, data.toString());
+                        }
+                        event = "message";
+                        data.setLength(0);
+                    }
+                    else if (line.startsWith("event:"))
+                    {
+                        event = line.substring("event:".length()).trim();
+                    }
+                    else if (line.startsWith("data:"))
+                    {
+                        if (data.length() > 0) data.append('\n');
+                        data.append(line.substring("data:".length()).trim());
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new CanvasProjectException(e, "Problem contacting remote server");
+        }
+    }
+
     /**
      * Posts the body to the url and returns the JSONObject that comes back as the response payload. Sends an
      * authorization token, and deals with failed authorization.
      */
     static JSONObject postRequest (String base, String url, JSONObject body) throws CanvasProjectException
     {
-        try (CloseableHttpClient client = HttpClients.createMinimal())
+        try (CloseableHttpClient client = createMinimalClient())
         {
             // Execute the request
             HttpPost postRequest = new HttpPost(base + url);
@@ -402,7 +679,7 @@ public class Rest
      */
     static JSONObject postRequestNoToken (String base, String url, JSONObject body) throws CanvasProjectException
     {
-        try (CloseableHttpClient client = HttpClients.createMinimal())
+        try (CloseableHttpClient client = createMinimalClient())
         {
             // Execute the request
             HttpPost postRequest = new HttpPost(base + url);
@@ -464,7 +741,7 @@ public class Rest
      */
     static void logException (String base, String url, String info) throws CanvasProjectException
     {
-        try (CloseableHttpClient client = HttpClients.createMinimal())
+        try (CloseableHttpClient client = createMinimalClient())
         {
             HttpPost postRequest = new HttpPost(base + url);
             StringEntity requestEntity = new StringEntity(info, ContentType.TEXT_PLAIN);
@@ -494,6 +771,108 @@ public class Rest
         return arr1;
     }
 
+    /**
+     * If a body is kept for the url, asks the server to send it only if it has changed, and returns it. Otherwise
+     * returns null.
+     */
+    private static Body addValidator (HttpGet getRequest, String url)
+    {
+        Body kept;
+        synchronized (validated)
+        {
+            kept = validated.get(url);
+        }
+        if (kept != null)
+        {
+            getRequest.addHeader("If-None-Match", kept.etag);
+        }
+        return kept;
+    }
+
+    /**
+     * Returns the body of a successful response, keeping it if the server tagged it, or the kept body if the server
+     * says it hasn't changed. Returns null for any other response.
+     */
+    private static Body getValidatedBody (HttpResponse response, String url, Body kept) throws IOException
+    {
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode == HttpStatus.SC_NOT_MODIFIED && kept != null)
+        {
+            return kept;
+        }
+        if (statusCode != HttpStatus.SC_OK)
+        {
+            return null;
+        }
+
+        Body body = readBody(response);
+        synchronized (validated)
+        {
+            if (body.etag != null)
+            {
+                validated.put(url, body);
+            }
+            else
+            {
+                validated.remove(url);
+            }
+        }
+        return body;
+    }
+
+    /**
+     * Reads the body of the response, along with its ETag and whether it is CBOR
+     */
+    private static Body readBody (HttpResponse response) throws IOException
+    {
+        HttpEntity entity = response.getEntity();
+        Header type = entity.getContentType();
+        Header etag = response.getFirstHeader("ETag");
+        return new Body((etag == null) ? null : etag.getValue(), EntityUtils.toByteArray(entity),
+                type != null && type.getValue().toLowerCase().startsWith(CborReader.CONTENT_TYPE));
+    }
+
+    /**
+     * Returns the URL of the next page given by a Link header, which may be null, or null if there is none.
+     */
+    private static String getNextLink (String link)
+    {
+        if (link == null)
+        {
+            return null;
+        }
+        for (HeaderElement element : BasicHeaderValueParser.parseElements(link, null))
+        {
+            if (element.getParameterByName("rel").getValue().equals("next"))
+            {
+                String url = element.toString();
+                return url.substring(1, url.indexOf('>'));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Forgets every kept response body, as when the user logs out
+     */
+    static void clearValidated ()
+    {
+        synchronized (validated)
+        {
+            validated.clear();
+        }
+    }
+
+    /**
+     * Returns a client that, like HttpClients.createMinimal, neither follows redirects nor retries nor keeps cookies,
+     * but that asks for compressed responses and decodes them. The default client used for GETs does both already.
+     */
+    private static CloseableHttpClient createMinimalClient ()
+    {
+        return HttpClients.custom().disableRedirectHandling().disableAutomaticRetries().disableCookieManagement()
+                .disableAuthCaching().build();
+    }
+
     /**
      * Reads and returns the payload of the response as a string.
      */
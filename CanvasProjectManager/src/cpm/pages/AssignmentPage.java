@@ -11,6 +11,7 @@ import cpm.data.Assignment;
 import cpm.data.Course;
 import cpm.logging.CanvasProjectException;
 import cpm.net.Canvas;
+import cpm.net.CourseEvents;
 import cpm.wizards.CPMWizardPage;
 
 /**
@@ -18,6 +19,9 @@ import cpm.wizards.CPMWizardPage;
  */
 public class AssignmentPage extends CPMWizardPage<ArrayList<Assignment>>
 {
+    /** Key used for keeping assignments while they are current */
+    private final static String CACHE_KEY = "assignments";
+
     /** Selectable list of assignment names */
     private List assignmentList;
     
@@ -56,6 +60,16 @@ public class AssignmentPage extends CPMWizardPage<ArrayList<Assignment>>
         if (visible)
         {
             selectedCourse = coursePage.getSelectedCourse();
+
+            // Assignments fetched earlier are reused until the proxy announces a change
+            if (assignments == null)
+            {
+                assignments = CourseEvents.get(selectedCourse.getCourseID(), CACHE_KEY);
+                if (assignments != null)
+                {
+                    redisplayMainControl();
+                }
+            }
         }
         super.setVisible(visible);
     }
@@ -102,6 +116,7 @@ public class AssignmentPage extends CPMWizardPage<ArrayList<Assignment>>
         {
             assignmentList.add(a.getName());
         }
+        listenForChanges(CourseEvents.ASSIGNMENTS, selectedCourse.getCourseID());
     }
 
     @Override
@@ -120,5 +135,9 @@ public class AssignmentPage extends CPMWizardPage<ArrayList<Assignment>>
     protected void setPageData (ArrayList<Assignment> data)
     {
         assignments = data;
+        if (data != null)
+        {
+            CourseEvents.put(selectedCourse.getCourseID(), CACHE_KEY, CourseEvents.ASSIGNMENTS, data);
+        }
     }
 }
@@ -12,6 +12,7 @@ import org.eclipse.swt.widgets.List;
 import cpm.data.Course;
 import cpm.logging.CanvasProjectException;
 import cpm.net.Canvas;
+import cpm.net.CourseEvents;
 import cpm.wizards.CPMWizardPage;
 import state.StateCache;
 
@@ -142,10 +143,15 @@ public class CoursePage extends CPMWizardPage<ArrayList<Course>>
     protected void redisplayMainControl ()
     {
         clearMainControl();
-        for (Course course : courses)
+        int[] courseIDs = new int[courses.size()];
+        for (int i = 0; i < courses.size(); i++)
         {
-            courseList.add(course.getName());
+            courseList.add(courses.get(i).getName());
+            courseIDs[i] = courses.get(i).getCourseID();
         }
+
+        // The list shows only courses with a configuration file
+        listenForChanges(CourseEvents.CONFIG, courseIDs);
     }
 
     @Override
@@ -13,6 +13,7 @@ import cpm.data.Project;
 import cpm.data.ProjectType;
 import cpm.logging.CanvasProjectException;
 import cpm.net.Canvas;
+import cpm.net.CourseEvents;
 import cpm.wizards.CPMWizardPage;
 
 /**
@@ -62,6 +63,16 @@ public class ProjectPage extends CPMWizardPage<ArrayList<Project>>
             selectedCourse = coursePage.getSelectedCourse();
             selectedCourseProfile = selectionPage.getCourseProfile();
             selectedProjectType = selectionPage.getSelectedProjectType();
+
+            // Projects listed earlier are reused until the proxy announces a change to the folders
+            if (projects == null)
+            {
+                projects = CourseEvents.get(selectedCourse.getCourseID(), getCacheKey());
+                if (projects != null)
+                {
+                    redisplayMainControl();
+                }
+            }
         }
         super.setVisible(visible);
     }
@@ -108,6 +119,7 @@ public class ProjectPage extends CPMWizardPage<ArrayList<Project>>
         {
             projectList.add(p.getProjectName());
         }
+        listenForChanges(CourseEvents.FOLDERS, selectedCourse.getCourseID());
     }
 
     @Override
@@ -126,6 +138,18 @@ public class ProjectPage extends CPMWizardPage<ArrayList<Project>>
     protected void setPageData (ArrayList<Project> data)
     {
         projects = data;
+        if (data != null)
+        {
+            CourseEvents.put(selectedCourse.getCourseID(), getCacheKey(), CourseEvents.FOLDERS, data);
+        }
+    }
+
+    /**
+     * Returns the key under which the projects of the selected project type are kept
+     */
+    private String getCacheKey ()
+    {
+        return "projects/" + selectedCourseProfile.getRootFolder() + "/" + selectedProjectType.getFolder();
     }
 
     public Project getSelectedProject ()
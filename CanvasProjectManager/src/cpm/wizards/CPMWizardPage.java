@@ -1,5 +1,6 @@
 package cpm.wizards;
 
+import java.util.ArrayList;
 import org.eclipse.core.runtime.ICoreRunnable;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.jobs.Job;
@@ -17,6 +18,7 @@ import org.eclipse.swt.widgets.ProgressBar;
 import cpm.logging.CanvasProjectException;
 import cpm.logging.Log;
 import cpm.net.Canvas;
+import cpm.net.CourseEvents;
 import cpm.pages.CoursePage;
 
 /**
@@ -46,6 +48,12 @@ public abstract class CPMWizardPage<T> extends WizardPage
     /** Set to true when Cancel button is clicked */
     private boolean canceled = false;
 
+    /** Refreshes this page when the course data it shows changes, or null */
+    private CourseEvents.Listener changeListener;
+
+    /** Courses that changeListener is registered with */
+    private ArrayList<Integer> changeCourses = new ArrayList<>();
+
     /**
      * Construct page given name, description, and download message.
      */
@@ -246,6 +254,78 @@ public abstract class CPMWizardPage<T> extends WizardPage
         canceled = true;
     }
 
+    @Override
+    public void dispose ()
+    {
+        stopListening();
+        super.dispose();
+    }
+
+    /**
+     * Arranges for this page's data to be fetched again when the proxy announces a change of the kind to any of the
+     * courses. Replaces whatever the page was listening for before.
+     */
+    protected void listenForChanges (final String kind, int... courseIDs)
+    {
+        stopListening();
+        changeListener = new CourseEvents.Listener()
+        {
+            @Override
+            public void changed (int courseID, String changedKind)
+            {
+                if (changedKind.equals(kind))
+                {
+                    Display.getDefault().asyncExec(new Runnable()
+                    {
+                        @Override
+                        public void run ()
+                        {
+                            dataChanged();
+                        }
+                    });
+                }
+            }
+        };
+        for (int courseID : courseIDs)
+        {
+            CourseEvents.addListener(courseID, changeListener);
+            changeCourses.add(courseID);
+        }
+    }
+
+    /**
+     * Stops listening for changes
+     */
+    private void stopListening ()
+    {
+        for (int courseID : changeCourses)
+        {
+            CourseEvents.removeListener(courseID, changeListener);
+        }
+        changeCourses.clear();
+        changeListener = null;
+    }
+
+    /**
+     * Refreshes this page if it is showing and idle, or otherwise drops its data so that it is fetched again when
+     * the page is next shown
+     */
+    private void dataChanged ()
+    {
+        if (canceled || container == null || container.isDisposed())
+        {
+            return;
+        }
+        if (!isCurrentPage())
+        {
+            setPageData(null);
+        }
+        else if (refreshButton.isEnabled())
+        {
+            refreshData();
+        }
+    }
+
     /**
      * Get a new copy of this window's data from Canvas
      */
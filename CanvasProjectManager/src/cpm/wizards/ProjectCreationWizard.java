@@ -183,23 +183,32 @@ public class ProjectCreationWizard extends CanvasWizard
                             initJavaProjectFromZip(projectHandle, projectZipfile, tempProjectName, monitor);
                         }
 
-                        // Install formatting style if it exists
+                        // Find the format and library files, both in the root folder, with one lookup
                         checkCancel(monitor);
                         String formatFilename = courseProfile.getFormatFilename();
+                        final String libraryFilename = courseProfile.getLibraryFilename();
+                        String[] courseFileURLs = new String[2];
+                        if (formatFilename != null || libraryFilename != null)
+                        {
+                            courseFileURLs = Canvas.getCourseFileURLs(course.getCourseID(), courseProfile.getRootFolder(),
+                                    formatFilename, libraryFilename);
+                        }
+
+                        // Install formatting style if it exists
                         if (formatFilename != null)
                         {
                             monitor.setTaskName("Installing style rules");
-                            Document format = Canvas.getFormatFile(course.getCourseID(), courseProfile.getRootFolder(), formatFilename);
+                            Document format = Canvas.getFormatFile(courseFileURLs[0]);
                             checkCancel(monitor);
                             installFormattingStyle(projectHandle, format, course.getName());
                         }
 
                         // Install library if it exists
-                        final String libraryFilename = courseProfile.getLibraryFilename();
                         if (libraryFilename != null)
                         {
                             monitor.setTaskName("Installing course library");
-                            String libraryURL = Canvas.getLibraryFileURL(course.getCourseID(), courseProfile.getRootFolder(), libraryFilename);
+                            String libraryURL = courseFileURLs[1];
+                            if (libraryURL == null) throw new CanvasProjectException("Library file not found on server");
                             checkCancel(monitor);
                             final String libraryName = courseProfile.getLibraryFilename();
                             Canvas.getRequestStream(libraryURL, new StreamConsumer<Void>()
@@ -0,0 +1,136 @@
+package servlets;
+
+import utils.Batches;
+import utils.BufferedResponse;
+import utils.CanvasApi;
+import utils.Dispatch;
+import utils.FanOut;
+import utils.Metrics;
+import utils.Utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.simple.JSONArray;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Servlet for /cpm/batch, which answers a JSON array of Canvas paths with a JSON array of their responses (see
+ * utils.Batches). Each path must be one that CoursesAndFolders would relay as a GET; any other gets a 403 in its
+ * place. The bearer token is decrypted once, and the paths are fetched from Canvas in parallel.
+ */
+@SuppressWarnings("serial")
+@WebServlet(urlPatterns = "/cpm/batch", asyncSupported = true)
+public class Batch extends HttpServlet
+{
+	/**
+	 * Splits a path into the servlet path, path info and query that CoursesAndFolders would see
+	 */
+	private static Pattern pathPattern = Pattern.compile("^(/api/v1/(?:courses|folders))(/[^?]*)?(?:\\?(.*))?$");
+
+	protected void doPost(HttpServletRequest incomingRequest, HttpServletResponse incomingResponse)
+			throws ServletException, IOException
+	{
+		Dispatch.run(incomingRequest, incomingResponse, this::relayPost);
+	}
+
+	/**
+	 * Relays the sub-requests to Canvas, or takes their responses from the cache, and sends them
+	 */
+	private void relayPost(HttpServletRequest incomingRequest, HttpServletResponse incomingResponse)
+			throws ServletException, IOException
+	{
+		// The token is decrypted here once and kept for every sub-request (see Utils.getBearerToken)
+		if (Utils.getBearerToken(incomingRequest) == null)
+		{
+			incomingResponse.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+			return;
+		}
+
+		// The body must be an array of paths, not too many of them
+		JSONArray paths;
+		try (BufferedReader reader = incomingRequest.getReader())
+		{
+			Object body = new JSONParser().parse(reader);
+			if (!(body instanceof JSONArray)) throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN);
+			paths = (JSONArray) body;
+		}
+		catch (ParseException e)
+		{
+			incomingResponse.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		if (paths.size() > Batches.getMaxRequests())
+		{
+			incomingResponse.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+			return;
+		}
+
+		// Start every allowed sub-request before waiting for any of them
+		Map<String, List<String>> headers = Batches.getSharedHeaders(incomingRequest);
+		List<CompletableFuture<BufferedResponse>> futures = new ArrayList<>();
+		for (Object path : paths)
+		{
+			HttpServletRequest subRequest = toSubRequest(path, incomingRequest, headers);
+			if (subRequest == null)
+			{
+				BufferedResponse forbidden = CanvasApi.toResponse(HttpServletResponse.SC_FORBIDDEN);
+				futures.add(CompletableFuture.completedFuture(forbidden));
+			}
+			else
+			{
+				futures.add(FanOut.submit(() -> Batches.get(subRequest)));
+			}
+		}
+
+		List<BufferedResponse> responses = new ArrayList<>();
+		for (CompletableFuture<BufferedResponse> future : futures)
+		{
+			responses.add(FanOut.await(future));
+		}
+		Metrics.upstreamDone(incomingRequest);
+		Batches.send(responses, incomingRequest, incomingResponse);
+	}
+
+	/**
+	 * Returns the sub-request for the path, or null if the path isn't allowed (see split)
+	 */
+	private HttpServletRequest toSubRequest(Object path, HttpServletRequest incomingRequest,
+			Map<String, List<String>> headers)
+	{
+		String[] parts = split(path);
+		if (parts == null) return null;
+		return new Batches.SubRequest(incomingRequest, parts[0], parts[1], parts[2], headers);
+	}
+
+	/**
+	 * Returns the servlet path, path info and query, either of the last two possibly null, that CoursesAndFolders
+	 * would see for the path. Returns null if the path isn't a string, isn't a GET that CoursesAndFolders allows, or
+	 * can't be normalized safely. Tomcat normalizes the paths it hands the servlets, but these come straight from the
+	 * body, and Canvas would resolve any dot segments left in them to a path outside the allowlist.
+	 */
+	static String[] split(Object path)
+	{
+		if (!(path instanceof String)) return null;
+		String normalized = Batches.normalize((String) path);
+		if (normalized == null) return null;
+		Matcher m = pathPattern.matcher(normalized);
+		if (!m.matches()) return null;
+		String pathInfo = m.group(2);
+		if (!CoursesAndFolders.getPattern.matcher((pathInfo == null) ? "" : pathInfo).matches()) return null;
+		return new String[] { m.group(1), pathInfo, m.group(3) };
+	}
+}
@@ -0,0 +1,68 @@
+package servlets;
+
+import java.util.Arrays;
+
+/**
+ * Checks which paths /cpm/batch accepts (see Batch.split): the paths the plugin sends, and none of the paths that would
+ * reach Canvas outside the allowlist once Canvas resolved them. Prints each check and exits with status 1 if any fails.
+ *
+ * Usage: BatchPathCheck
+ *
+ * The classpath needs the jars in WEB-INF/lib plus Tomcat's servlet-api.jar.
+ */
+public class BatchPathCheck
+{
+	private static int failures = 0;
+
+	public static void main(String[] args)
+	{
+		// Paths the plugin sends, including an empty root folder
+		accepted("/api/v1/courses/12/folders/by_path/Root/Projects?per_page=100", "/api/v1/courses",
+				"/12/folders/by_path/Root/Projects", "per_page=100");
+		accepted("/api/v1/courses/12/folders/by_path//Projects?per_page=100", "/api/v1/courses",
+				"/12/folders/by_path/Projects", "per_page=100");
+		accepted("/api/v1/folders/34/folders?per_page=100", "/api/v1/folders", "/34/folders", "per_page=100");
+		accepted("/api/v1/courses", "/api/v1/courses", null, null);
+
+		// Paths that climb out of by_path or otherwise leave the allowlist
+		rejected("/api/v1/courses/1/folders/by_path/../../../../users/self");
+		rejected("/api/v1/courses/1/folders/by_path/./../../../users/self");
+		rejected("/api/v1/courses/1/folders/by_path/%2e%2e/%2E%2E/%2e%2e/%2e%2e/users/self");
+		rejected("/api/v1/courses/1/folders/by_path/..%2f..%2f..%2f..%2fusers/self");
+		rejected("/api/v1/courses/1/folders/by_path/..\\..\\..\\..\\users\\self");
+		rejected("/api/v1/courses/1/folders/by_path/x#/../../../../users/self");
+		rejected("/api/v1/courses/1/folders/by_path/x?y=#../../../../users/self");
+		rejected("/api/v1/users/self");
+		rejected("/api/v1/courses/1/users");
+		rejected("//evil.example/api/v1/courses");
+		rejected(Integer.valueOf(1));
+
+		if (failures > 0) System.exit(1);
+	}
+
+	/**
+	 * Checks that the path is accepted and split into the parts
+	 */
+	private static void accepted(String path, String servletPath, String pathInfo, String query)
+	{
+		String[] parts = Batch.split(path);
+		check("accepts " + path, Arrays.equals(parts, new String[] { servletPath, pathInfo, query }));
+	}
+
+	/**
+	 * Checks that the path is refused
+	 */
+	private static void rejected(Object path)
+	{
+		check("rejects " + path, Batch.split(path) == null);
+	}
+
+	/**
+	 * Reports the outcome of a check
+	 */
+	private static void check(String name, boolean passed)
+	{
+		System.out.println((passed ? "ok      " : "FAILED  ") + name);
+		if (!passed) failures++;
+	}
+}
@@ -0,0 +1,93 @@
+package servlets;
+
+import utils.BlobStore;
+import utils.Dispatch;
+import utils.Metrics;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet for /cpm/files, which serves a Canvas course file from the blob store, fetching it from Canvas first if
+ * necessary. Its signed URLs appear in course manifests in place of Canvas's download URLs. If the file can't be
+ * stored for any reason, the client is redirected to Canvas's download URL, as it would have been without the store.
+ */
+@SuppressWarnings("serial")
+@WebServlet(urlPatterns = "/cpm/files", asyncSupported = true)
+public class Blobs extends HttpServlet
+{
+	/**
+	 * Request attribute through which Tomcat offers to send a file itself
+	 */
+	private final static String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+
+	protected void doGet(HttpServletRequest incomingRequest, HttpServletResponse incomingResponse)
+			throws ServletException, IOException
+	{
+		// Only URLs that the proxy signed are served
+		String id = incomingRequest.getParameter("id");
+		String updatedAt = incomingRequest.getParameter("updated_at");
+		String size = incomingRequest.getParameter("size");
+		String src = incomingRequest.getParameter("src");
+		if (id == null || updatedAt == null || size == null || src == null
+				|| !BlobStore.verify(incomingRequest.getParameter("sig"), id, updatedAt, size, src))
+		{
+			incomingResponse.setStatus(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		if (!BlobStore.isEnabled())
+		{
+			incomingResponse.sendRedirect(src);
+			return;
+		}
+		Dispatch.run(incomingRequest, incomingResponse,
+				(req, rsp) -> serve(id, updatedAt, Long.parseLong(size), src, req, rsp));
+	}
+
+	/**
+	 * Sends the stored blob, or redirects to Canvas if it can't be stored
+	 */
+	private void serve(String id, String updatedAt, long size, String src, HttpServletRequest incomingRequest,
+			HttpServletResponse incomingResponse) throws ServletException, IOException
+	{
+		Path blob;
+		try
+		{
+			blob = BlobStore.open(id, updatedAt, size, src);
+		}
+		catch (IOException e)
+		{
+			getServletContext().log("Redirecting to Canvas for file " + id + ": " + e.getMessage());
+			incomingResponse.sendRedirect(src);
+			return;
+		}
+		Metrics.upstreamDone(incomingRequest);
+
+		// A blob's URL names one version of the file, so the client may keep it as long as it likes
+		incomingResponse.setStatus(HttpServletResponse.SC_OK);
+		incomingResponse.setContentType("application/octet-stream");
+		incomingResponse.setContentLengthLong(size);
+		incomingResponse.setHeader("Cache-Control", "private, max-age=31536000, immutable");
+
+		// Tomcat can send the file straight from the page cache to the socket, but only outside async mode
+		if (Boolean.TRUE.equals(incomingRequest.getAttribute(SENDFILE_SUPPORT)) && !incomingRequest.isAsyncStarted())
+		{
+			incomingRequest.setAttribute("org.apache.tomcat.sendfile.filename", blob.toAbsolutePath().toString());
+			incomingRequest.setAttribute("org.apache.tomcat.sendfile.start", 0L);
+			incomingRequest.setAttribute("org.apache.tomcat.sendfile.end", size);
+			return;
+		}
+		try (ServletOutputStream outputStream = incomingResponse.getOutputStream())
+		{
+			BlobStore.copy(blob, outputStream);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package servlets;
+
+import utils.BufferedResponse;
+import utils.CanvasApi;
+import utils.CircuitOpenException;
+import utils.Deltas;
+import utils.Dispatch;
+import utils.ETags;
+import utils.Metrics;
+import utils.ResponseCache;
+import utils.UpstreamStatusException;
+import utils.Utils;
+
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpStatus;
+
+/**
+ * Servlet for /cpm/delta/{course id}/{assignments or files}?since={version}, which sends the changes to a course
+ * listing since the version the plugin holds (see utils.Deltas). The current listing is cached per user like any
+ * other GET, and dropped early when a course change event announces a change to it.
+ */
+@SuppressWarnings("serial")
+@WebServlet(urlPatterns = "/cpm/delta/*", asyncSupported = true)
+public class CourseDelta extends HttpServlet
+{
+	/**
+	 * Allowable get requests
+	 */
+	private static Pattern getPattern = Pattern.compile("^/\\d+/(assignments|files)$");
+
+	protected void doGet(HttpServletRequest incomingRequest, HttpServletResponse incomingResponse)
+			throws ServletException, IOException
+	{
+		// Make sure the request is allowed
+		if (!Utils.requestAllowed(getPattern, incomingRequest))
+		{
+			incomingResponse.setStatus(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		Dispatch.run(incomingRequest, incomingResponse, this::relayGet);
+	}
+
+	/**
+	 * Lists the course, or takes the listing from the cache, and sends the changes since the client's version
+	 */
+	private void relayGet(HttpServletRequest incomingRequest, HttpServletResponse incomingResponse)
+			throws ServletException, IOException
+	{
+		String token = Utils.getBearerToken(incomingRequest);
+		if (token == null)
+		{
+			incomingResponse.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+			return;
+		}
+		String[] parts = incomingRequest.getPathInfo().split("/");
+		String courseID = parts[1];
+		String kind = parts[2];
+		String blobPrefix = Utils.getIncomingPrefix(incomingRequest) + "/cpm/files?";
+
+		// The listing is cached without the version, so that every client version shares it
+		String user = Utils.hashToken(token);
+		BufferedResponse listing;
+		try
+		{
+			listing = ResponseCache.get(user + " GET /cpm/delta/" + courseID + "/" + kind, incomingRequest,
+					() -> list(courseID, kind, token, blobPrefix));
+		}
+		catch (CircuitOpenException e)
+		{
+			incomingResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			incomingResponse.setHeader("Retry-After", Long.toString(e.getRetryAfterSeconds()));
+			return;
+		}
+		Metrics.upstreamDone(incomingRequest);
+
+		BufferedResponse response = (listing.getStatusCode() != HttpStatus.SC_OK) ? listing
+				: CanvasApi.toResponse(Deltas.diff(user, courseID, kind, listing.getBody(),
+						incomingRequest.getParameter("since")));
+		ETags.send(response, incomingRequest, incomingResponse);
+	}
+
+	/**
+	 * Returns a response containing the course's listing, or one with the status of whichever Canvas call failed.
+	 */
+	private BufferedResponse list(String courseID, String kind, String token, String blobPrefix) throws IOException
+	{
+		try
+		{
+			return CanvasApi.toResponse(Deltas.list(courseID, kind, token, blobPrefix));
+		}
+		catch (UpstreamStatusException e)
+		{
+			return CanvasApi.toResponse(e.getStatus());
+		}
+	}
+}
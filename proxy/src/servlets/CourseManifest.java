@@ -0,0 +1,95 @@
+package servlets;
+
+import utils.BufferedResponse;
+import utils.CanvasApi;
+import utils.CircuitOpenException;
+import utils.Dispatch;
+import utils.ETags;
+import utils.Manifests;
+import utils.Metrics;
+import utils.ResponseCache;
+import utils.UpstreamStatusException;
+import utils.Utils;
+
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet for /cpm/courses/{id}/manifest, which describes a course's CPM folder tree in one response (see
+ * utils.Manifests). The plugin would otherwise make two calls for each file it looks up. The manifest is cached per
+ * user like any other GET, since Canvas shows each user only the files they may see.
+ */
+@SuppressWarnings("serial")
+@WebServlet(urlPatterns = "/cpm/courses/*", asyncSupported = true)
+public class CourseManifest extends HttpServlet
+{
+	/**
+	 * Allowable get requests
+	 */
+	private static Pattern getPattern = Pattern.compile("^/\\d+/manifest$");
+
+	protected void doGet(HttpServletRequest incomingRequest, HttpServletResponse incomingResponse)
+			throws ServletException, IOException
+	{
+		// Make sure the request is allowed
+		if (!Utils.requestAllowed(getPattern, incomingRequest))
+		{
+			incomingResponse.setStatus(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		Dispatch.run(incomingRequest, incomingResponse, this::relayGet);
+	}
+
+	/**
+	 * Builds the manifest, or takes it from the cache, and sends it
+	 */
+	private void relayGet(HttpServletRequest incomingRequest, HttpServletResponse incomingResponse)
+			throws ServletException, IOException
+	{
+		String token = Utils.getBearerToken(incomingRequest);
+		if (token == null)
+		{
+			incomingResponse.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+			return;
+		}
+		String courseID = incomingRequest.getPathInfo().split("/")[1];
+		String blobPrefix = Utils.getIncomingPrefix(incomingRequest) + "/cpm/files?";
+
+		BufferedResponse response;
+		try
+		{
+			response = ResponseCache.get(Utils.getRequestKey(incomingRequest), incomingRequest,
+					() -> build(courseID, token, blobPrefix));
+		}
+		catch (CircuitOpenException e)
+		{
+			incomingResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			incomingResponse.setHeader("Retry-After", Long.toString(e.getRetryAfterSeconds()));
+			return;
+		}
+		Metrics.upstreamDone(incomingRequest);
+		ETags.send(response, incomingRequest, incomingResponse);
+	}
+
+	/**
+	 * Returns a response containing the course's manifest, or one with the status of whichever Canvas call failed.
+	 */
+	private BufferedResponse build(String courseID, String token, String blobPrefix) throws IOException
+	{
+		try
+		{
+			return CanvasApi.toResponse(Manifests.build(courseID, token, blobPrefix));
+		}
+		catch (UpstreamStatusException e)
+		{
+			return CanvasApi.toResponse(e.getStatus());
+		}
+	}
+}
@@ -1,5 +1,15 @@
 package servlets;
 
+import utils.AsyncRelay;
+import utils.BufferedResponse;
+import utils.CircuitOpenException;
+import utils.Dispatch;
+import utils.ETags;
+import utils.GetPolicy;
+import utils.Metrics;
+import utils.Pages;
+import utils.ResponseCache;
+import utils.Upstream;
 import utils.Utils;
 
 import java.io.IOException;
@@ -14,20 +24,18 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 
 /**
  * Servlet for access to /api/v1/courses and /api/v1/folders portiona of Canvas API
  */
 @SuppressWarnings("serial")
-@WebServlet(urlPatterns= {"/api/v1/courses/*", "/api/v1/folders/*"})
+@WebServlet(urlPatterns= {"/api/v1/courses/*", "/api/v1/folders/*"}, asyncSupported = true)
 public class CoursesAndFolders extends HttpServlet
 {
 	/**
 	 * Allowable get requests
 	 */
-	private static Pattern getPattern = 
+	static Pattern getPattern = 
 			Pattern.compile("^(() | (/\\d+/files) | (/\\d+/folders) | (/\\d+/folders/by_path/.*) |  (/\\d+/assignments))$", Pattern.COMMENTS);
 
 	protected void doGet(HttpServletRequest incomingRequest, HttpServletResponse incomingResponse)
@@ -40,20 +48,127 @@ public class CoursesAndFolders extends HttpServlet
 			return;
 		}
 
-		// Compose the request
+		Dispatch.run(incomingRequest, incomingResponse, this::relayGet);
+	}
+
+	/**
+	 * Relays an allowed get request to Canvas
+	 */
+	private void relayGet(HttpServletRequest incomingRequest, HttpServletResponse incomingResponse)
+			throws ServletException, IOException
+	{
+		// A request for every page of a listing is streamed page by page as one array, unless a fresh copy is cached.
+		// The array is cached as it goes by if it turns out small enough.
+		String key = Utils.getRequestKey(incomingRequest);
+		if (Pages.isRequested(incomingRequest))
+		{
+			String pagesKey = (key == null) ? null : key + " " + Pages.HEADER;
+			BufferedResponse cached = (pagesKey == null) ? null : ResponseCache.getFresh(pagesKey, incomingRequest);
+			if (cached != null)
+			{
+				Metrics.upstreamDone(incomingRequest);
+				ETags.send(cached, incomingRequest, incomingResponse);
+				return;
+			}
+
+			HttpGet outgoingRequest = new HttpGet();
+			Utils.mapRequestURL(outgoingRequest, incomingRequest);
+			Utils.filterRequestHeaders(outgoingRequest, incomingRequest);
+			try
+			{
+				Pages.relay(outgoingRequest, incomingRequest, incomingResponse, pagesKey);
+			}
+			catch (CircuitOpenException e)
+			{
+				BufferedResponse stale = (pagesKey == null) ? null : ResponseCache.getStale(pagesKey);
+				if (stale == null)
+				{
+					refuse(e, incomingResponse);
+					return;
+				}
+				ETags.send(stale, incomingRequest, incomingResponse);
+			}
+			return;
+		}
+
+		// Go through the cache, which also coalesces identical requests, unless the request is for part of a file.
+		// An async relay sends a cached copy at once and otherwise fetches it without holding this thread.
+		if (key != null && AsyncRelay.isEnabled())
+		{
+			BufferedResponse cached = ResponseCache.getFresh(key, incomingRequest);
+			if (cached != null)
+			{
+				Metrics.upstreamDone(incomingRequest);
+				ETags.send(cached, incomingRequest, incomingResponse);
+				return;
+			}
+			try
+			{
+				AsyncRelay.fetch(ResponseCache.miss(key, incomingRequest), incomingRequest, incomingResponse);
+			}
+			catch (CircuitOpenException e)
+			{
+				refuse(e, incomingResponse);
+			}
+			return;
+		}
+		if (key != null)
+		{
+			BufferedResponse outgoingResponse;
+			try
+			{
+				outgoingResponse = ResponseCache.get(key, incomingRequest);
+			}
+			catch (CircuitOpenException e)
+			{
+				refuse(e, incomingResponse);
+				return;
+			}
+			Metrics.upstreamDone(incomingRequest);
+			ETags.send(outgoingResponse, incomingRequest, incomingResponse);
+			return;
+		}
+
+		// Range requests are relayed as they are, and so are the 206 responses with their Content-Range and length
 		HttpGet outgoingRequest = new HttpGet();
 		Utils.mapRequestURL(outgoingRequest, incomingRequest);
 		Utils.filterRequestHeaders(outgoingRequest, incomingRequest);
+		if (AsyncRelay.isEnabled())
+		{
+			try
+			{
+				AsyncRelay.stream(outgoingRequest, incomingRequest);
+			}
+			catch (CircuitOpenException e)
+			{
+				refuse(e, incomingResponse);
+			}
+			return;
+		}
 
-		// Execute the request and compose the response
-		try (CloseableHttpClient client = HttpClients.createMinimal();
-				CloseableHttpResponse outgoingResponse = client.execute(outgoingRequest))
+		// Execute the request, retrying it if Canvas has a transient failure, and compose the response
+		try (CloseableHttpResponse outgoingResponse = GetPolicy.execute(outgoingRequest,
+				Utils.getRoute(incomingRequest)))
 		{
+			Metrics.upstreamDone(incomingRequest);
 			Utils.filterResponseHeaders(outgoingResponse, incomingResponse, incomingRequest);
 			Utils.copyResponseBody(outgoingResponse, incomingResponse);
 		}
+		catch (CircuitOpenException e)
+		{
+			refuse(e, incomingResponse);
+		}
+	}
+
+	/**
+	 * Answers a request that can't be relayed because its route's circuit is open and nothing is cached
+	 */
+	private void refuse(CircuitOpenException e, HttpServletResponse incomingResponse)
+	{
+		incomingResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		incomingResponse.setHeader("Retry-After", Long.toString(e.getRetryAfterSeconds()));
 	}
-	
+
 	/**
 	 * Allowable post requests
 	 */
@@ -70,16 +185,30 @@ public class CoursesAndFolders extends HttpServlet
 			return;
 		}
 
+		Dispatch.run(incomingRequest, incomingResponse, this::relayPost);
+	}
+
+	/**
+	 * Relays an allowed post request to Canvas
+	 */
+	private void relayPost(HttpServletRequest incomingRequest, HttpServletResponse incomingResponse)
+			throws ServletException, IOException
+	{
 		// Compose the request
 		HttpPost outgoingRequest = new HttpPost();
 		Utils.mapRequestURL(outgoingRequest, incomingRequest);
 		Utils.filterRequestHeaders(outgoingRequest, incomingRequest);
 		Utils.copyRequestBody(outgoingRequest, incomingRequest);
+		if (AsyncRelay.isEnabled())
+		{
+			AsyncRelay.stream(outgoingRequest, incomingRequest);
+			return;
+		}
 
 		// Execute the request; compose and send the response
-		try (CloseableHttpClient client = HttpClients.createMinimal();
-				CloseableHttpResponse outgoingResponse = client.execute(outgoingRequest))
+		try (CloseableHttpResponse outgoingResponse = Upstream.execute(outgoingRequest))
 		{
+			Metrics.upstreamDone(incomingRequest);
 			Utils.filterResponseHeaders(outgoingResponse, incomingResponse, incomingRequest);
 			Utils.copyResponseBody(outgoingResponse, incomingResponse);
 		}
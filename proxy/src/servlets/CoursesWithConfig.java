@@ -0,0 +1,124 @@
+package servlets;
+
+import utils.BufferedResponse;
+import utils.CanvasApi;
+import utils.CircuitOpenException;
+import utils.Dispatch;
+import utils.ETags;
+import utils.FanOut;
+import utils.Metrics;
+import utils.Projection;
+import utils.ResponseCache;
+import utils.UpstreamStatusException;
+import utils.Utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpStatus;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Servlet for /cpm/courses, which answers with the user's active courses that contain the CPM configuration file.
+ * It makes the same Canvas calls as the plugin would, one for the courses and one file search per course, but the
+ * searches go out in parallel. The answer is cached per user like any other GET.
+ */
+@SuppressWarnings("serial")
+@WebServlet(urlPatterns = "/cpm/courses", asyncSupported = true)
+public class CoursesWithConfig extends HttpServlet
+{
+	/**
+	 * Name of the configuration file that marks a CPM course
+	 */
+	private final static String CONFIG_FILE = "CPMConfig.xml";
+
+	protected void doGet(HttpServletRequest incomingRequest, HttpServletResponse incomingResponse)
+			throws ServletException, IOException
+	{
+		Dispatch.run(incomingRequest, incomingResponse, this::relayGet);
+	}
+
+	/**
+	 * Finds the courses, or takes them from the cache, and sends them
+	 */
+	private void relayGet(HttpServletRequest incomingRequest, HttpServletResponse incomingResponse)
+			throws ServletException, IOException
+	{
+		String token = Utils.getBearerToken(incomingRequest);
+		if (token == null)
+		{
+			incomingResponse.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+			return;
+		}
+
+		Set<String> fields = Projection.getFields(incomingRequest);
+
+		BufferedResponse response;
+		try
+		{
+			response = ResponseCache.get(Utils.getRequestKey(incomingRequest), incomingRequest,
+					() -> Projection.apply(find(token), fields));
+		}
+		catch (CircuitOpenException e)
+		{
+			incomingResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			incomingResponse.setHeader("Retry-After", Long.toString(e.getRetryAfterSeconds()));
+			return;
+		}
+		Metrics.upstreamDone(incomingRequest);
+		ETags.send(response, incomingRequest, incomingResponse);
+	}
+
+	/**
+	 * Returns a response listing the courses that contain exactly one configuration file, or one with the status of
+	 * whichever Canvas call failed. Courses whose files the user may not see are left out, as the plugin does.
+	 */
+	@SuppressWarnings("unchecked")
+	private BufferedResponse find(String token) throws IOException
+	{
+		JSONArray courses;
+		try
+		{
+			courses = CanvasApi.getArray("/api/v1/courses?per_page=100&enrollment_state=active", token);
+		}
+		catch (UpstreamStatusException e)
+		{
+			return CanvasApi.toResponse(e.getStatus());
+		}
+
+		// Search every course at once
+		List<CompletableFuture<JSONArray>> searches = new ArrayList<>();
+		for (Object course : courses)
+		{
+			Object id = ((JSONObject) course).get("id");
+			searches.add(FanOut.submit(() -> CanvasApi
+					.getArray("/api/v1/courses/" + id + "/files?search_term=" + CONFIG_FILE, token)));
+		}
+
+		// Keep the courses in their original order
+		JSONArray result = new JSONArray();
+		UpstreamStatusException failure = null;
+		for (int i = 0; i < courses.size(); i++)
+		{
+			try
+			{
+				if (FanOut.await(searches.get(i)).size() == 1) result.add(courses.get(i));
+			}
+			catch (UpstreamStatusException e)
+			{
+				if (e.getStatus() != HttpStatus.SC_UNAUTHORIZED && failure == null) failure = e;
+			}
+		}
+		return (failure == null) ? CanvasApi.toResponse(result) : CanvasApi.toResponse(failure.getStatus());
+	}
+}
@@ -0,0 +1,47 @@
+package servlets;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import utils.Cbor;
+import utils.Compression;
+
+/**
+ * Hands the relaying servlets a response that transcodes its body to CBOR (see Cbor) and then compresses it (see
+ * Compression), and finishes it once the servlet returns. An asynchronous relay is finished by Dispatch or, with
+ * wrappers of its own, by AsyncRelay instead, before it completes the request.
+ */
+@WebFilter(urlPatterns = { "/api/v1/*", "/login/oauth2/token", "/logException", "/cpm/*" }, asyncSupported = true)
+public class Encoding implements Filter
+{
+	public void init(FilterConfig config)
+	{
+	}
+
+	public void doFilter(ServletRequest req, ServletResponse rsp, FilterChain chain)
+			throws IOException, ServletException
+	{
+		HttpServletRequest incomingRequest = (HttpServletRequest) req;
+		HttpServletResponse incomingResponse = Cbor.wrap(incomingRequest,
+				Compression.wrap(incomingRequest, (HttpServletResponse) rsp));
+		chain.doFilter(req, incomingResponse);
+		if (!req.isAsyncStarted())
+		{
+			Cbor.finish(incomingResponse);
+			Compression.finish(incomingResponse);
+		}
+	}
+
+	public void destroy()
+	{
+	}
+}
@@ -0,0 +1,88 @@
+package servlets;
+
+import utils.CanvasApi;
+import utils.CircuitOpenException;
+import utils.CourseEvents;
+import utils.UpstreamStatusException;
+import utils.Utils;
+
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet for /cpm/events/{course id}, a stream of server-sent events that announce changes to the course's
+ * assignments, CPM folders and configuration file (see utils.CourseEvents). The stream stays open until the plugin or
+ * the proxy closes it, without holding a thread or blocking on a slow plugin.
+ */
+@SuppressWarnings("serial")
+@WebServlet(urlPatterns = "/cpm/events/*", asyncSupported = true)
+public class Events extends HttpServlet
+{
+	/**
+	 * Allowable get requests
+	 */
+	private static Pattern getPattern = Pattern.compile("^/\\d+$");
+
+	protected void doGet(HttpServletRequest incomingRequest, HttpServletResponse incomingResponse)
+			throws ServletException, IOException
+	{
+		// Make sure the request is allowed
+		if (!Utils.requestAllowed(getPattern, incomingRequest))
+		{
+			incomingResponse.setStatus(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+		String token = Utils.getBearerToken(incomingRequest);
+		if (token == null)
+		{
+			incomingResponse.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+			return;
+		}
+
+		// Only those who can see the course hear about it
+		String course = incomingRequest.getPathInfo().substring(1);
+		try
+		{
+			CanvasApi.get("/api/v1/courses/" + course, token);
+		}
+		catch (CircuitOpenException e)
+		{
+			incomingResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			incomingResponse.setHeader("Retry-After", Long.toString(e.getRetryAfterSeconds()));
+			return;
+		}
+		catch (UpstreamStatusException e)
+		{
+			// The plugin refreshes its token only when a 401 carries the challenge that Canvas sends with it
+			if (e.getStatus() == HttpServletResponse.SC_UNAUTHORIZED)
+			{
+				incomingResponse.setHeader("WWW-Authenticate", "Bearer realm=\"canvas-lms\"");
+			}
+			incomingResponse.setStatus(e.getStatus());
+			return;
+		}
+
+		// Open the stream on the container's own response, which can be written without blocking as the encoding
+		// filter's can't. Events are neither JSON nor worth compressing, so nothing is lost by going around it.
+		AsyncContext async = incomingRequest.startAsync();
+		async.setTimeout(0);
+		HttpServletResponse stream = (HttpServletResponse) async.getResponse();
+		stream.setStatus(HttpServletResponse.SC_OK);
+		stream.setContentType("text/event-stream");
+		stream.setCharacterEncoding("UTF-8");
+		stream.setHeader("Cache-Control", "no-cache");
+		if (!CourseEvents.subscribe(course, token, async))
+		{
+			stream.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			stream.setHeader("Retry-After", "60");
+			async.complete();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package servlets;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+import utils.AsyncRelay;
+import utils.Batches;
+import utils.BlobStore;
+import utils.BufferPool;
+import utils.Cbor;
+import utils.CircuitBreaker;
+import utils.Compression;
+import utils.CourseEvents;
+import utils.Deltas;
+import utils.Dispatch;
+import utils.ETags;
+import utils.Encryption;
+import utils.FanOut;
+import utils.GetPolicy;
+import utils.GraphQL;
+import utils.Limiter;
+import utils.OpsAccess;
+import utils.Pages;
+import utils.ResponseCache;
+import utils.Upstream;
+import utils.WarmUp;
+
+/**
+ * Creates the shared upstream resources when the proxy starts and releases them when it stops
+ */
+@WebListener
+public class Lifecycle implements ServletContextListener
+{
+	public void contextInitialized(ServletContextEvent event)
+	{
+		Encryption.start(event.getServletContext());
+		OpsAccess.start(event.getServletContext());
+		Upstream.start(event.getServletContext());
+		Limiter.start(event.getServletContext());
+		GetPolicy.start(event.getServletContext());
+		CircuitBreaker.start(event.getServletContext());
+		FanOut.start(event.getServletContext());
+		Pages.start(event.getServletContext());
+		ETags.start(event.getServletContext());
+		Compression.start(event.getServletContext());
+		Cbor.start(event.getServletContext());
+		BufferPool.start(event.getServletContext());
+		Dispatch.start(event.getServletContext());
+		AsyncRelay.start(event.getServletContext());
+		ResponseCache.start(event.getServletContext());
+		BlobStore.start(event.getServletContext());
+		WarmUp.start(event.getServletContext());
+		CourseEvents.start(event.getServletContext());
+		Deltas.start(event.getServletContext());
+		GraphQL.start(event.getServletContext());
+		Batches.start(event.getServletContext());
+	}
+
+	public void contextDestroyed(ServletContextEvent event)
+	{
+		CourseEvents.stop(event.getServletContext());
+		WarmUp.stop(event.getServletContext());
+		Dispatch.stop(event.getServletContext());
+		GetPolicy.stop(event.getServletContext());
+		FanOut.stop(event.getServletContext());
+		AsyncRelay.stop(event.getServletContext());
+		Upstream.stop(event.getServletContext());
+	}
+}
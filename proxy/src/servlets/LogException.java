@@ -11,18 +11,30 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.io.IOUtils;
 
+import utils.Dispatch;
+import utils.Metrics;
+
 /**
  * Servlet for logging client exceptions
  */
 @SuppressWarnings("serial")
-@WebServlet("/logException")
+@WebServlet(urlPatterns = "/logException", asyncSupported = true)
 public class LogException extends HttpServlet
 {
 	protected void doPost(HttpServletRequest req, HttpServletResponse rsp) throws ServletException, IOException
+	{
+		Dispatch.run(req, rsp, this::record);
+	}
+
+	/**
+	 * Writes the body of the request to the servlet log
+	 */
+	private void record(HttpServletRequest req, HttpServletResponse rsp) throws ServletException, IOException
 	{
 		try (BufferedReader logReader = req.getReader())
 		{			
 			String logEntry = IOUtils.toString(logReader);
+			Metrics.recordClientException(logEntry.length());
 			getServletContext().log("CLIENT " + logEntry);
 		}
 	}
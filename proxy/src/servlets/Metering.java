@@ -0,0 +1,90 @@
+package servlets;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import utils.Metrics;
+
+/**
+ * Times every request to the relaying servlets and records it in Metrics once its response is complete, which for an
+ * asynchronous relay is after the filter has returned.
+ */
+@WebFilter(urlPatterns = { "/api/v1/*", "/login/oauth2/token", "/logException", "/cpm/*" }, asyncSupported = true)
+public class Metering implements Filter
+{
+	public void init(FilterConfig config)
+	{
+	}
+
+	public void doFilter(ServletRequest req, ServletResponse rsp, FilterChain chain)
+			throws IOException, ServletException
+	{
+		HttpServletRequest incomingRequest = (HttpServletRequest) req;
+		HttpServletResponse incomingResponse = (HttpServletResponse) rsp;
+		Metrics.Exchange exchange = Metrics.begin(incomingRequest);
+		try
+		{
+			chain.doFilter(req, rsp);
+		}
+		catch (IOException | ServletException | RuntimeException e)
+		{
+			// The container will answer with an error
+			Metrics.finish(exchange, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			throw e;
+		}
+
+		if (incomingRequest.isAsyncStarted())
+		{
+			incomingRequest.getAsyncContext().addListener(new Finisher(exchange), req, rsp);
+		}
+		else
+		{
+			Metrics.finish(exchange, incomingResponse.getStatus());
+		}
+	}
+
+	public void destroy()
+	{
+	}
+
+	/**
+	 * Records an asynchronous exchange when it completes
+	 */
+	private static class Finisher implements AsyncListener
+	{
+		private final Metrics.Exchange exchange;
+
+		Finisher(Metrics.Exchange exchange)
+		{
+			this.exchange = exchange;
+		}
+
+		public void onComplete(AsyncEvent event)
+		{
+			Metrics.finish(exchange, ((HttpServletResponse) event.getSuppliedResponse()).getStatus());
+		}
+
+		public void onTimeout(AsyncEvent event)
+		{
+		}
+
+		public void onError(AsyncEvent event)
+		{
+		}
+
+		public void onStartAsync(AsyncEvent event)
+		{
+		}
+	}
+}
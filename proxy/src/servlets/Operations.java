@@ -0,0 +1,41 @@
+package servlets;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import utils.OpsAccess;
+
+/**
+ * Answers 403 to requests for the operational endpoints that OpsAccess doesn't allow
+ */
+@WebFilter(urlPatterns = { "/metrics", "/status" })
+public class Operations implements Filter
+{
+	public void init(FilterConfig config)
+	{
+	}
+
+	public void doFilter(ServletRequest req, ServletResponse rsp, FilterChain chain)
+			throws IOException, ServletException
+	{
+		if (!OpsAccess.isAllowed((HttpServletRequest) req))
+		{
+			((HttpServletResponse) rsp).setStatus(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+		chain.doFilter(req, rsp);
+	}
+
+	public void destroy()
+	{
+	}
+}
@@ -0,0 +1,25 @@
+package servlets;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import utils.Metrics;
+
+/**
+ * Servlet for exposing the proxy's metrics to Prometheus
+ */
+@SuppressWarnings("serial")
+@WebServlet("/metrics")
+public class Prometheus extends HttpServlet
+{
+	protected void doGet(HttpServletRequest req, HttpServletResponse rsp) throws ServletException, IOException
+	{
+		rsp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+		rsp.getWriter().write(Metrics.export());
+	}
+}
@@ -0,0 +1,73 @@
+package servlets;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.pool.PoolStats;
+import org.json.simple.JSONObject;
+
+import utils.AsyncRelay;
+import utils.Batches;
+import utils.BlobStore;
+import utils.BufferPool;
+import utils.Cbor;
+import utils.CircuitBreaker;
+import utils.Coalescer;
+import utils.Compression;
+import utils.CourseEvents;
+import utils.Deltas;
+import utils.ETags;
+import utils.GetPolicy;
+import utils.GraphQL;
+import utils.Limiter;
+import utils.Projection;
+import utils.ResponseCache;
+import utils.Upstream;
+import utils.WarmUp;
+
+/**
+ * Servlet for reporting the state of the proxy's shared resources
+ */
+@SuppressWarnings("serial")
+@WebServlet("/status")
+public class Status extends HttpServlet
+{
+	@SuppressWarnings("unchecked")
+	protected void doGet(HttpServletRequest req, HttpServletResponse rsp) throws ServletException, IOException
+	{
+		PoolStats stats = Upstream.getPoolStats();
+		JSONObject pool = new JSONObject();
+		pool.put("leased", stats.getLeased());
+		pool.put("pending", stats.getPending());
+		pool.put("available", stats.getAvailable());
+		pool.put("max", stats.getMax());
+
+		JSONObject status = new JSONObject();
+		status.put("pool", pool);
+		status.put("async", new JSONObject(AsyncRelay.getStats()));
+		status.put("buffers", new JSONObject(BufferPool.getStats()));
+		status.put("cache", new JSONObject(ResponseCache.getStats()));
+		status.put("coalescer", new JSONObject(Coalescer.getStats()));
+		status.put("limiter", new JSONObject(Limiter.getStats()));
+		status.put("retries", new JSONObject(GetPolicy.getStats()));
+		status.put("breakers", new JSONObject(CircuitBreaker.getStats()));
+		status.put("blobs", new JSONObject(BlobStore.getStats()));
+		status.put("warmup", new JSONObject(WarmUp.getStats()));
+		status.put("events", new JSONObject(CourseEvents.getStats()));
+		status.put("delta", new JSONObject(Deltas.getStats()));
+		status.put("projection", new JSONObject(Projection.getStats()));
+		status.put("etags", new JSONObject(ETags.getStats()));
+		status.put("compression", new JSONObject(Compression.getStats()));
+		status.put("cbor", new JSONObject(Cbor.getStats()));
+		status.put("batch", new JSONObject(Batches.getStats()));
+		status.put("graphql", new JSONObject(GraphQL.getStats()));
+
+		rsp.setContentType("application/json");
+		status.writeJSONString(rsp.getWriter());
+	}
+}
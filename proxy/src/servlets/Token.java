@@ -8,24 +8,36 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 
+import utils.AsyncRelay;
+import utils.Dispatch;
+import utils.Metrics;
+import utils.Upstream;
 import utils.Utils;
 
 /**
  * Servlet for accessing /login/oauth2/token portion of Canvas API
  */
 @SuppressWarnings("serial")
-@WebServlet("/login/oauth2/token")
+@WebServlet(urlPatterns = "/login/oauth2/token", asyncSupported = true)
 public class Token extends HttpServlet
 {
 	protected void doPost(HttpServletRequest incomingRequest, HttpServletResponse incomingResponse)
 			throws ServletException, IOException
+	{
+		Dispatch.run(incomingRequest, incomingResponse, this::relayPost);
+	}
+
+	/**
+	 * Relays a token request to Canvas
+	 */
+	private void relayPost(HttpServletRequest incomingRequest, HttpServletResponse incomingResponse)
+			throws ServletException, IOException
 	{
 		// Compose the request
 		HttpPost outgoingRequest = new HttpPost();
@@ -33,24 +45,52 @@ public class Token extends HttpServlet
 		Utils.filterRequestHeaders(outgoingRequest, incomingRequest);
 		Utils.mapRequestBody(outgoingRequest, incomingRequest);
 
+		// The response is rewritten, so it must arrive unencoded; the proxy compresses it again for the client
+		outgoingRequest.removeHeaders("Accept-Encoding");
+
 		// Execute the request and compose the response
-		try (CloseableHttpClient client = HttpClients.createMinimal();
-				CloseableHttpResponse outgoingResponse = client.execute(outgoingRequest))
+		if (AsyncRelay.isEnabled())
 		{
-			Utils.filterResponseHeaders(outgoingResponse, incomingResponse, incomingRequest);
-			if (outgoingResponse.getStatusLine().getStatusCode() == HttpStatus.SC_OK)
-			{
-				Utils.mapResponseBody(outgoingResponse, incomingResponse);
-			}
-			else
-			{
-				Utils.copyResponseBody(outgoingResponse, incomingResponse);
-			}
+			AsyncRelay.respond(outgoingRequest, incomingRequest, Token::respondPost);
+			return;
+		}
+		try (CloseableHttpResponse outgoingResponse = Upstream.execute(outgoingRequest))
+		{
+			Metrics.upstreamDone(incomingRequest);
+			respondPost(outgoingResponse, incomingRequest, incomingResponse);
+		}
+	}
+
+	/**
+	 * Relays Canvas's answer to a token request
+	 */
+	private static void respondPost(HttpResponse outgoingResponse, HttpServletRequest incomingRequest,
+			HttpServletResponse incomingResponse) throws ServletException, IOException
+	{
+		// A successful response has its tokens rewritten, which changes its length
+		boolean mapped = outgoingResponse.getStatusLine().getStatusCode() == HttpStatus.SC_OK;
+		Utils.filterResponseHeaders(outgoingResponse, incomingResponse, incomingRequest, !mapped);
+		if (mapped)
+		{
+			Utils.mapResponseBody(outgoingResponse, incomingResponse);
+		}
+		else
+		{
+			Utils.copyResponseBody(outgoingResponse, incomingResponse);
 		}
 	}
 
 	protected void doDelete(HttpServletRequest incomingRequest, HttpServletResponse incomingResponse)
 			throws ServletException, IOException
+	{
+		Dispatch.run(incomingRequest, incomingResponse, this::relayDelete);
+	}
+
+	/**
+	 * Relays a token deletion to Canvas
+	 */
+	private void relayDelete(HttpServletRequest incomingRequest, HttpServletResponse incomingResponse)
+			throws ServletException, IOException
 	{
 		// Compose the request
 		HttpDelete outgoingRequest = new HttpDelete();
@@ -58,9 +98,14 @@ public class Token extends HttpServlet
 		Utils.filterRequestHeaders(outgoingRequest, incomingRequest);
 
 		// Execute the request and compose the response
-		try (CloseableHttpClient client = HttpClients.createMinimal();
-				CloseableHttpResponse outgoingResponse = client.execute(outgoingRequest))
+		if (AsyncRelay.isEnabled())
+		{
+			AsyncRelay.stream(outgoingRequest, incomingRequest);
+			return;
+		}
+		try (CloseableHttpResponse outgoingResponse = Upstream.execute(outgoingRequest))
 		{
+			Metrics.upstreamDone(incomingRequest);
 			Utils.filterResponseHeaders(outgoingResponse, incomingResponse, incomingRequest);
 			Utils.copyResponseBody(outgoingResponse, incomingResponse);
 		}
@@ -0,0 +1,851 @@
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.BufferedHttpEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.AsyncByteConsumer;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Relays calls to Canvas without holding a thread while Canvas answers, in relay.mode "async" (see Dispatch). The
+ * incoming request is put into asynchronous mode and the outgoing one is executed by a non-blocking client with its
+ * own pool, sized by the same upstream.* parameters as Upstream's. Canvas's response is written as it arrives into the
+ * same CBOR and compression wrappers the Encoding filter uses, which here feed a spool, and a WriteListener moves the
+ * spool to the client whenever the container can take more. Reading from Canvas is suspended while the spool holds
+ * relay.spoolBytes, so a slow client holds back Canvas instead of filling memory.
+ *
+ * Calls go through Limiter and, for GETs, their route's circuit. A call over a limit is tried again after a few
+ * milliseconds, with no thread waiting, until limiter.queueMillis has passed and it is shed. Unlike the blocking path,
+ * GETs aren't retried or hedged (see GetPolicy) and identical GETs aren't coalesced (see Coalescer). Request bodies,
+ * which are small form and JSON posts, are read before the call starts.
+ */
+public class AsyncRelay
+{
+	/**
+	 * Answers a relay whose whole response has arrived
+	 */
+	public interface Responder
+	{
+		void respond(HttpResponse outgoingResponse, HttpServletRequest incomingRequest,
+				HttpServletResponse incomingResponse) throws ServletException, IOException;
+	}
+
+	/**
+	 * Client shared by all async relays
+	 */
+	private static CloseableHttpAsyncClient client;
+
+	/**
+	 * Its connection pool
+	 */
+	private static PoolingNHttpClientConnectionManager connectionManager;
+
+	/**
+	 * Retries calls that were over a limit and evicts idle connections
+	 */
+	private static ScheduledExecutorService timer;
+
+	/**
+	 * Size of the buffer each response is read into
+	 */
+	private static final int readBytes = 8192;
+
+	/**
+	 * Body bytes held for a client before reading from Canvas is suspended
+	 */
+	private static int spoolBytes = 65536;
+
+	/**
+	 * Longest wait before a call over a limit is tried again
+	 */
+	private static final long maxRetryMillis = 100;
+
+	/**
+	 * Used for logging
+	 */
+	private static ServletContext context;
+
+	/**
+	 * Relays started, relays that waited for a permit, times reading from Canvas was suspended, relays that failed,
+	 * and clients that went away
+	 */
+	private final static LongAdder relays = new LongAdder();
+	private final static LongAdder deferred = new LongAdder();
+	private final static LongAdder suspensions = new LongAdder();
+	private final static LongAdder failures = new LongAdder();
+	private final static LongAdder clientAborts = new LongAdder();
+
+	/**
+	 * Creates the client if the relay mode is async, using the upstream.* and relay.* context parameters.
+	 */
+	public static synchronized void start(ServletContext context)
+	{
+		AsyncRelay.context = context;
+		if (!Dispatch.isAsync()) return;
+
+		spoolBytes = Config.getInt(context, "relay.spoolBytes", spoolBytes);
+		int connectTimeout = Config.getInt(context, "upstream.connectTimeoutMillis", 10000);
+		int socketTimeout = Config.getInt(context, "upstream.socketTimeoutMillis", 120000);
+		long idleSeconds = Config.getLong(context, "upstream.idleSeconds", 30);
+		int ioThreads = Config.getInt(context, "relay.ioThreads", Runtime.getRuntime().availableProcessors());
+
+		IOReactorConfig reactorConfig = IOReactorConfig.custom()
+				.setIoThreadCount(ioThreads)
+				.setConnectTimeout(connectTimeout)
+				.setSoTimeout(socketTimeout)
+				.build();
+		try
+		{
+			connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(reactorConfig));
+		}
+		catch (IOReactorException e)
+		{
+			context.log("Async relay not started, relaying with blocking calls", e);
+			return;
+		}
+		connectionManager.setMaxTotal(Config.getInt(context, "upstream.maxTotal", 200));
+		connectionManager.setDefaultMaxPerRoute(Config.getInt(context, "upstream.maxPerRoute", 200));
+
+		// The same limits and the same stateless, non-redirecting client as Upstream's
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(connectTimeout)
+				.setSocketTimeout(socketTimeout)
+				.setConnectionRequestTimeout(Config.getInt(context, "upstream.leaseTimeoutMillis", 30000))
+				.setRedirectsEnabled(false)
+				.build();
+		client = HttpAsyncClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.setKeepAliveStrategy(Upstream.keepAliveStrategy)
+				.disableCookieManagement()
+				.disableAuthCaching()
+				.disableConnectionState()
+				.build();
+		client.start();
+
+		timer = Executors.newSingleThreadScheduledExecutor(r ->
+		{
+			Thread thread = new Thread(r, "proxy-async-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		PoolingNHttpClientConnectionManager manager = connectionManager;
+		timer.scheduleWithFixedDelay(() ->
+		{
+			manager.closeExpiredConnections();
+			manager.closeIdleConnections(idleSeconds, TimeUnit.SECONDS);
+		}, idleSeconds, idleSeconds, TimeUnit.SECONDS);
+
+		context.log("Async relay started: ioThreads=" + ioThreads + " spoolBytes=" + spoolBytes);
+	}
+
+	/**
+	 * Closes the client, which also closes its connections, and stops the timer.
+	 */
+	public static synchronized void stop(ServletContext context)
+	{
+		if (timer != null) timer.shutdownNow();
+		try
+		{
+			if (client != null) client.close();
+		}
+		catch (IOException e)
+		{
+			context.log("Problem closing async relay", e);
+		}
+		timer = null;
+		client = null;
+		connectionManager = null;
+	}
+
+	/**
+	 * Reports whether relays should go through here
+	 */
+	public static boolean isEnabled()
+	{
+		return client != null;
+	}
+
+	/**
+	 * Relays the outgoing request, streaming Canvas's response to the client as it arrives. A GET throws a
+	 * CircuitOpenException, before anything is sent, if its route's circuit is open.
+	 */
+	public static void stream(HttpRequestBase outgoingRequest, HttpServletRequest incomingRequest)
+			throws ServletException, IOException
+	{
+		begin(outgoingRequest, incomingRequest, allow(outgoingRequest, incomingRequest), null, null);
+	}
+
+	/**
+	 * Relays the outgoing request and has the responder answer once all of Canvas's response has arrived. A GET
+	 * throws a CircuitOpenException, before anything is sent, if its route's circuit is open.
+	 */
+	public static void respond(HttpRequestBase outgoingRequest, HttpServletRequest incomingRequest,
+			Responder responder) throws ServletException, IOException
+	{
+		begin(outgoingRequest, incomingRequest, allow(outgoingRequest, incomingRequest), responder, null);
+	}
+
+	/**
+	 * Fetches a response that wasn't cached, caches it as ResponseCache.get would, and sends it with its entity tag.
+	 * A stale copy is sent instead if the call fails or the route's circuit is open; with no copy the failure is a 502
+	 * or, for an open circuit, a CircuitOpenException.
+	 */
+	public static void fetch(ResponseCache.Miss miss, HttpServletRequest incomingRequest,
+			HttpServletResponse incomingResponse) throws ServletException, IOException
+	{
+		CircuitBreaker breaker = CircuitBreaker.forRoute(miss.getRoute());
+		try
+		{
+			breaker.allow();
+		}
+		catch (CircuitOpenException e)
+		{
+			BufferedResponse stale = miss.fail(e);
+			Metrics.upstreamDone(incomingRequest);
+			ETags.send(stale, incomingRequest, incomingResponse);
+			return;
+		}
+		begin(miss.getRequest(), incomingRequest, breaker,
+				(outgoingResponse, request, response) -> ETags.send(miss.settle(outgoingResponse), request, response),
+				miss);
+	}
+
+	/**
+	 * Returns the circuit of a GET's route once it allows the call, or null for other methods
+	 */
+	private static CircuitBreaker allow(HttpRequestBase outgoingRequest, HttpServletRequest incomingRequest)
+			throws CircuitOpenException
+	{
+		if (!(outgoingRequest instanceof HttpGet)) return null;
+		CircuitBreaker breaker = CircuitBreaker.forRoute(Utils.getRoute(incomingRequest));
+		breaker.allow();
+		return breaker;
+	}
+
+	/**
+	 * Reads the request body, releases the container thread and starts the call
+	 */
+	private static void begin(HttpRequestBase outgoingRequest, HttpServletRequest incomingRequest,
+			CircuitBreaker breaker, Responder responder, ResponseCache.Miss miss) throws IOException
+	{
+		if (outgoingRequest instanceof HttpEntityEnclosingRequestBase)
+		{
+			HttpEntityEnclosingRequestBase enclosing = (HttpEntityEnclosingRequestBase) outgoingRequest;
+			HttpEntity entity = enclosing.getEntity();
+			if (entity != null) enclosing.setEntity(new BufferedHttpEntity(entity));
+		}
+
+		// The relay has no container timeout because the client has its own, like Dispatch's
+		AsyncContext async = incomingRequest.startAsync();
+		async.setTimeout(0);
+		Exchange exchange = new Exchange(async, outgoingRequest, breaker, responder, miss);
+		exchange.clientStream.setWriteListener(exchange);
+		relays.increment();
+		exchange.execute();
+	}
+
+	/**
+	 * Returns the async pool's leased, pending, available and maximum connections, and the relay counts.
+	 */
+	public static Map<String, Number> getStats()
+	{
+		PoolingNHttpClientConnectionManager manager = connectionManager;
+		PoolStats pool = (manager == null) ? new PoolStats(0, 0, 0, 0) : manager.getTotalStats();
+		Map<String, Number> stats = new LinkedHashMap<>();
+		stats.put("leased", pool.getLeased());
+		stats.put("pending", pool.getPending());
+		stats.put("available", pool.getAvailable());
+		stats.put("max", pool.getMax());
+		stats.put("relays", relays.sum());
+		stats.put("deferred", deferred.sum());
+		stats.put("suspensions", suspensions.sum());
+		stats.put("failures", failures.sum());
+		stats.put("clientAborts", clientAborts.sum());
+		return stats;
+	}
+
+	/**
+	 * One relay: its call to Canvas, and the spool between Canvas's response and the client. The reactor thread fills
+	 * the spool; whichever thread finds it writable drains it, one thread at a time, without holding the spool's lock
+	 * while it writes.
+	 */
+	private static class Exchange implements FutureCallback<Void>, WriteListener
+	{
+		private final AsyncContext async;
+		private final HttpServletRequest incomingRequest;
+		private final HttpServletResponse incomingResponse;
+		private final ServletOutputStream clientStream;
+		private final HttpServletResponse encodedResponse;
+		private final HttpRequestBase outgoingRequest;
+		private final CircuitBreaker breaker;
+		private final Responder responder;
+		private final ResponseCache.Miss miss;
+		private final String user;
+		private final long permitDeadline;
+		private long retryMillis = 1;
+
+		/**
+		 * Touched only by the reactor thread once the call has started
+		 */
+		private HttpResponse outgoingResponse;
+		private OutputStream body;
+
+		/**
+		 * Guarded by this
+		 */
+		private Future<Void> future;
+		private Limiter.Permit permit;
+		private boolean settled;
+		private boolean aborted;
+		private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+		private int queued;
+		private IOControl suspended;
+		private boolean written;
+		private boolean ended;
+		private boolean completed;
+		private boolean draining;
+		private boolean redrain;
+
+		Exchange(AsyncContext async, HttpRequestBase outgoingRequest, CircuitBreaker breaker, Responder responder,
+				ResponseCache.Miss miss) throws IOException
+		{
+			this.async = async;
+			this.incomingRequest = (HttpServletRequest) async.getRequest();
+			this.incomingResponse = (HttpServletResponse) async.getResponse();
+			this.clientStream = incomingResponse.getOutputStream();
+			this.encodedResponse = Cbor.wrap(incomingRequest,
+					Compression.wrap(incomingRequest, new SpoolResponse(incomingResponse)));
+			this.outgoingRequest = outgoingRequest;
+			this.breaker = breaker;
+			this.responder = responder;
+			this.miss = miss;
+			this.user = Upstream.getUser(outgoingRequest);
+			this.permitDeadline = System.nanoTime() + Limiter.getQueueNanos();
+		}
+
+		/**
+		 * Starts the call once Limiter allows it, trying again later if it is over a limit
+		 */
+		void execute()
+		{
+			synchronized (this)
+			{
+				if (aborted)
+				{
+					cancelled();
+					return;
+				}
+			}
+			Limiter.Permit p = Limiter.tryAcquire(user);
+			if (p == null)
+			{
+				if (retryMillis == 1) deferred.increment();
+				ScheduledExecutorService retries = timer;
+				if (retries == null || System.nanoTime() - permitDeadline >= 0)
+				{
+					Limiter.recordShed();
+					shed();
+					return;
+				}
+				try
+				{
+					retries.schedule(this::execute, retryMillis, TimeUnit.MILLISECONDS);
+				}
+				catch (RejectedExecutionException e)
+				{
+					Limiter.recordShed();
+					shed();
+					return;
+				}
+				retryMillis = Math.min(retryMillis * 2, maxRetryMillis);
+				return;
+			}
+
+			boolean gone;
+			synchronized (this)
+			{
+				permit = p;
+				gone = aborted;
+			}
+			if (gone)
+			{
+				cancelled();
+				return;
+			}
+			try
+			{
+				Future<Void> f = client.execute(HttpAsyncMethods.create(outgoingRequest), new Consumer(), this);
+				synchronized (this)
+				{
+					future = f;
+					if (!aborted) return;
+				}
+				f.cancel(true);
+			}
+			catch (RuntimeException e)
+			{
+				failed(e);
+			}
+		}
+
+		/**
+		 * Answers a call that was over a limit for too long the way Upstream does
+		 */
+		private void shed()
+		{
+			synchronized (this)
+			{
+				settled = true;
+			}
+			if (breaker != null) breaker.cancel();
+			Upstream.ShedResponse response = new Upstream.ShedResponse();
+			try
+			{
+				received(response);
+				completed(null);
+			}
+			catch (ServletException | IOException | RuntimeException e)
+			{
+				fail(e);
+			}
+		}
+
+		/**
+		 * Gives the outcome of the call to Limiter and the circuit, once
+		 */
+		private void settle(HttpResponse response)
+		{
+			Limiter.Permit p;
+			synchronized (this)
+			{
+				if (settled) return;
+				settled = true;
+				p = permit;
+			}
+			if (p != null) p.release(response);
+			if (breaker != null) breaker.record(response != null && !GetPolicy.isFailure(response));
+		}
+
+		/**
+		 * Starts the response once Canvas's headers have arrived
+		 */
+		private void received(HttpResponse response) throws ServletException, IOException
+		{
+			settle(response);
+			Metrics.upstreamDone(incomingRequest);
+			outgoingResponse = response;
+			if (responder == null)
+			{
+				Utils.filterResponseHeaders(response, encodedResponse, incomingRequest);
+				body = encodedResponse.getOutputStream();
+			}
+			else
+			{
+				body = new ByteArrayOutputStream();
+			}
+		}
+
+		/**
+		 * Passes on a piece of Canvas's body, flushing it through the encoders since the next piece has yet to
+		 * arrive, and suspends reading once the spool is full
+		 */
+		private void received(ByteBuffer buf, IOControl ioctrl) throws IOException
+		{
+			body.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+			if (responder != null) return;
+			body.flush();
+			drain();
+			synchronized (this)
+			{
+				if (queued >= spoolBytes && !completed)
+				{
+					ioctrl.suspendInput();
+					suspended = ioctrl;
+					suspensions.increment();
+				}
+			}
+		}
+
+		/**
+		 * Finishes the response once all of Canvas's has arrived
+		 */
+		public void completed(Void result)
+		{
+			try
+			{
+				if (responder != null)
+				{
+					byte[] bytes = ((ByteArrayOutputStream) body).toByteArray();
+					BufferedResponse buffered = new BufferedResponse(outgoingResponse.getStatusLine(),
+							outgoingResponse.getAllHeaders(), bytes);
+					responder.respond(buffered.toHttpResponse(), incomingRequest, encodedResponse);
+				}
+				end();
+			}
+			catch (ServletException | IOException | RuntimeException e)
+			{
+				fail(e);
+			}
+		}
+
+		/**
+		 * Answers a call that failed with a stale copy if there is one and nothing has been sent yet, or with a 502
+		 */
+		public void failed(Exception e)
+		{
+			settle(null);
+			if (miss != null && outgoingResponse == null)
+			{
+				try
+				{
+					BufferedResponse stale = miss.fail((e instanceof IOException) ? (IOException) e : new IOException(e));
+					Metrics.upstreamDone(incomingRequest);
+					ETags.send(stale, incomingRequest, encodedResponse);
+					end();
+					return;
+				}
+				catch (IOException | RuntimeException none)
+				{
+					// No stale copy
+				}
+			}
+			fail(e);
+		}
+
+		/**
+		 * Releases the permit and circuit of a call given up on because the client went away
+		 */
+		public void cancelled()
+		{
+			Limiter.Permit p;
+			synchronized (this)
+			{
+				if (settled) return;
+				settled = true;
+				p = permit;
+			}
+			if (p != null) p.cancel();
+			if (breaker != null) breaker.cancel();
+		}
+
+		/**
+		 * Finishes the encoded body and marks the end of the spool
+		 */
+		private void end() throws IOException
+		{
+			Cbor.finish(encodedResponse);
+			Compression.finish(encodedResponse);
+			synchronized (this)
+			{
+				ended = true;
+			}
+			drain();
+		}
+
+		/**
+		 * Sends a 502 if nothing has reached the client yet, or otherwise cuts the response short
+		 */
+		private void fail(Exception e)
+		{
+			failures.increment();
+			context.log("Relay failed", e);
+			boolean untouched;
+			synchronized (this)
+			{
+				untouched = !written;
+				chunks.clear();
+				queued = 0;
+				ended = true;
+			}
+			if (untouched && !incomingResponse.isCommitted())
+			{
+				incomingResponse.reset();
+				incomingResponse.setStatus(HttpServletResponse.SC_BAD_GATEWAY);
+			}
+			drain();
+		}
+
+		/**
+		 * Queues part of the encoded body for the client
+		 */
+		synchronized void spool(byte[] b, int off, int len)
+		{
+			if (aborted || len == 0) return;
+			chunks.add(Arrays.copyOfRange(b, off, off + len));
+			queued += len;
+		}
+
+		/**
+		 * Writes the spool to the client for as long as it can take more, resumes reading from Canvas once the
+		 * spool has room, and completes the request at its end
+		 */
+		private void drain()
+		{
+			synchronized (this)
+			{
+				if (draining)
+				{
+					redrain = true;
+					return;
+				}
+				draining = true;
+			}
+			try
+			{
+				while (true)
+				{
+					boolean untouched;
+					synchronized (this)
+					{
+						if (completed)
+						{
+							draining = false;
+							return;
+						}
+						untouched = ended && !written && chunks.isEmpty();
+					}
+					if (untouched)
+					{
+						// Nothing to write, and after a reset the container no longer reports the stream ready
+						synchronized (this)
+						{
+							draining = false;
+						}
+						complete();
+						return;
+					}
+					boolean ready = clientStream.isReady();
+					byte[] chunk = null;
+					IOControl resume = null;
+					boolean finish = false;
+					synchronized (this)
+					{
+						if (ready)
+						{
+							chunk = chunks.poll();
+							if (chunk != null)
+							{
+								queued -= chunk.length;
+								written = true;
+							}
+							else
+							{
+								finish = ended;
+							}
+							if (suspended != null && queued < spoolBytes)
+							{
+								resume = suspended;
+								suspended = null;
+							}
+						}
+						if (chunk == null && !finish && resume == null)
+						{
+							// The container calls onWritePossible once it can take more, and the reactor drains
+							// again once it has more
+							if (!redrain)
+							{
+								draining = false;
+								return;
+							}
+							redrain = false;
+							continue;
+						}
+					}
+					if (resume != null) resume.requestInput();
+					if (chunk != null) clientStream.write(chunk);
+					if (finish)
+					{
+						synchronized (this)
+						{
+							draining = false;
+						}
+						complete();
+						return;
+					}
+				}
+			}
+			catch (IOException | RuntimeException e)
+			{
+				synchronized (this)
+				{
+					draining = false;
+				}
+				onError(e);
+			}
+		}
+
+		/**
+		 * Completes the request, once
+		 */
+		private void complete()
+		{
+			synchronized (this)
+			{
+				if (completed) return;
+				completed = true;
+			}
+			async.complete();
+		}
+
+		public void onWritePossible()
+		{
+			drain();
+		}
+
+		/**
+		 * Gives up on the call once the client has gone away
+		 */
+		public void onError(Throwable t)
+		{
+			Future<Void> f;
+			synchronized (this)
+			{
+				if (completed) return;
+				aborted = true;
+				f = future;
+				chunks.clear();
+				queued = 0;
+			}
+			clientAborts.increment();
+			if (f != null) f.cancel(true);
+			complete();
+		}
+
+		/**
+		 * Reads Canvas's response into the exchange as it arrives
+		 */
+		private class Consumer extends AsyncByteConsumer<Void>
+		{
+			Consumer()
+			{
+				super(readBytes);
+			}
+
+			@Override
+			protected void onResponseReceived(HttpResponse response) throws IOException
+			{
+				try
+				{
+					received(response);
+				}
+				catch (ServletException e)
+				{
+					throw new IOException(e);
+				}
+			}
+
+			@Override
+			protected void onByteReceived(ByteBuffer buf, IOControl ioctrl) throws IOException
+			{
+				received(buf, ioctrl);
+			}
+
+			@Override
+			protected Void buildResult(HttpContext context)
+			{
+				return null;
+			}
+		}
+
+		/**
+		 * The incoming response as the encoders see it: headers go to the container's response, and the body to the
+		 * spool. Closing it doesn't end the body, which the exchange does once Canvas's has all arrived.
+		 */
+		private class SpoolResponse extends HttpServletResponseWrapper
+		{
+			private final ServletOutputStream stream = new ServletOutputStream()
+			{
+				@Override
+				public void write(int b)
+				{
+					spool(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len)
+				{
+					spool(b, off, len);
+				}
+
+				@Override
+				public boolean isReady()
+				{
+					return true;
+				}
+
+				@Override
+				public void setWriteListener(WriteListener listener)
+				{
+					throw new IllegalStateException("The spool is written by the relay that owns it");
+				}
+			};
+
+			private PrintWriter writer;
+
+			SpoolResponse(HttpServletResponse incomingResponse)
+			{
+				super(incomingResponse);
+			}
+
+			@Override
+			public ServletOutputStream getOutputStream()
+			{
+				return stream;
+			}
+
+			@Override
+			public PrintWriter getWriter() throws IOException
+			{
+				if (writer == null) writer = new PrintWriter(new OutputStreamWriter(stream, getCharacterEncoding()));
+				return writer;
+			}
+
+			@Override
+			public void flushBuffer()
+			{
+				if (writer != null) writer.flush();
+			}
+		}
+	}
+}
@@ -0,0 +1,309 @@
+package utils;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpStatus;
+import org.json.simple.JSONValue;
+
+/**
+ * Batches of GETs that a client sends in one request, so that a sequence of independent calls costs one round trip.
+ * Each sub-request is answered as if it had arrived alone: through the response cache, with the client's token and
+ * headers, but without its validators, range or page aggregation. The sub-requests of a batch go to Canvas in
+ * parallel, and their responses are sent together, in order, as a JSON array of objects with each one's status, Link
+ * header and JSON body.
+ */
+public class Batches
+{
+	/**
+	 * Most sub-requests in one batch
+	 */
+	private static int maxRequests = 20;
+
+	/**
+	 * Headers of the incoming request that don't apply to its sub-requests
+	 */
+	private final static List<String> DROPPED_HEADERS = Arrays.asList("content-type", "content-length",
+			"range", "if-none-match", "if-modified-since", Pages.HEADER.toLowerCase());
+
+	/**
+	 * Counters reported by the status servlet
+	 */
+	private static final LongAdder batches = new LongAdder();
+	private static final LongAdder subRequests = new LongAdder();
+	private static final LongAdder failed = new LongAdder();
+
+	/**
+	 * Reads the batch.maxRequests context parameter.
+	 */
+	public static void start(ServletContext context)
+	{
+		maxRequests = Config.getInt(context, "batch.maxRequests", maxRequests);
+	}
+
+	/**
+	 * Returns the most sub-requests allowed in one batch
+	 */
+	public static int getMaxRequests()
+	{
+		return maxRequests;
+	}
+
+	/**
+	 * Returns a copy of the headers of the incoming request that its sub-requests share. Copying them once lets the
+	 * sub-requests run on other threads without touching the incoming request.
+	 */
+	public static Map<String, List<String>> getSharedHeaders(HttpServletRequest incomingRequest)
+	{
+		Map<String, List<String>> headers = new LinkedHashMap<>();
+		Enumeration<String> names = incomingRequest.getHeaderNames();
+		while (names.hasMoreElements())
+		{
+			String name = names.nextElement();
+			if (DROPPED_HEADERS.contains(name.toLowerCase())) continue;
+			headers.put(name.toLowerCase(), Collections.list(incomingRequest.getHeaders(name)));
+		}
+		return headers;
+	}
+
+	/**
+	 * Returns the path, whose query is left as it is, with runs of slashes merged as Tomcat merges them. Returns null
+	 * if the path has a fragment, a backslash, a "." or ".." segment, or a percent-encoded dot, slash or backslash,
+	 * any of which could take it somewhere other than where it seems to go.
+	 */
+	public static String normalize(String path)
+	{
+		int index = path.indexOf('?');
+		String query = (index < 0) ? "" : path.substring(index);
+		path = (index < 0) ? path : path.substring(0, index);
+		if (path.indexOf('#') >= 0 || query.indexOf('#') >= 0 || path.indexOf('\\') >= 0) return null;
+		String lower = path.toLowerCase();
+		if (lower.contains("%2e") || lower.contains("%2f") || lower.contains("%5c")) return null;
+
+		path = path.replaceAll("/{2,}", "/");
+		for (String segment : path.split("/"))
+		{
+			if (segment.equals(".") || segment.equals("..")) return null;
+		}
+		return path + query;
+	}
+
+	/**
+	 * Returns the response to the sub-request, from the cache or from Canvas. A sub-request that can't be answered
+	 * gets a 502, or a 503 if its route's circuit is open.
+	 */
+	public static BufferedResponse get(HttpServletRequest subRequest) throws IOException
+	{
+		subRequests.increment();
+		try
+		{
+			return ResponseCache.get(Utils.getRequestKey(subRequest), subRequest);
+		}
+		catch (CircuitOpenException e)
+		{
+			failed.increment();
+			return CanvasApi.toResponse(HttpStatus.SC_SERVICE_UNAVAILABLE);
+		}
+		catch (ServletException | IOException e)
+		{
+			failed.increment();
+			return CanvasApi.toResponse(HttpStatus.SC_BAD_GATEWAY);
+		}
+	}
+
+	/**
+	 * Sends the responses to the sub-requests of the incoming request, in order, as the body of a successful response.
+	 * Only JSON bodies are sent; any other body is sent as null.
+	 */
+	public static void send(List<BufferedResponse> responses, HttpServletRequest incomingRequest,
+			HttpServletResponse incomingResponse) throws IOException
+	{
+		batches.increment();
+		String incomingPrefix = Utils.getIncomingPrefix(incomingRequest);
+		incomingResponse.setStatus(HttpServletResponse.SC_OK);
+		incomingResponse.setContentType("application/json; charset=utf-8");
+		Writer out = new OutputStreamWriter(incomingResponse.getOutputStream(), StandardCharsets.UTF_8);
+		out.write('[');
+		for (int i = 0; i < responses.size(); i++)
+		{
+			BufferedResponse response = responses.get(i);
+			if (i > 0) out.write(',');
+			out.write("{\"status\":");
+			out.write(Integer.toString(response.getStatusCode()));
+			String link = response.getHeader("Link");
+			if (link != null)
+			{
+				out.write(",\"link\":\"");
+				out.write(JSONValue.escape(Utils.adjustLink("Link", link, incomingPrefix)));
+				out.write('"');
+			}
+			out.write(",\"body\":");
+			String type = response.getHeader("Content-Type");
+			if (type != null && type.toLowerCase().startsWith("application/json") && response.getBody().length > 0)
+			{
+				out.write(new String(response.getBody(), StandardCharsets.UTF_8));
+			}
+			else
+			{
+				out.write("null");
+			}
+			out.write('}');
+		}
+		out.write(']');
+		out.close();
+	}
+
+	/**
+	 * A GET of a Canvas path made on behalf of the incoming request that carried it in a batch
+	 */
+	public static class SubRequest extends HttpServletRequestWrapper
+	{
+		private final String servletPath;
+		private final String pathInfo;
+		private final String query;
+		private final Map<String, List<String>> headers;
+
+		/**
+		 * The query's parameters, decoded
+		 */
+		private final Map<String, List<String>> parameters = new LinkedHashMap<>();
+
+		/**
+		 * Makes the sub-request for a path, which is made of the servlet path and path info, and query, which may be
+		 * null. The headers are those that getSharedHeaders returned.
+		 */
+		public SubRequest(HttpServletRequest incomingRequest, String servletPath, String pathInfo, String query,
+				Map<String, List<String>> headers)
+		{
+			super(incomingRequest);
+			this.servletPath = servletPath;
+			this.pathInfo = pathInfo;
+			this.query = query;
+			this.headers = headers;
+			if (query == null) return;
+			for (String pair : query.split("&"))
+			{
+				int index = pair.indexOf('=');
+				String name = decode((index < 0) ? pair : pair.substring(0, index));
+				String value = (index < 0) ? "" : decode(pair.substring(index + 1));
+				if (!parameters.containsKey(name)) parameters.put(name, new ArrayList<>());
+				parameters.get(name).add(value);
+			}
+		}
+
+		@Override
+		public String getMethod()
+		{
+			return "GET";
+		}
+
+		@Override
+		public String getServletPath()
+		{
+			return servletPath;
+		}
+
+		@Override
+		public String getPathInfo()
+		{
+			return pathInfo;
+		}
+
+		@Override
+		public String getQueryString()
+		{
+			return query;
+		}
+
+		@Override
+		public String getRequestURI()
+		{
+			return getContextPath() + servletPath + ((pathInfo == null) ? "" : pathInfo);
+		}
+
+		@Override
+		public String getHeader(String name)
+		{
+			List<String> values = headers.get(name.toLowerCase());
+			return (values == null || values.isEmpty()) ? null : values.get(0);
+		}
+
+		@Override
+		public Enumeration<String> getHeaders(String name)
+		{
+			List<String> values = headers.get(name.toLowerCase());
+			return Collections.enumeration((values == null) ? Collections.<String> emptyList() : values);
+		}
+
+		@Override
+		public Enumeration<String> getHeaderNames()
+		{
+			return Collections.enumeration(headers.keySet());
+		}
+
+		@Override
+		public String getParameter(String name)
+		{
+			List<String> values = parameters.get(name);
+			return (values == null) ? null : values.get(0);
+		}
+
+		@Override
+		public String[] getParameterValues(String name)
+		{
+			List<String> values = parameters.get(name);
+			return (values == null) ? null : values.toArray(new String[values.size()]);
+		}
+
+		@Override
+		public Enumeration<String> getParameterNames()
+		{
+			return Collections.enumeration(parameters.keySet());
+		}
+
+		/**
+		 * Decodes a part of a query
+		 */
+		private static String decode(String text)
+		{
+			try
+			{
+				return URLDecoder.decode(text, "UTF-8");
+			}
+			catch (UnsupportedEncodingException | IllegalArgumentException e)
+			{
+				return text;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of batches answered, sub-requests made and sub-requests that failed.
+	 */
+	public static Map<String, Number> getStats()
+	{
+		Map<String, Number> stats = new LinkedHashMap<>();
+		stats.put("batches", batches.sum());
+		stats.put("subRequests", subRequests.sum());
+		stats.put("failed", failed.sum());
+		return stats;
+	}
+}
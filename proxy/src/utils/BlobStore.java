@@ -0,0 +1,425 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.ServletContext;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * On-disk store of Canvas course files, so that the starter projects, libraries and verification jars that a whole
+ * class downloads at once are fetched from Canvas only once. A blob is named by a hash of its Canvas file ID, its
+ * updated_at time and its size, so a file that changes in Canvas gets a new blob and the old one is never served.
+ * Blobs are evicted in least recently used order to keep the store within its disk quota.
+ *
+ * Course manifests point at the store through signed URLs, since the Canvas download URL they carry lets anyone who
+ * holds it fetch the file, just as Canvas's own verifier does.
+ */
+public class BlobStore
+{
+	/**
+	 * Whether manifests point at the store
+	 */
+	private static boolean enabled;
+
+	/**
+	 * Directory that holds the blobs
+	 */
+	private static Path dir;
+
+	/**
+	 * Most bytes of disk that blobs may use
+	 */
+	private static long maxBytes;
+
+	/**
+	 * Largest file that will be stored
+	 */
+	private static long maxBlobBytes;
+
+	/**
+	 * Sizes of blobs by name, in least to most recently used order. Guarded by its own monitor, which is never held
+	 * during I/O.
+	 */
+	private static final LinkedHashMap<String, Long> blobs = new LinkedHashMap<>(256, 0.75f, true);
+
+	/**
+	 * Bytes of disk used by blobs
+	 */
+	private static long bytes;
+
+	/**
+	 * Blobs being fetched from Canvas, by name
+	 */
+	private static final ConcurrentHashMap<String, CompletableFuture<Path>> filling = new ConcurrentHashMap<>();
+
+	/**
+	 * Key that signs blob URLs
+	 */
+	private static final SecretKeySpec signingKey;
+
+	/**
+	 * Counters reported by the status servlet
+	 */
+	private static final LongAdder hits = new LongAdder();
+	private static final LongAdder misses = new LongAdder();
+	private static final LongAdder evictions = new LongAdder();
+
+	static
+	{
+		// Derived from the encryption key so that signed URLs survive a restart without another secret to manage
+		try
+		{
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(Hex.decodeHex(Secrets.AES_KEY.toCharArray()), "HmacSHA256"));
+			signingKey = new SecretKeySpec(mac.doFinal("blob urls".getBytes(StandardCharsets.UTF_8)), "HmacSHA256");
+		}
+		catch (GeneralSecurityException | DecoderException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Reads the blobs.* context parameters and indexes the blobs already on disk, oldest first.
+	 */
+	public static synchronized void start(ServletContext context)
+	{
+		enabled = Boolean.parseBoolean(Config.getString(context, "blobs.enabled", "false"));
+		maxBytes = Config.getLong(context, "blobs.maxBytes", 1024L * 1024 * 1024);
+		maxBlobBytes = Config.getLong(context, "blobs.maxBlobBytes", 100L * 1024 * 1024);
+		File tempDir = (File) context.getAttribute(ServletContext.TEMPDIR);
+		String defaultDir = new File((tempDir == null) ? new File(System.getProperty("java.io.tmpdir")) : tempDir,
+				"blobs").getPath();
+		dir = Paths.get(Config.getString(context, "blobs.dir", defaultDir));
+		if (!enabled) return;
+
+		List<Path> found = new ArrayList<>();
+		try
+		{
+			Files.createDirectories(dir);
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir))
+			{
+				for (Path path : stream)
+				{
+					// Partial downloads from before a restart are useless
+					if (path.getFileName().toString().endsWith(".part"))
+					{
+						Files.deleteIfExists(path);
+					}
+					else
+					{
+						found.add(path);
+					}
+				}
+			}
+			found.sort((a, b) -> getLastModified(a).compareTo(getLastModified(b)));
+		}
+		catch (IOException e)
+		{
+			context.log("Blob store disabled: can't use " + dir, e);
+			enabled = false;
+			return;
+		}
+
+		synchronized (blobs)
+		{
+			blobs.clear();
+			bytes = 0;
+			for (Path path : found)
+			{
+				long size = path.toFile().length();
+				blobs.put(path.getFileName().toString(), size);
+				bytes += size;
+			}
+		}
+		evict();
+		context.log("Blob store started: dir=" + dir + " found=" + found.size() + " maxBytes=" + maxBytes);
+	}
+
+	/**
+	 * Reports whether manifests should point at the store
+	 */
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Returns the query string of a blob URL for the Canvas file, which a download servlet can hand back to open().
+	 * Returns null if the file is too large to store or the URL can't be signed.
+	 */
+	public static String getQuery(Object id, Object updatedAt, Object size, String url)
+	{
+		if (!(size instanceof Number) || ((Number) size).longValue() > maxBlobBytes) return null;
+		String[] parts = { String.valueOf(id), String.valueOf(updatedAt), size.toString(), url };
+		StringBuilder query = new StringBuilder();
+		String[] names = { "id", "updated_at", "size", "src" };
+		for (int i = 0; i < parts.length; i++)
+		{
+			try
+			{
+				query.append(names[i]).append('=').append(URLEncoder.encode(parts[i], "UTF-8")).append('&');
+			}
+			catch (UnsupportedEncodingException e)
+			{
+				return null;
+			}
+		}
+		return query.append("sig=").append(sign(parts)).toString();
+	}
+
+	/**
+	 * Reports whether sig is the signature of the parts of a blob URL
+	 */
+	public static boolean verify(String sig, String id, String updatedAt, String size, String url)
+	{
+		return sig != null && MessageDigest.isEqual(sig.getBytes(StandardCharsets.US_ASCII),
+				sign(new String[] { id, updatedAt, size, url }).getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Returns the stored blob of the Canvas file, fetching it from the download URL first if it isn't stored yet.
+	 * Identical concurrent fetches share one download. Throws an IOException if the file can't be fetched or isn't
+	 * the expected size.
+	 */
+	public static Path open(String id, String updatedAt, long size, String url) throws IOException
+	{
+		String name = getName(id, updatedAt, size);
+		Path path = dir.resolve(name);
+		boolean stored;
+		synchronized (blobs)
+		{
+			stored = blobs.get(name) != null;
+		}
+		if (stored)
+		{
+			hits.increment();
+			touch(path);
+			return path;
+		}
+		misses.increment();
+
+		CompletableFuture<Path> mine = new CompletableFuture<>();
+		CompletableFuture<Path> existing = filling.putIfAbsent(name, mine);
+		if (existing != null) return await(existing);
+		try
+		{
+			fill(name, path, size, url);
+			mine.complete(path);
+			return path;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			mine.completeExceptionally(e);
+			throw e;
+		}
+		finally
+		{
+			filling.remove(name, mine);
+		}
+	}
+
+	/**
+	 * Copies the blob to out. The bytes pass through a heap buffer on their way to the servlet's stream, so this is
+	 * only for responses that Tomcat can't send with sendfile (see servlets.Blobs).
+	 */
+	public static void copy(Path path, OutputStream out) throws IOException
+	{
+		Files.copy(path, out);
+	}
+
+	/**
+	 * Downloads the file into a temporary file that is renamed into place once it is complete, then evicts blobs until
+	 * the store fits in maxBytes.
+	 */
+	private static void fill(String name, Path path, long size, String url) throws IOException
+	{
+		Path part = Files.createTempFile(dir, name, ".part");
+		try
+		{
+			long copied;
+			try (OutputStream out = Files.newOutputStream(part))
+			{
+				copied = CanvasApi.download(url, out, size);
+			}
+			if (copied != size) throw new IOException("Expected " + size + " bytes but got " + copied + ": " + url);
+			Files.move(part, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally
+		{
+			Files.deleteIfExists(part);
+		}
+
+		synchronized (blobs)
+		{
+			Long old = blobs.put(name, size);
+			if (old != null) bytes -= old;
+			bytes += size;
+		}
+		evict();
+	}
+
+	/**
+	 * Deletes least recently used blobs until the store fits in maxBytes. The most recently used blob is never
+	 * deleted, since it may be about to be served. A blob that is being copied when it is deleted is still copied
+	 * whole, since its file stays open.
+	 */
+	private static void evict()
+	{
+		List<String> victims = new ArrayList<>();
+		synchronized (blobs)
+		{
+			Iterator<Map.Entry<String, Long>> iterator = blobs.entrySet().iterator();
+			while (bytes > maxBytes && blobs.size() > 1 && iterator.hasNext())
+			{
+				Map.Entry<String, Long> eldest = iterator.next();
+				bytes -= eldest.getValue();
+				victims.add(eldest.getKey());
+				iterator.remove();
+				evictions.increment();
+			}
+		}
+		for (String victim : victims)
+		{
+			try
+			{
+				Files.deleteIfExists(dir.resolve(victim));
+			}
+			catch (IOException e)
+			{
+				// The file is already out of the index, so it will be deleted at the next start
+			}
+		}
+	}
+
+	/**
+	 * Waits for another request's download of the blob, rethrowing whatever it failed with.
+	 */
+	private static Path await(CompletableFuture<Path> future) throws IOException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for a blob");
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Returns the name of the blob of a version of a Canvas file
+	 */
+	private static String getName(String id, String updatedAt, long size)
+	{
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			String version = id + "\n" + updatedAt + "\n" + size;
+			return Hex.encodeHexString(digest.digest(version.getBytes(StandardCharsets.UTF_8)));
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the hex HMAC of the parts of a blob URL
+	 */
+	private static String sign(String[] parts)
+	{
+		try
+		{
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(signingKey);
+			return Hex.encodeHexString(mac.doFinal(String.join("\n", parts).getBytes(StandardCharsets.UTF_8)));
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Marks the blob as recently used on disk, so that the order survives a restart.
+	 */
+	private static void touch(Path path)
+	{
+		try
+		{
+			Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+		}
+		catch (IOException e)
+		{
+			// Only the order after a restart suffers
+		}
+	}
+
+	/**
+	 * Returns when the file was last modified, or the epoch if that can't be read.
+	 */
+	private static FileTime getLastModified(Path path)
+	{
+		try
+		{
+			return Files.getLastModifiedTime(path);
+		}
+		catch (IOException e)
+		{
+			return FileTime.fromMillis(0);
+		}
+	}
+
+	/**
+	 * Returns hits, misses, evictions, blob count and disk use.
+	 */
+	public static Map<String, Number> getStats()
+	{
+		Map<String, Number> stats = new LinkedHashMap<>();
+		stats.put("hits", hits.sum());
+		stats.put("misses", misses.sum());
+		stats.put("evictions", evictions.sum());
+		synchronized (blobs)
+		{
+			stats.put("blobs", blobs.size());
+			stats.put("bytes", bytes);
+		}
+		stats.put("maxBytes", maxBytes);
+		return stats;
+	}
+}
@@ -0,0 +1,78 @@
+package utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.ServletContext;
+
+/**
+ * Pool of buffers used to relay bodies, so that each relay uses a constant amount of memory that is allocated once
+ * rather than per request. They are heap arrays because the streams they are read from and written to take arrays.
+ */
+public class BufferPool
+{
+	/**
+	 * Size of each buffer
+	 */
+	private static int bufferBytes = 64 * 1024;
+
+	/**
+	 * Idle buffers
+	 */
+	private static BlockingQueue<byte[]> idle = new ArrayBlockingQueue<>(256);
+
+	/**
+	 * Counters reported by the status servlet
+	 */
+	private static final LongAdder allocations = new LongAdder();
+	private static final LongAdder borrows = new LongAdder();
+
+	/**
+	 * Reads the relay.bufferBytes and relay.pooledBuffers context parameters.
+	 */
+	public static synchronized void start(ServletContext context)
+	{
+		bufferBytes = Config.getInt(context, "relay.bufferBytes", bufferBytes);
+		idle = new ArrayBlockingQueue<>(Config.getInt(context, "relay.pooledBuffers", 256));
+	}
+
+	/**
+	 * Returns a buffer, which should be given back with release.
+	 */
+	public static byte[] borrow()
+	{
+		borrows.increment();
+		byte[] buffer = idle.poll();
+		if (buffer == null)
+		{
+			allocations.increment();
+			buffer = new byte[bufferBytes];
+		}
+		return buffer;
+	}
+
+	/**
+	 * Returns a borrowed buffer to the pool. If the pool is full the buffer is left for the garbage collector.
+	 */
+	public static void release(byte[] buffer)
+	{
+		if (buffer.length != bufferBytes) return;
+		idle.offer(buffer);
+	}
+
+	/**
+	 * Returns the buffer size, the number of buffers borrowed and allocated, and the number idle.
+	 */
+	public static Map<String, Number> getStats()
+	{
+		Map<String, Number> stats = new LinkedHashMap<>();
+		stats.put("bufferBytes", bufferBytes);
+		stats.put("borrows", borrows.sum());
+		stats.put("allocations", allocations.sum());
+		stats.put("idle", idle.size());
+		return stats;
+	}
+}
@@ -0,0 +1,162 @@
+package utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * A response from Canvas that has been read completely into memory so that it can be kept and relayed more than once
+ */
+public class BufferedResponse
+{
+	/**
+	 * Status line of the response
+	 */
+	private final StatusLine statusLine;
+
+	/**
+	 * Headers of the response
+	 */
+	private final Header[] headers;
+
+	/**
+	 * Body of the response
+	 */
+	private final byte[] body;
+
+	/**
+	 * Strong entity tag of the body, computed when first needed
+	 */
+	private volatile String strongETag;
+
+	/**
+	 * Creates a BufferedResponse
+	 */
+	public BufferedResponse(StatusLine statusLine, Header[] headers, byte[] body)
+	{
+		this.statusLine = statusLine;
+		this.headers = headers;
+		this.body = body;
+	}
+
+	/**
+	 * Reads all of the outgoing response into a BufferedResponse.
+	 */
+	public static BufferedResponse read(HttpResponse outgoingResponse) throws IOException
+	{
+		byte[] body = (outgoingResponse.getEntity() == null) ? new byte[0]
+				: EntityUtils.toByteArray(outgoingResponse.getEntity());
+		return new BufferedResponse(outgoingResponse.getStatusLine(), outgoingResponse.getAllHeaders(), body);
+	}
+
+	/**
+	 * Returns the status line
+	 */
+	public StatusLine getStatusLine()
+	{
+		return statusLine;
+	}
+
+	/**
+	 * Returns the status code
+	 */
+	public int getStatusCode()
+	{
+		return statusLine.getStatusCode();
+	}
+
+	/**
+	 * Returns the value of the first header with the given name, or null if there is none.
+	 */
+	public String getHeader(String name)
+	{
+		for (Header h : headers)
+		{
+			if (h.getName().equalsIgnoreCase(name)) return h.getValue();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the headers
+	 */
+	public Header[] getHeaders()
+	{
+		return headers;
+	}
+
+	/**
+	 * Returns the body, which must not be modified
+	 */
+	public byte[] getBody()
+	{
+		return body;
+	}
+
+	/**
+	 * Returns the strong entity tag of the body (see ETags). Since the body never changes, it is computed only once.
+	 */
+	public String getStrongETag()
+	{
+		String etag = strongETag;
+		if (etag == null)
+		{
+			etag = ETags.compute(body);
+			strongETag = etag;
+		}
+		return etag;
+	}
+
+	/**
+	 * Returns the approximate number of bytes of memory used
+	 */
+	public long getSize()
+	{
+		long size = body.length;
+		for (Header h : headers)
+		{
+			size += h.getName().length() + h.getValue().length();
+		}
+		return size;
+	}
+
+	/**
+	 * Returns a copy of this response with the given headers, which replace any of the same names.
+	 */
+	public BufferedResponse withHeaders(Header... replacements)
+	{
+		List<Header> combined = new ArrayList<>();
+		for (Header h : headers)
+		{
+			boolean replaced = false;
+			for (Header r : replacements)
+			{
+				replaced |= r.getName().equalsIgnoreCase(h.getName());
+			}
+			if (!replaced) combined.add(h);
+		}
+		combined.addAll(Arrays.asList(replacements));
+		return new BufferedResponse(statusLine, combined.toArray(new Header[combined.size()]), body);
+	}
+
+	/**
+	 * Returns a fresh HttpResponse that can be passed to the Utils methods that relay responses.
+	 */
+	public HttpResponse toHttpResponse()
+	{
+		BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, statusLine.getStatusCode(),
+				statusLine.getReasonPhrase());
+		response.setHeaders(headers);
+		response.setEntity(new ByteArrayEntity(body));
+		return response;
+	}
+}
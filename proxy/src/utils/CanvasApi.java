@@ -0,0 +1,172 @@
+package utils;
+
+import static utils.RemoteServer.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONAware;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Calls that the proxy makes to Canvas on a user's behalf to build its composite responses, as opposed to relaying
+ * the user's own requests. Each call carries only the user's decrypted token and goes through GetPolicy like any
+ * other GET.
+ */
+public class CanvasApi
+{
+	/**
+	 * Most redirects followed by a download
+	 */
+	private final static int MAX_REDIRECTS = 5;
+
+	/**
+	 * Returns every element of the JSON array at the Canvas path, following rel="next" links. Throws an
+	 * UpstreamStatusException if Canvas answers with anything but 200.
+	 */
+	@SuppressWarnings("unchecked")
+	public static JSONArray getArray(String pathAndQuery, String token) throws IOException
+	{
+		URI next = URI.create(OUTGOING_PREFIX + pathAndQuery);
+		String route = Utils.getRoute(next.getPath());
+		JSONArray result = new JSONArray();
+		while (next != null)
+		{
+			HttpGet outgoingRequest = newGet(next, token);
+			try (CloseableHttpResponse outgoingResponse = GetPolicy.execute(outgoingRequest, route))
+			{
+				Object page = parse(outgoingResponse);
+				if (!(page instanceof JSONArray)) throw new IOException("Expected a JSON array from " + route);
+				result.addAll((JSONArray) page);
+				next = Pages.getLinks(outgoingResponse, outgoingRequest.getURI()).get("next");
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the JSON at the Canvas path. Throws an UpstreamStatusException if Canvas answers with anything but 200.
+	 */
+	public static Object get(String pathAndQuery, String token) throws IOException
+	{
+		URI uri = URI.create(OUTGOING_PREFIX + pathAndQuery);
+		try (CloseableHttpResponse outgoingResponse = GetPolicy.execute(newGet(uri, token),
+				Utils.getRoute(uri.getPath())))
+		{
+			return parse(outgoingResponse);
+		}
+	}
+
+	/**
+	 * Returns the contents of a file at a Canvas download URL, as below, if it is no longer than maxBytes.
+	 */
+	public static byte[] download(String url, int maxBytes) throws IOException
+	{
+		ByteArrayOutputStream contents = new ByteArrayOutputStream();
+		download(url, contents, maxBytes);
+		return contents.toByteArray();
+	}
+
+	/**
+	 * Copies the contents of a file at a Canvas download URL, which carries its own verifier and so needs no token, to
+	 * out. Redirects to wherever Canvas keeps the file are followed, but only over https. Throws an IOException once
+	 * more than maxBytes have been copied. Returns the number of bytes copied.
+	 */
+	public static long download(String url, OutputStream out, long maxBytes) throws IOException
+	{
+		URI uri = URI.create(url);
+		if (!OUTGOING_HOST.equals(uri.getHost())) throw new IOException("Not a Canvas download URL: " + url);
+		for (int redirects = 0; redirects <= MAX_REDIRECTS; redirects++)
+		{
+			try (CloseableHttpResponse outgoingResponse = Upstream.execute(new HttpGet(uri)))
+			{
+				int status = outgoingResponse.getStatusLine().getStatusCode();
+				Header location = outgoingResponse.getFirstHeader("Location");
+				if (status >= 300 && status < 400 && location != null)
+				{
+					uri = uri.resolve(location.getValue());
+					if (!"https".equals(uri.getScheme())) throw new IOException("Insecure redirect to " + uri);
+					continue;
+				}
+				if (status != HttpStatus.SC_OK) throw new UpstreamStatusException(status);
+
+				long total = 0;
+				try (InputStream in = outgoingResponse.getEntity().getContent())
+				{
+					byte[] buffer = new byte[8192];
+					int count;
+					while ((count = in.read(buffer)) > 0)
+					{
+						total += count;
+						if (total > maxBytes) throw new IOException("File too long: " + url);
+						out.write(buffer, 0, count);
+					}
+				}
+				return total;
+			}
+		}
+		throw new IOException("Too many redirects: " + url);
+	}
+
+	/**
+	 * Returns a successful response whose body is the JSON value
+	 */
+	public static BufferedResponse toResponse(JSONAware value)
+	{
+		return new BufferedResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"),
+				new BasicHeader[] { new BasicHeader("Content-Type", "application/json; charset=utf-8") },
+				value.toJSONString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Returns an empty response with the status
+	 */
+	public static BufferedResponse toResponse(int status)
+	{
+		return new BufferedResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, status, null), new BasicHeader[0],
+				new byte[0]);
+	}
+
+	/**
+	 * Returns a GET of the URI that carries the user's token
+	 */
+	private static HttpGet newGet(URI uri, String token)
+	{
+		HttpGet outgoingRequest = new HttpGet(uri);
+		outgoingRequest.addHeader("Authorization", "Bearer " + token);
+		outgoingRequest.addHeader("Accept", "application/json");
+		return outgoingRequest;
+	}
+
+	/**
+	 * Parses the body of a successful response
+	 */
+	private static Object parse(CloseableHttpResponse outgoingResponse) throws IOException
+	{
+		int status = outgoingResponse.getStatusLine().getStatusCode();
+		if (status != HttpStatus.SC_OK) throw new UpstreamStatusException(status);
+		try (Reader reader = new InputStreamReader(outgoingResponse.getEntity().getContent(), StandardCharsets.UTF_8))
+		{
+			return new JSONParser().parse(reader);
+		}
+		catch (ParseException e)
+		{
+			throw new IOException("Malformed JSON from Canvas", e);
+		}
+	}
+}
@@ -0,0 +1,563 @@
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Sends successful JSON responses as CBOR (RFC 7049) to clients that prefer it, which they say by accepting
+ * application/cbor with at least the quality they give application/json. Decoding CBOR needs no text scanning or
+ * number parsing, so the plugin can read large listings straight into its own objects. The JSON is transcoded byte by
+ * byte as the servlet writes it: arrays and objects become indefinite-length arrays and maps, so nothing need be held
+ * back to learn their sizes, and strings keep their UTF-8 bytes.
+ */
+public class Cbor
+{
+	/**
+	 * Media type of CBOR bodies
+	 */
+	public static final String CONTENT_TYPE = "application/cbor";
+
+	/**
+	 * Whether responses are transcoded at all
+	 */
+	private static boolean enabled = true;
+
+	/**
+	 * Counters reported by the status servlet
+	 */
+	private static final LongAdder transcoded = new LongAdder();
+	private static final LongAdder bytesIn = new LongAdder();
+	private static final LongAdder bytesOut = new LongAdder();
+
+	/**
+	 * Reads the cbor.enabled context parameter.
+	 */
+	public static void start(ServletContext context)
+	{
+		enabled = Boolean.parseBoolean(Config.getString(context, "cbor.enabled", "true"));
+	}
+
+	/**
+	 * Returns the incoming response wrapped so that a JSON body is sent as CBOR if the incoming request prefers it, or
+	 * the response itself if transcoding is disabled.
+	 */
+	public static HttpServletResponse wrap(HttpServletRequest incomingRequest, HttpServletResponse incomingResponse)
+	{
+		if (!enabled) return incomingResponse;
+		return new CborResponse(incomingResponse, prefersCbor(incomingRequest.getHeader("Accept")));
+	}
+
+	/**
+	 * Sends whatever the response's transcoder, if it has one, still holds. Must be called once the body is complete,
+	 * before the response is.
+	 */
+	public static void finish(ServletResponse response) throws IOException
+	{
+		EncodingResponse.finish(response, CborResponse.class);
+	}
+
+	/**
+	 * Reports whether a client that sent the Accept header, which may be null, prefers CBOR to JSON
+	 */
+	static boolean prefersCbor(String accept)
+	{
+		if (accept == null) return false;
+		double cbor = 0;
+		double json = 0;
+		for (String range : accept.toLowerCase().split(","))
+		{
+			String[] parts = range.split(";");
+			double quality = 1;
+			for (int i = 1; i < parts.length; i++)
+			{
+				String parameter = parts[i].replace(" ", "");
+				if (parameter.startsWith("q="))
+				{
+					try
+					{
+						quality = Double.parseDouble(parameter.substring(2));
+					}
+					catch (NumberFormatException e)
+					{
+						quality = 0;
+					}
+				}
+			}
+			String type = parts[0].trim();
+			if (type.equals(CONTENT_TYPE)) cbor = quality;
+			if (type.equals("application/json")) json = quality;
+		}
+		return cbor > 0 && cbor >= json;
+	}
+
+	/**
+	 * A response whose successful JSON body is transcoded to CBOR, if the client prefers it
+	 */
+	private static class CborResponse extends EncodingResponse
+	{
+		/**
+		 * Whether the client prefers CBOR
+		 */
+		private final boolean preferred;
+
+		/**
+		 * Where the body goes once decided: the incoming response's stream, or a transcoder writing to it
+		 */
+		private OutputStream out;
+
+		/**
+		 * The transcoder and the stream that counts what comes out of it, if the body is being transcoded
+		 */
+		private Transcoder transcoder;
+		private CountingOutputStream packed;
+
+		CborResponse(HttpServletResponse incomingResponse, boolean preferred)
+		{
+			super(incomingResponse);
+			this.preferred = preferred;
+		}
+
+		@Override
+		protected void write(byte[] b, int off, int len) throws IOException
+		{
+			decide();
+			out.write(b, off, len);
+		}
+
+		@Override
+		protected void flushBody() throws IOException
+		{
+			if (out != null) out.flush();
+		}
+
+		@Override
+		protected void finishBody() throws IOException
+		{
+			if (!decided)
+			{
+				// Nothing was written, so there is nothing to transcode
+				decided = true;
+				varyIfEligible();
+				keepContentLength();
+				return;
+			}
+			if (transcoder != null)
+			{
+				transcoder.finish();
+				transcoded.increment();
+				bytesIn.add(transcoder.getByteCount());
+				bytesOut.add(packed.getByteCount());
+			}
+			out.flush();
+		}
+
+		@Override
+		protected void resetBody()
+		{
+			out = null;
+			transcoder = null;
+		}
+
+		/**
+		 * Decides how to send the body, now that it has started
+		 */
+		private void decide() throws IOException
+		{
+			if (decided) return;
+			decided = true;
+			if (varyIfEligible() && preferred && getStatus() == HttpServletResponse.SC_OK)
+			{
+				// The transcoded body is a different representation, which only matches the original weakly
+				String etag = getHeader("ETag");
+				if (etag != null && !etag.startsWith("W/")) setHeader("ETag", "W/" + etag);
+				setContentType(CONTENT_TYPE);
+				packed = new CountingOutputStream(getResponse().getOutputStream());
+				transcoder = new Transcoder(packed);
+				out = transcoder;
+			}
+			else
+			{
+				keepContentLength();
+				out = getResponse().getOutputStream();
+			}
+		}
+
+		/**
+		 * Reports whether the response is one whose body depends on the Accept header, marking it as such if so. A
+		 * 304 stands for the body the client would otherwise get, so it varies in the same way.
+		 */
+		private boolean varyIfEligible()
+		{
+			int status = getStatus();
+			String type = getContentType();
+			boolean eligible = type != null && type.toLowerCase().startsWith("application/json")
+					&& !containsHeader("Content-Encoding")
+					&& (status == HttpServletResponse.SC_OK || status == HttpServletResponse.SC_NOT_MODIFIED);
+			if (eligible) addHeader("Vary", "Accept");
+			return eligible;
+		}
+	}
+
+	/**
+	 * Transcodes the UTF-8 JSON written to it into CBOR on the stream it wraps. The JSON is trusted to be well formed;
+	 * only the tokens are recognized, and commas, colons and whitespace are dropped. A token split between writes is
+	 * held until it is complete.
+	 */
+	static class Transcoder extends OutputStream
+	{
+		/**
+		 * What the transcoder is in the middle of
+		 */
+		private enum State
+		{
+			BETWEEN, STRING, ESCAPE, UNICODE, NUMBER, LITERAL
+		}
+
+		private final OutputStream out;
+		private State state = State.BETWEEN;
+
+		/**
+		 * The token so far: a string's UTF-8 bytes, or a number's or literal's characters
+		 */
+		private final ByteArrayOutputStream token = new ByteArrayOutputStream();
+
+		/**
+		 * The hex digits of a \\u escape so far, and the high surrogate before it, if any
+		 */
+		private int unicode;
+		private int unicodeDigits;
+		private int highSurrogate = -1;
+
+		/**
+		 * Bytes of JSON written
+		 */
+		private long count;
+
+		Transcoder(OutputStream out)
+		{
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			count++;
+			accept(b & 0xff);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			count += len;
+			for (int i = off; i < off + len; i++)
+			{
+				accept(b[i] & 0xff);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			out.flush();
+		}
+
+		/**
+		 * Ends whatever token is pending, as at the end of the JSON
+		 */
+		public void finish() throws IOException
+		{
+			if (state == State.NUMBER || state == State.LITERAL) endToken();
+			out.flush();
+		}
+
+		/**
+		 * Returns the number of bytes of JSON written
+		 */
+		public long getByteCount()
+		{
+			return count;
+		}
+
+		/**
+		 * Deals with the next byte of JSON
+		 */
+		private void accept(int c) throws IOException
+		{
+			switch (state)
+			{
+			case STRING:
+				if (c == '"')
+				{
+					writeHead(3, token.size());
+					token.writeTo(out);
+					token.reset();
+					state = State.BETWEEN;
+				}
+				else if (c == '\\')
+				{
+					state = State.ESCAPE;
+				}
+				else
+				{
+					endSurrogate();
+					token.write(c);
+				}
+				return;
+
+			case ESCAPE:
+				state = State.STRING;
+				if (c == 'u')
+				{
+					unicode = 0;
+					unicodeDigits = 0;
+					state = State.UNICODE;
+					return;
+				}
+				endSurrogate();
+				token.write(c == 'b' ? '\b' : c == 'f' ? '\f' : c == 'n' ? '\n' : c == 'r' ? '\r' : c == 't' ? '\t' : c);
+				return;
+
+			case UNICODE:
+				unicode = unicode * 16 + Character.digit(c, 16);
+				if (++unicodeDigits == 4)
+				{
+					addCodeUnit((char) unicode);
+					state = State.STRING;
+				}
+				return;
+
+			case NUMBER:
+			case LITERAL:
+				if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || c == '-' || c == '+' || c == '.' || c == 'E')
+				{
+					token.write(c);
+					return;
+				}
+				endToken();
+				break;
+
+			default:
+				break;
+			}
+
+			switch (c)
+			{
+			case '[':
+				out.write(0x9f);
+				break;
+			case '{':
+				out.write(0xbf);
+				break;
+			case ']':
+			case '}':
+				out.write(0xff);
+				break;
+			case '"':
+				state = State.STRING;
+				break;
+			case 't':
+			case 'f':
+			case 'n':
+				token.write(c);
+				state = State.LITERAL;
+				break;
+			default:
+				if (c == '-' || (c >= '0' && c <= '9'))
+				{
+					token.write(c);
+					state = State.NUMBER;
+				}
+				break;
+			}
+		}
+
+		/**
+		 * Adds a UTF-16 code unit from a \\u escape to the string, pairing surrogates
+		 */
+		private void addCodeUnit(char unit) throws IOException
+		{
+			if (Character.isHighSurrogate(unit))
+			{
+				endSurrogate();
+				highSurrogate = unit;
+				return;
+			}
+			if (Character.isLowSurrogate(unit) && highSurrogate >= 0)
+			{
+				writeUtf8(Character.toCodePoint((char) highSurrogate, unit));
+				highSurrogate = -1;
+				return;
+			}
+			endSurrogate();
+			writeUtf8(Character.isSurrogate(unit) ? 0xfffd : unit);
+		}
+
+		/**
+		 * Replaces a high surrogate that turned out to be unpaired
+		 */
+		private void endSurrogate()
+		{
+			if (highSurrogate < 0) return;
+			highSurrogate = -1;
+			writeUtf8(0xfffd);
+		}
+
+		/**
+		 * Adds the code point to the string as UTF-8
+		 */
+		private void writeUtf8(int codePoint)
+		{
+			if (codePoint < 0x80)
+			{
+				token.write(codePoint);
+			}
+			else if (codePoint < 0x800)
+			{
+				token.write(0xc0 | (codePoint >> 6));
+				token.write(0x80 | (codePoint & 0x3f));
+			}
+			else if (codePoint < 0x10000)
+			{
+				token.write(0xe0 | (codePoint >> 12));
+				token.write(0x80 | ((codePoint >> 6) & 0x3f));
+				token.write(0x80 | (codePoint & 0x3f));
+			}
+			else
+			{
+				token.write(0xf0 | (codePoint >> 18));
+				token.write(0x80 | ((codePoint >> 12) & 0x3f));
+				token.write(0x80 | ((codePoint >> 6) & 0x3f));
+				token.write(0x80 | (codePoint & 0x3f));
+			}
+		}
+
+		/**
+		 * Writes the number or literal that has just ended
+		 */
+		private void endToken() throws IOException
+		{
+			String text = token.toString("US-ASCII");
+			token.reset();
+			state = State.BETWEEN;
+			if (text.equals("true"))
+			{
+				out.write(0xf5);
+			}
+			else if (text.equals("false"))
+			{
+				out.write(0xf4);
+			}
+			else if (text.equals("null"))
+			{
+				out.write(0xf6);
+			}
+			else
+			{
+				writeNumber(text);
+			}
+		}
+
+		/**
+		 * Writes a JSON number as a CBOR integer if it is one that fits in a long, and otherwise as a double
+		 */
+		private void writeNumber(String text) throws IOException
+		{
+			if (text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0)
+			{
+				try
+				{
+					long n = Long.parseLong(text);
+					if (n >= 0)
+					{
+						writeHead(0, n);
+					}
+					else
+					{
+						writeHead(1, -1 - n);
+					}
+					return;
+				}
+				catch (NumberFormatException e)
+				{
+					// Too large for a long
+				}
+			}
+			long bits;
+			try
+			{
+				bits = Double.doubleToLongBits(Double.parseDouble(text));
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IOException("Malformed JSON number " + text);
+			}
+			out.write(0xfb);
+			for (int shift = 56; shift >= 0; shift -= 8)
+			{
+				out.write((int) (bits >>> shift));
+			}
+		}
+
+		/**
+		 * Writes the head of a data item of the major type, with the argument in its shortest form
+		 */
+		private void writeHead(int major, long argument) throws IOException
+		{
+			int type = major << 5;
+			if (argument < 24)
+			{
+				out.write(type | (int) argument);
+			}
+			else if (argument < 0x100)
+			{
+				out.write(type | 24);
+				out.write((int) argument);
+			}
+			else if (argument < 0x10000)
+			{
+				out.write(type | 25);
+				out.write((int) (argument >> 8));
+				out.write((int) argument);
+			}
+			else if (argument < 0x100000000L)
+			{
+				out.write(type | 26);
+				for (int shift = 24; shift >= 0; shift -= 8)
+				{
+					out.write((int) (argument >>> shift));
+				}
+			}
+			else
+			{
+				out.write(type | 27);
+				for (int shift = 56; shift >= 0; shift -= 8)
+				{
+					out.write((int) (argument >>> shift));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of responses transcoded, and their bytes as JSON and as CBOR.
+	 */
+	public static Map<String, Number> getStats()
+	{
+		Map<String, Number> stats = new LinkedHashMap<>();
+		stats.put("transcoded", transcoded.sum());
+		stats.put("bytesIn", bytesIn.sum());
+		stats.put("bytesOut", bytesOut.sum());
+		return stats;
+	}
+}
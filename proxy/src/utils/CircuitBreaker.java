@@ -0,0 +1,145 @@
+package utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.ServletContext;
+
+/**
+ * Circuit breaker for the calls to Canvas on one route. After enough consecutive failures the circuit opens and calls
+ * fail at once with a CircuitOpenException instead of waiting on a Canvas that isn't answering. Once the open period
+ * has passed a single trial call is let through; if it succeeds the circuit closes and otherwise it opens again.
+ */
+public class CircuitBreaker
+{
+	/**
+	 * States of a circuit
+	 */
+	private final static int CLOSED = 0;
+	private final static int OPEN = 1;
+	private final static int HALF_OPEN = 2;
+
+	/**
+	 * Consecutive failures that open a circuit
+	 */
+	private static int threshold = 5;
+
+	/**
+	 * How long a circuit stays open before a trial call
+	 */
+	private static long openNanos = TimeUnit.SECONDS.toNanos(30);
+
+	/**
+	 * Circuit of each route
+	 */
+	private final static ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+	/**
+	 * Counters reported by the status servlet
+	 */
+	private final static LongAdder opened = new LongAdder();
+	private final static LongAdder rejected = new LongAdder();
+
+	/**
+	 * Current state
+	 */
+	private final AtomicInteger state = new AtomicInteger(CLOSED);
+
+	/**
+	 * Consecutive failures while closed
+	 */
+	private final AtomicInteger failures = new AtomicInteger();
+
+	/**
+	 * When the circuit last opened, from System.nanoTime
+	 */
+	private volatile long openedAt;
+
+	/**
+	 * Reads the breaker.* context parameters.
+	 */
+	public static void start(ServletContext context)
+	{
+		threshold = Config.getInt(context, "breaker.failures", threshold);
+		openNanos = TimeUnit.SECONDS.toNanos(Config.getLong(context, "breaker.openSeconds", 30));
+		breakers.clear();
+	}
+
+	/**
+	 * Returns the circuit of the route (see Utils.getRoute), creating it if needed.
+	 */
+	public static CircuitBreaker forRoute(String route)
+	{
+		CircuitBreaker breaker = breakers.get(route);
+		if (breaker != null) return breaker;
+		CircuitBreaker mine = new CircuitBreaker();
+		breaker = breakers.putIfAbsent(route, mine);
+		return (breaker == null) ? mine : breaker;
+	}
+
+	/**
+	 * Throws a CircuitOpenException unless a call may be made now. A caller that gets through must report the
+	 * outcome with record.
+	 */
+	public void allow() throws CircuitOpenException
+	{
+		int current = state.get();
+		if (current == CLOSED) return;
+
+		long remaining = openedAt + openNanos - System.nanoTime();
+		if (current == OPEN && remaining <= 0 && state.compareAndSet(OPEN, HALF_OPEN)) return;
+
+		rejected.increment();
+		throw new CircuitOpenException(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(remaining)));
+	}
+
+	/**
+	 * Records the outcome of a call that allow let through.
+	 */
+	public void record(boolean success)
+	{
+		if (success)
+		{
+			failures.set(0);
+			state.set(CLOSED);
+		}
+		else if (state.get() == HALF_OPEN || failures.incrementAndGet() >= threshold)
+		{
+			openedAt = System.nanoTime();
+			if (state.getAndSet(OPEN) != OPEN) opened.increment();
+			failures.set(0);
+		}
+	}
+
+	/**
+	 * Gives up a call that allow let through but that never reached Canvas, such as one that Limiter shed, so that its
+	 * outcome says nothing about the route. If it was the trial call, the circuit goes back to open and the next call
+	 * is let through as the trial instead.
+	 */
+	public void cancel()
+	{
+		state.compareAndSet(HALF_OPEN, OPEN);
+	}
+
+	/**
+	 * Returns the number of circuits that are open or half open, and how often circuits have opened and rejected
+	 * calls.
+	 */
+	public static Map<String, Number> getStats()
+	{
+		int open = 0;
+		for (CircuitBreaker breaker : breakers.values())
+		{
+			if (breaker.state.get() != CLOSED) open++;
+		}
+		Map<String, Number> stats = new LinkedHashMap<>();
+		stats.put("open", open);
+		stats.put("opened", opened.sum());
+		stats.put("rejected", rejected.sum());
+		return stats;
+	}
+}
@@ -0,0 +1,29 @@
+package utils;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of calling Canvas while the route's circuit is open
+ */
+@SuppressWarnings("serial")
+public class CircuitOpenException extends IOException
+{
+	/**
+	 * Seconds until the circuit will let a trial call through
+	 */
+	private final long retryAfterSeconds;
+
+	public CircuitOpenException(long retryAfterSeconds)
+	{
+		super("Circuit open");
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	/**
+	 * Returns the number of seconds until the circuit will let a trial call through
+	 */
+	public long getRetryAfterSeconds()
+	{
+		return retryAfterSeconds;
+	}
+}
@@ -0,0 +1,106 @@
+package utils;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.ServletException;
+
+/**
+ * Coalesces identical concurrent requests to Canvas. The first request with a given key makes the upstream call, and
+ * requests with the same key that arrive while it is in flight wait for it and share its buffered response.
+ */
+public class Coalescer
+{
+	/**
+	 * An upstream call whose response can be shared
+	 */
+	public interface Fetch
+	{
+		BufferedResponse fetch() throws ServletException, IOException;
+	}
+
+	/**
+	 * Upstream calls in flight, by key
+	 */
+	private static final ConcurrentHashMap<String, CompletableFuture<BufferedResponse>> inFlight =
+			new ConcurrentHashMap<>();
+
+	/**
+	 * Counters reported by the status servlet
+	 */
+	private static final LongAdder leaders = new LongAdder();
+	private static final LongAdder followers = new LongAdder();
+
+	/**
+	 * Returns the response of the call in flight with the given key, or runs fetch if there is none.
+	 */
+	public static BufferedResponse execute(String key, Fetch fetch) throws ServletException, IOException
+	{
+		CompletableFuture<BufferedResponse> mine = new CompletableFuture<>();
+		CompletableFuture<BufferedResponse> existing = inFlight.putIfAbsent(key, mine);
+		if (existing != null)
+		{
+			followers.increment();
+			return await(existing);
+		}
+
+		leaders.increment();
+		try
+		{
+			BufferedResponse response = fetch.fetch();
+			mine.complete(response);
+			return response;
+		}
+		catch (ServletException | IOException | RuntimeException e)
+		{
+			mine.completeExceptionally(e);
+			throw e;
+		}
+		finally
+		{
+			inFlight.remove(key, mine);
+		}
+	}
+
+	/**
+	 * Waits for the leader's response, rethrowing whatever it threw.
+	 */
+	private static BufferedResponse await(CompletableFuture<BufferedResponse> future)
+			throws ServletException, IOException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new ServletException("Interrupted while waiting for Canvas");
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof ServletException) throw (ServletException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new ServletException(cause);
+		}
+	}
+
+	/**
+	 * Returns the number of upstream calls made, the number of requests that shared one, and the number in flight.
+	 */
+	public static Map<String, Number> getStats()
+	{
+		Map<String, Number> stats = new LinkedHashMap<>();
+		stats.put("upstreamCalls", leaders.sum());
+		stats.put("coalesced", followers.sum());
+		stats.put("inFlight", inFlight.size());
+		return stats;
+	}
+}
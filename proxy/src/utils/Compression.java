@@ -0,0 +1,259 @@
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Compresses the proxy's successful JSON and CBOR responses with gzip, or deflate, for clients that accept it. A response is
+ * compressed as it streams, so a relay that flushes as Canvas sends still reaches the client a piece at a time. Bodies
+ * shorter than compression.minBytes are sent as they are, since compressing them saves less than it costs; when the
+ * length isn't known in advance, that much of the body is held back to decide. A response that already has a
+ * Content-Encoding, such as a file that Canvas compressed itself, is passed through without being encoded again.
+ */
+public class Compression
+{
+	/**
+	 * Whether responses are compressed at all
+	 */
+	private static boolean enabled = true;
+
+	/**
+	 * Shortest body that is compressed
+	 */
+	private static int minBytes = 1024;
+
+	/**
+	 * Counters reported by the status servlet
+	 */
+	private static final LongAdder compressed = new LongAdder();
+	private static final LongAdder bytesIn = new LongAdder();
+	private static final LongAdder bytesOut = new LongAdder();
+	private static final LongAdder passedThrough = new LongAdder();
+
+	/**
+	 * Reads the compression.* context parameters.
+	 */
+	public static void start(ServletContext context)
+	{
+		enabled = Boolean.parseBoolean(Config.getString(context, "compression.enabled", "true"));
+		minBytes = Config.getInt(context, "compression.minBytes", minBytes);
+	}
+
+	/**
+	 * Returns the incoming response wrapped so that its body is compressed if the incoming request allows, or the
+	 * response itself if compression is disabled.
+	 */
+	public static HttpServletResponse wrap(HttpServletRequest incomingRequest, HttpServletResponse incomingResponse)
+	{
+		if (!enabled) return incomingResponse;
+		return new CompressingResponse(incomingResponse, chooseEncoding(incomingRequest.getHeader("Accept-Encoding")));
+	}
+
+	/**
+	 * Sends whatever the response's compressor, if it has one, still holds. Must be called once the body is
+	 * complete, before the response is.
+	 */
+	public static void finish(ServletResponse response) throws IOException
+	{
+		EncodingResponse.finish(response, CompressingResponse.class);
+	}
+
+	/**
+	 * Returns the content coding to use for a client that sent the Accept-Encoding header, which may be null:
+	 * "gzip" if it accepts gzip, otherwise "deflate" if it accepts deflate, otherwise null.
+	 */
+	static String chooseEncoding(String acceptEncoding)
+	{
+		if (acceptEncoding == null) return null;
+		boolean deflate = false;
+		for (String coding : acceptEncoding.toLowerCase().split(","))
+		{
+			String[] parts = coding.split(";");
+			boolean refused = false;
+			for (int i = 1; i < parts.length; i++)
+			{
+				refused |= parts[i].replace(" ", "").matches("q=0(\\.0*)?");
+			}
+			String name = parts[0].trim();
+			if (refused) continue;
+			if (name.equals("gzip") || name.equals("*")) return "gzip";
+			if (name.equals("deflate")) deflate = true;
+		}
+		return deflate ? "deflate" : null;
+	}
+
+	/**
+	 * Reports whether a body of the content type, which may be null, is compressed
+	 */
+	private static boolean isCompressible(String contentType)
+	{
+		if (contentType == null) return false;
+		String type = contentType.toLowerCase();
+		return type.startsWith("application/json") || type.startsWith(Cbor.CONTENT_TYPE);
+	}
+
+	/**
+	 * A response whose body is compressed if it turns out to be a successful JSON or CBOR body long enough to be worth
+	 * it
+	 */
+	private static class CompressingResponse extends EncodingResponse
+	{
+		/**
+		 * Content coding the client accepts, or null
+		 */
+		private final String encoding;
+
+		/**
+		 * The body so far, while undecided
+		 */
+		private ByteArrayOutputStream held = new ByteArrayOutputStream();
+
+		/**
+		 * Where the body goes once decided: the incoming response's stream, or a compressor writing to it. It is left
+		 * null for an empty body that is sent as it is, so that the container may still send a file in its place.
+		 */
+		private OutputStream out;
+
+		/**
+		 * The compressor and the streams that count what goes in and out of it, if the body is being compressed
+		 */
+		private DeflaterOutputStream compressor;
+		private CountingOutputStream plain;
+		private CountingOutputStream packed;
+
+		CompressingResponse(HttpServletResponse incomingResponse, String encoding)
+		{
+			super(incomingResponse);
+			this.encoding = encoding;
+		}
+
+		@Override
+		protected void write(byte[] b, int off, int len) throws IOException
+		{
+			if (decided)
+			{
+				if (out == null) out = getResponse().getOutputStream();
+				out.write(b, off, len);
+				return;
+			}
+			held.write(b, off, len);
+			decide(false);
+		}
+
+		@Override
+		protected void flushBody() throws IOException
+		{
+			if (out != null) out.flush();
+		}
+
+		@Override
+		protected void finishBody() throws IOException
+		{
+			decide(true);
+			if (compressor != null)
+			{
+				compressor.finish();
+				compressed.increment();
+				bytesIn.add(plain.getByteCount());
+				bytesOut.add(packed.getByteCount());
+			}
+			if (out != null) out.flush();
+		}
+
+		@Override
+		protected void resetBody()
+		{
+			held = new ByteArrayOutputStream();
+			out = null;
+			compressor = null;
+		}
+
+		/**
+		 * Decides how to send the body if it can be, or must be because the body is complete, and sends what has
+		 * been held back
+		 */
+		private void decide(boolean complete) throws IOException
+		{
+			if (decided) return;
+
+			int status = getStatus();
+			boolean encoded = containsHeader("Content-Encoding");
+			if (encoded && status == HttpServletResponse.SC_OK) passedThrough.increment();
+
+			// A 304 stands for the body the client would otherwise get, so it varies in the same way
+			boolean eligible = isCompressible(getContentType()) && !encoded
+					&& (status == HttpServletResponse.SC_OK || status == HttpServletResponse.SC_NOT_MODIFIED);
+			if (eligible) addHeader("Vary", "Accept-Encoding");
+
+			boolean compress;
+			if (!eligible || encoding == null || status != HttpServletResponse.SC_OK)
+			{
+				compress = false;
+			}
+			else if (contentLength >= 0)
+			{
+				compress = contentLength >= minBytes;
+			}
+			else if (held.size() >= minBytes)
+			{
+				compress = true;
+			}
+			else if (complete)
+			{
+				compress = false;
+			}
+			else
+			{
+				return;
+			}
+
+			decided = true;
+			if (compress)
+			{
+				// The encoded body is a different representation, which only matches the original weakly
+				String etag = getHeader("ETag");
+				if (etag != null && !etag.startsWith("W/")) setHeader("ETag", "W/" + etag);
+				setHeader("Content-Encoding", encoding);
+				packed = new CountingOutputStream(getResponse().getOutputStream());
+				compressor = encoding.equals("gzip") ? new GZIPOutputStream(packed, true)
+						: new DeflaterOutputStream(packed, true);
+				plain = new CountingOutputStream(compressor);
+				out = plain;
+			}
+			else
+			{
+				keepContentLength();
+				if (held.size() > 0) out = getResponse().getOutputStream();
+			}
+			if (out != null) held.writeTo(out);
+			held = null;
+		}
+	}
+
+	/**
+	 * Returns the number of responses compressed, their bytes before and after, and the successful responses passed
+	 * through because they were already encoded.
+	 */
+	public static Map<String, Number> getStats()
+	{
+		Map<String, Number> stats = new LinkedHashMap<>();
+		stats.put("compressed", compressed.sum());
+		stats.put("bytesIn", bytesIn.sum());
+		stats.put("bytesOut", bytesOut.sum());
+		stats.put("passedThrough", passedThrough.sum());
+		return stats;
+	}
+}
@@ -0,0 +1,52 @@
+package utils;
+
+import javax.servlet.ServletContext;
+
+/**
+ * Reads proxy tuning parameters from the context-params in web.xml
+ */
+public class Config
+{
+	/**
+	 * Returns the named context parameter as an int, or def if it is missing or malformed.
+	 */
+	public static int getInt(ServletContext context, String name, int def)
+	{
+		String value = context.getInitParameter(name);
+		try
+		{
+			return (value == null) ? def : Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			context.log("Ignoring malformed parameter " + name + "=" + value);
+			return def;
+		}
+	}
+
+	/**
+	 * Returns the named context parameter as a long, or def if it is missing or malformed.
+	 */
+	public static long getLong(ServletContext context, String name, long def)
+	{
+		String value = context.getInitParameter(name);
+		try
+		{
+			return (value == null) ? def : Long.parseLong(value.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			context.log("Ignoring malformed parameter " + name + "=" + value);
+			return def;
+		}
+	}
+
+	/**
+	 * Returns the named context parameter, or def if it is missing.
+	 */
+	public static String getString(ServletContext context, String name, String def)
+	{
+		String value = context.getInitParameter(name);
+		return (value == null) ? def : value.trim();
+	}
+}
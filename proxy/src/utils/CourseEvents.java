@@ -0,0 +1,574 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.http.HttpStatus;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Pushes changes to a course's assignments, CPM folders and configuration file to the plugins that subscribe to it
+ * with server-sent events, so that they needn't poll Canvas themselves. While a course has subscribers, the proxy
+ * reads it once every poll interval, with the token of its newest subscriber, and compares a fingerprint of each kind
+ * of data with the last one. An event names only the kind that changed and its new fingerprint, never the data, so a
+ * subscriber learns nothing from another's token; it fetches the data itself, and the response cache entries that the
+ * change made stale are discarded first.
+ *
+ * A new subscriber gets a "state" event with every fingerprint after the next poll, so that a plugin that reconnects
+ * can tell what it missed. Comments are sent between polls to keep idle connections open and to notice dead ones.
+ *
+ * Streams are written without blocking, so one slow plugin can't hold up the others or the thread that polls. Text
+ * that a stream can't take yet waits in its subscriber's queue until the container says the stream is ready again.
+ * A stream that takes nothing for events.writeTimeoutSeconds is closed, since its request has no timeout of its own.
+ */
+public class CourseEvents
+{
+	/**
+	 * Kinds of change
+	 */
+	public final static String ASSIGNMENTS = "assignments";
+	public final static String FOLDERS = "folders";
+	public final static String CONFIG = "config";
+
+	/**
+	 * Milliseconds a plugin should wait before reconnecting, sent in the stream's retry field
+	 */
+	private final static int RETRY_MILLIS = 10000;
+
+	/**
+	 * A plugin's connection
+	 */
+	private static class Subscriber
+	{
+		final AsyncContext async;
+		final String token;
+
+		/**
+		 * Whether the subscriber has been sent the state event
+		 */
+		volatile boolean current;
+
+		/**
+		 * Text waiting for the stream to take it, in order, and whether the stream needs flushing. Guarded by the
+		 * subscriber.
+		 */
+		final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+		boolean unflushed;
+
+		/**
+		 * When the stream stopped taking text, from System.nanoTime, or 0 while it keeps up. Guarded by the subscriber.
+		 */
+		long stalledSince;
+
+		Subscriber(AsyncContext async, String token)
+		{
+			this.async = async;
+			this.token = token;
+		}
+	}
+
+	/**
+	 * A course with subscribers
+	 */
+	private static class Watch
+	{
+		final String course;
+		final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+		final AtomicBoolean polling = new AtomicBoolean();
+
+		/**
+		 * Fingerprints of the last poll by kind, or null before the first
+		 */
+		volatile Map<String, String> fingerprints;
+
+		Watch(String course)
+		{
+			this.course = course;
+		}
+	}
+
+	/**
+	 * Watched courses by ID
+	 */
+	private static final ConcurrentHashMap<String, Watch> watches = new ConcurrentHashMap<>();
+
+	/**
+	 * Starts the polls and sends the keep-alive comments
+	 */
+	private static ScheduledExecutorService scheduler;
+
+	/**
+	 * Most subscribers at once
+	 */
+	private static int maxSubscribers = 10000;
+
+	/**
+	 * How long a stream may take nothing before it is closed
+	 */
+	private static long writeTimeoutNanos = TimeUnit.SECONDS.toNanos(60);
+
+	/**
+	 * Used for logging
+	 */
+	private static ServletContext context;
+
+	/**
+	 * Counters reported by the status servlet
+	 */
+	private static final AtomicInteger subscriberCount = new AtomicInteger();
+	private static final LongAdder polls = new LongAdder();
+	private static final LongAdder changes = new LongAdder();
+	private static final LongAdder pollFailures = new LongAdder();
+	private static final LongAdder stalled = new LongAdder();
+
+	/**
+	 * Reads the events.* context parameters and starts polling.
+	 */
+	public static synchronized void start(ServletContext context)
+	{
+		CourseEvents.context = context;
+		long pollMillis = Math.max(1, Config.getLong(context, "events.pollSeconds", 60)) * 1000;
+		long keepAliveMillis = Math.max(1, Config.getLong(context, "events.keepAliveSeconds", 30)) * 1000;
+		maxSubscribers = Config.getInt(context, "events.maxSubscribers", maxSubscribers);
+		writeTimeoutNanos = TimeUnit.SECONDS.toNanos(Config.getLong(context, "events.writeTimeoutSeconds", 60));
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(r ->
+		{
+			Thread thread = new Thread(r, "proxy-events");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(CourseEvents::pollAll, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+		scheduler.scheduleWithFixedDelay(CourseEvents::keepAlive, keepAliveMillis, keepAliveMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops polling and closes every subscriber's stream.
+	 */
+	public static synchronized void stop(ServletContext context)
+	{
+		if (scheduler != null) scheduler.shutdownNow();
+		scheduler = null;
+		for (Watch watch : watches.values())
+		{
+			for (Subscriber subscriber : watch.subscribers)
+			{
+				close(watch, subscriber);
+			}
+		}
+		watches.clear();
+	}
+
+	/**
+	 * Adds a subscriber to the course, whose stream is the response of the asynchronous context. The response must be
+	 * one that can be written without blocking. Returns false if there are too many subscribers already, in which case
+	 * the caller should refuse the request.
+	 */
+	public static boolean subscribe(String course, String token, AsyncContext async)
+	{
+		if (subscriberCount.incrementAndGet() > maxSubscribers)
+		{
+			subscriberCount.decrementAndGet();
+			return false;
+		}
+
+		// The subscriber joins the watch atomically, so that pollAll can't forget the watch in between
+		Subscriber subscriber = new Subscriber(async, token);
+		Watch watch = watches.compute(course, (key, existing) ->
+		{
+			Watch joined = (existing == null) ? new Watch(key) : existing;
+			joined.subscribers.add(subscriber);
+			return joined;
+		});
+		async.addListener(new AsyncListener()
+		{
+			public void onComplete(AsyncEvent event)
+			{
+				remove(watch, subscriber);
+			}
+
+			public void onTimeout(AsyncEvent event)
+			{
+				close(watch, subscriber);
+			}
+
+			public void onError(AsyncEvent event)
+			{
+				close(watch, subscriber);
+			}
+
+			public void onStartAsync(AsyncEvent event)
+			{
+			}
+		});
+
+		// From here on the container says when the stream can take more
+		try
+		{
+			async.getResponse().getOutputStream().setWriteListener(new WriteListener()
+			{
+				public void onWritePossible()
+				{
+					synchronized (subscriber)
+					{
+						write(watch, subscriber);
+					}
+				}
+
+				public void onError(Throwable t)
+				{
+					close(watch, subscriber);
+				}
+			});
+		}
+		catch (IOException | RuntimeException e)
+		{
+			close(watch, subscriber);
+			return true;
+		}
+
+		// Begin the stream, and tell the subscriber where things stand if a poll already has
+		send(watch, subscriber, "retry: " + RETRY_MILLIS + "\n\n");
+		Map<String, String> fingerprints = watch.fingerprints;
+		if (fingerprints != null) sendState(watch, subscriber, fingerprints);
+
+		// A course seen for the first time is polled now rather than at the next interval
+		if (fingerprints == null) poll(watch);
+		return true;
+	}
+
+	/**
+	 * Starts a poll of each watched course that isn't already being polled, and forgets courses without subscribers
+	 */
+	private static void pollAll()
+	{
+		for (Watch watch : watches.values())
+		{
+			if (watches.computeIfPresent(watch.course, (key, w) -> w.subscribers.isEmpty() ? null : w) != null)
+			{
+				poll(watch);
+			}
+		}
+	}
+
+	/**
+	 * Polls the course on a fan-out thread unless it is already being polled
+	 */
+	private static void poll(Watch watch)
+	{
+		if (!watch.polling.compareAndSet(false, true)) return;
+		FanOut.submit(() ->
+		{
+			try
+			{
+				check(watch);
+			}
+			finally
+			{
+				watch.polling.set(false);
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * Reads the course with its newest subscriber's token, and tells its subscribers what changed since the last poll
+	 */
+	private static void check(Watch watch)
+	{
+		if (watch.subscribers.isEmpty()) return;
+		Subscriber newest = watch.subscribers.get(watch.subscribers.size() - 1);
+		polls.increment();
+
+		Map<String, String> fingerprints = new LinkedHashMap<>();
+		try
+		{
+			fingerprints.put(ASSIGNMENTS, fingerprintAssignments(
+					CanvasApi.getArray("/api/v1/courses/" + watch.course + "/assignments?per_page=100", newest.token)));
+			try
+			{
+				JSONObject manifest = Manifests.build(watch.course, newest.token, null);
+				fingerprints.put(FOLDERS, fingerprint(((JSONObject) manifest.get("root")).toJSONString()));
+				fingerprints.put(CONFIG, fingerprint(((JSONObject) manifest.get("config")).toJSONString()
+						+ ((JSONObject) manifest.get("profile")).toJSONString()));
+			}
+			catch (UpstreamStatusException e)
+			{
+				// A course without its configuration file or root folder is a change too
+				if (e.getStatus() != HttpStatus.SC_NOT_FOUND) throw e;
+				fingerprints.put(FOLDERS, "none");
+				fingerprints.put(CONFIG, "none");
+			}
+		}
+		catch (UpstreamStatusException e)
+		{
+			pollFailures.increment();
+
+			// The token has expired or lost access, so its plugin must reconnect with a fresh one
+			if (e.getStatus() == HttpStatus.SC_UNAUTHORIZED || e.getStatus() == HttpStatus.SC_FORBIDDEN)
+			{
+				close(watch, newest);
+			}
+			return;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			pollFailures.increment();
+			context.log("Can't poll course " + watch.course + " for events: " + e.getMessage());
+			return;
+		}
+
+		Map<String, String> previous = watch.fingerprints;
+		watch.fingerprints = fingerprints;
+		for (Map.Entry<String, String> entry : fingerprints.entrySet())
+		{
+			if (previous == null || entry.getValue().equals(previous.get(entry.getKey()))) continue;
+			changes.increment();
+			forget(watch.course, entry.getKey());
+			for (Subscriber subscriber : watch.subscribers)
+			{
+				if (subscriber.current) send(watch, subscriber, event(entry.getKey(), watch.course, entry.getValue()));
+			}
+		}
+		for (Subscriber subscriber : watch.subscribers)
+		{
+			if (!subscriber.current) sendState(watch, subscriber, fingerprints);
+		}
+	}
+
+	/**
+	 * Discards the cached responses that a change of the kind in the course makes stale
+	 */
+	private static void forget(String course, String kind)
+	{
+		String[] routes = kind.equals(ASSIGNMENTS)
+				? new String[] { " GET /api/v1/courses/" + course + "/assignments",
+						" GET /cpm/delta/" + course + "/" + Deltas.ASSIGNMENTS }
+				: new String[] { " GET /cpm/courses/" + course + "/manifest",
+						" GET /cpm/delta/" + course + "/" + Deltas.FILES };
+		ResponseCache.removeIf(key ->
+		{
+			for (String route : routes)
+			{
+				if (key.contains(route)) return true;
+			}
+			return false;
+		});
+	}
+
+	/**
+	 * Sends a comment to every subscriber, which closes the streams of those that have gone away or stalled
+	 */
+	private static void keepAlive()
+	{
+		for (Watch watch : watches.values())
+		{
+			for (Subscriber subscriber : watch.subscribers)
+			{
+				send(watch, subscriber, ":\n\n");
+			}
+		}
+	}
+
+	/**
+	 * Sends every fingerprint in one state event
+	 */
+	@SuppressWarnings("unchecked")
+	private static void sendState(Watch watch, Subscriber subscriber, Map<String, String> fingerprints)
+	{
+		JSONObject data = new JSONObject();
+		data.put("course", watch.course);
+		data.putAll(fingerprints);
+		subscriber.current = true;
+		send(watch, subscriber, "event: state\ndata: " + data.toJSONString() + "\n\n");
+	}
+
+	/**
+	 * Returns the text of a change event
+	 */
+	@SuppressWarnings("unchecked")
+	private static String event(String kind, String course, String fingerprint)
+	{
+		JSONObject data = new JSONObject();
+		data.put("course", course);
+		data.put("kind", kind);
+		data.put("version", fingerprint);
+		return "event: " + kind + "\ndata: " + data.toJSONString() + "\n\n";
+	}
+
+	/**
+	 * Queues the text for the subscriber's stream and writes what the stream will take, closing it instead if it has
+	 * taken nothing for longer than the write timeout
+	 */
+	private static void send(Watch watch, Subscriber subscriber, String text)
+	{
+		synchronized (subscriber)
+		{
+			if (subscriber.stalledSince != 0 && System.nanoTime() - subscriber.stalledSince > writeTimeoutNanos)
+			{
+				stalled.increment();
+				close(watch, subscriber);
+				return;
+			}
+			subscriber.pending.add(text.getBytes(StandardCharsets.UTF_8));
+			write(watch, subscriber);
+		}
+	}
+
+	/**
+	 * Writes and flushes as much of the subscriber's queue as its stream will take without blocking, closing it if a
+	 * write fails. The caller must hold the subscriber's lock, so that writes to one stream don't overlap.
+	 */
+	private static void write(Watch watch, Subscriber subscriber)
+	{
+		try
+		{
+			ServletOutputStream out = subscriber.async.getResponse().getOutputStream();
+			while (out.isReady())
+			{
+				byte[] next = subscriber.pending.poll();
+				if (next != null)
+				{
+					out.write(next);
+					subscriber.unflushed = true;
+				}
+				else if (subscriber.unflushed)
+				{
+					out.flush();
+					subscriber.unflushed = false;
+				}
+				else
+				{
+					subscriber.stalledSince = 0;
+					return;
+				}
+			}
+
+			// The container calls onWritePossible once the stream can take more
+			if (subscriber.stalledSince == 0) subscriber.stalledSince = System.nanoTime();
+		}
+		catch (IOException | RuntimeException e)
+		{
+			close(watch, subscriber);
+		}
+	}
+
+	/**
+	 * Ends the subscriber's stream
+	 */
+	private static void close(Watch watch, Subscriber subscriber)
+	{
+		if (!remove(watch, subscriber)) return;
+		try
+		{
+			subscriber.async.complete();
+		}
+		catch (RuntimeException e)
+		{
+			// Already complete
+		}
+	}
+
+	/**
+	 * Removes the subscriber from the course, returning whether it was there
+	 */
+	private static boolean remove(Watch watch, Subscriber subscriber)
+	{
+		if (!watch.subscribers.remove(subscriber)) return false;
+		subscriberCount.decrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Returns a fingerprint of the assignments that changes whenever one is added, removed, edited, or opens or closes
+	 * for submissions. Whether an assignment is locked for a particular user isn't known, so its opening and closing
+	 * follow its unlock_at and lock_at times.
+	 */
+	private static String fingerprintAssignments(JSONArray assignments)
+	{
+		long now = System.currentTimeMillis();
+		StringBuilder text = new StringBuilder();
+		for (Object item : assignments)
+		{
+			JSONObject assignment = (JSONObject) item;
+			long unlock = parseTime(assignment.get("unlock_at"), Long.MIN_VALUE);
+			long lock = parseTime(assignment.get("lock_at"), Long.MAX_VALUE);
+			text.append(assignment.get("id")).append(' ').append(assignment.get("updated_at")).append(' ')
+					.append(unlock <= now && now < lock).append('\n');
+		}
+		return fingerprint(text.toString());
+	}
+
+	/**
+	 * Returns a short hex hash of the text
+	 */
+	private static String fingerprint(String text)
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+			return Hex.encodeHexString(digest).substring(0, 16);
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns a Canvas time in milliseconds since the epoch, or the default if there isn't one.
+	 */
+	private static long parseTime(Object time, long otherwise)
+	{
+		if (!(time instanceof String)) return otherwise;
+		try
+		{
+			return Instant.parse((String) time).toEpochMilli();
+		}
+		catch (DateTimeParseException e)
+		{
+			return otherwise;
+		}
+	}
+
+	/**
+	 * Returns the number of watched courses, subscribers, polls, changes pushed, failed polls and streams closed
+	 * because they stalled.
+	 */
+	public static Map<String, Number> getStats()
+	{
+		Map<String, Number> stats = new LinkedHashMap<>();
+		stats.put("courses", watches.size());
+		stats.put("subscribers", subscriberCount.get());
+		stats.put("polls", polls.sum());
+		stats.put("changes", changes.sum());
+		stats.put("pollFailures", pollFailures.sum());
+		stats.put("stalled", stalled.sum());
+		return stats;
+	}
+}
@@ -0,0 +1,364 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.codec.binary.Hex;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Delta sync of a course's assignments and CPM files. A listing maps a key for each item to the parts of it that the
+ * plugin reads, and its version is a hash of the items' hashes. The proxy keeps each user's last few versions of each
+ * listing as maps from key to item hash, so a plugin that names the version it holds is sent only the items added,
+ * changed or removed since. A plugin whose version has been forgotten is sent the whole listing. Versions are kept
+ * per user because Canvas shows each user their own view of a course. Assignments are asked of Canvas's GraphQL API
+ * when it can answer (see GraphQL), since it sends only the members listed.
+ */
+public class Deltas
+{
+	/**
+	 * Kinds of listing
+	 */
+	public final static String ASSIGNMENTS = "assignments";
+	public final static String FILES = "files";
+
+	/**
+	 * Assignment members that the plugin reads. Descriptions are left out, since they are most of a listing's bytes.
+	 */
+	private final static String[] ASSIGNMENT_FIELDS =
+			{ "id", "name", "locked_for_user", "allowed_extensions", "unlock_at", "due_at", "lock_at" };
+
+	/**
+	 * GraphQL query for a page of a course's assignments with the members in ASSIGNMENT_FIELDS, which is a small
+	 * fraction of the REST API's assignment objects
+	 */
+	private final static String ASSIGNMENTS_QUERY = "query CpmAssignments($course: ID!, $after: String) {"
+			+ " course(id: $course) { assignmentsConnection(first: 100, after: $after) {"
+			+ " nodes { _id name lockInfo { isLocked } allowedExtensions unlockAt dueAt lockAt }"
+			+ " pageInfo { hasNextPage endCursor } } } }";
+
+	/**
+	 * Most listings whose versions are kept, counting each user, course and kind separately
+	 */
+	private static int maxListings;
+
+	/**
+	 * Most versions of each listing that are kept
+	 */
+	private static int history;
+
+	/**
+	 * Recent versions of each listing, by user hash, course and kind, in least to most recently used order. Each
+	 * listing's versions map version to item hashes, oldest first. Guarded by its own monitor.
+	 */
+	private static final LinkedHashMap<String, LinkedHashMap<String, Map<String, String>>> listings =
+			new LinkedHashMap<>(256, 0.75f, true);
+
+	/**
+	 * Counters reported by the status servlet
+	 */
+	private static final LongAdder deltas = new LongAdder();
+	private static final LongAdder fulls = new LongAdder();
+	private static final LongAdder itemsSent = new LongAdder();
+	private static final LongAdder itemsSkipped = new LongAdder();
+
+	/**
+	 * Reads the delta.* context parameters and forgets every version.
+	 */
+	public static synchronized void start(ServletContext context)
+	{
+		maxListings = Config.getInt(context, "delta.maxListings", 1000);
+		history = Math.max(1, Config.getInt(context, "delta.history", 3));
+		synchronized (listings)
+		{
+			listings.clear();
+		}
+	}
+
+	/**
+	 * Returns the course's current listing of the kind, as seen by the owner of the token: its version, its items and
+	 * their hashes by key, and the order of the keys. Throws an UpstreamStatusException with the status of whichever
+	 * Canvas call failed. File URLs are rewritten as in Manifests.build.
+	 */
+	@SuppressWarnings("unchecked")
+	public static JSONObject list(String courseID, String kind, String token, String blobPrefix) throws IOException
+	{
+		Map<String, JSONObject> items = new LinkedHashMap<>();
+		if (kind.equals(ASSIGNMENTS))
+		{
+			JSONArray assignments = listAssignments(courseID, token);
+			if (assignments == null)
+			{
+				assignments = CanvasApi.getArray("/api/v1/courses/" + courseID + "/assignments?per_page=100", token);
+			}
+			for (Object assignment : assignments)
+			{
+				// Members Canvas leaves out stay out, since the plugin tells a missing member from a null one
+				JSONObject item = new JSONObject();
+				for (String field : ASSIGNMENT_FIELDS)
+				{
+					if (((JSONObject) assignment).containsKey(field))
+					{
+						item.put(field, ((JSONObject) assignment).get(field));
+					}
+				}
+				items.put("assignment/" + item.get("id"), item);
+			}
+		}
+		else
+		{
+			JSONObject manifest = Manifests.build(courseID, token, blobPrefix);
+			addFile((JSONObject) manifest.get("config"), "", items);
+			addFolder((JSONObject) manifest.get("root"), (String) ((JSONObject) manifest.get("profile")).get("root"),
+					items);
+		}
+
+		// The version covers the order too, since the plugin shows assignments in Canvas's order
+		JSONObject itemObject = new JSONObject();
+		JSONObject hashes = new JSONObject();
+		JSONArray order = new JSONArray();
+		MessageDigest digest = newDigest();
+		for (Map.Entry<String, JSONObject> entry : items.entrySet())
+		{
+			String hash = hash(entry.getValue().toJSONString());
+			itemObject.put(entry.getKey(), entry.getValue());
+			hashes.put(entry.getKey(), hash);
+			order.add(entry.getKey());
+			digest.update((entry.getKey() + "=" + hash + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+		JSONObject listing = new JSONObject();
+		listing.put("version", Hex.encodeHexString(digest.digest()).substring(0, 32));
+		listing.put("items", itemObject);
+		listing.put("hashes", hashes);
+		listing.put("order", order);
+		return listing;
+	}
+
+	/**
+	 * Returns the course's assignments as seen by the owner of the token, from one GraphQL query per hundred, in the
+	 * form the REST API gives them but with only the members in ASSIGNMENT_FIELDS. Returns null if GraphQL can't
+	 * answer, so that the REST API must.
+	 */
+	@SuppressWarnings("unchecked")
+	static JSONArray listAssignments(String courseID, String token)
+	{
+		JSONObject variables = new JSONObject();
+		variables.put("course", courseID);
+		JSONArray nodes = GraphQL.getNodes(ASSIGNMENTS_QUERY, variables, token, "course", "assignmentsConnection");
+		if (nodes == null) return null;
+
+		JSONArray assignments = new JSONArray();
+		try
+		{
+			for (Object node : nodes)
+			{
+				JSONObject graph = (JSONObject) node;
+				JSONObject assignment = new JSONObject();
+				assignment.put("id", Long.valueOf((String) graph.get("_id")));
+				assignment.put("name", graph.get("name"));
+				assignment.put("locked_for_user", ((JSONObject) graph.get("lockInfo")).get("isLocked"));
+				JSONArray extensions = (JSONArray) graph.get("allowedExtensions");
+				if (extensions != null && !extensions.isEmpty()) assignment.put("allowed_extensions", extensions);
+				assignment.put("unlock_at", toRestTime(graph.get("unlockAt")));
+				assignment.put("due_at", toRestTime(graph.get("dueAt")));
+				assignment.put("lock_at", toRestTime(graph.get("lockAt")));
+				assignments.add(assignment);
+			}
+		}
+		catch (ClassCastException | NullPointerException | NumberFormatException | DateTimeParseException e)
+		{
+			return null;
+		}
+		return assignments;
+	}
+
+	/**
+	 * Returns a GraphQL time, which carries the course's offset, in the UTC form of the REST API, or null if it is
+	 * null
+	 */
+	private static String toRestTime(Object time)
+	{
+		if (time == null) return null;
+		return DateTimeFormatter.ISO_INSTANT.format(OffsetDateTime.parse((String) time));
+	}
+
+	/**
+	 * Returns what a user holding the version since needs to bring their copy of the listing up to date: the current
+	 * version, whether the whole listing is being sent, the items added or changed by key, the keys removed and the
+	 * order of all keys. If since is null or unknown, every item is sent. The listing's version is remembered.
+	 */
+	@SuppressWarnings("unchecked")
+	public static JSONObject diff(String user, String courseID, String kind, byte[] listingBody, String since)
+			throws IOException
+	{
+		JSONObject listing;
+		try
+		{
+			listing = (JSONObject) new JSONParser().parse(new String(listingBody, StandardCharsets.UTF_8));
+		}
+		catch (ParseException | ClassCastException e)
+		{
+			throw new IOException("Malformed listing", e);
+		}
+		String version = (String) listing.get("version");
+		JSONObject items = (JSONObject) listing.get("items");
+		Map<String, String> hashes = (Map<String, String>) listing.get("hashes");
+		Map<String, String> held = remember(user + " " + courseID + " " + kind, version, hashes, since);
+
+		JSONObject changed = new JSONObject();
+		JSONArray removed = new JSONArray();
+		for (Object key : (JSONArray) listing.get("order"))
+		{
+			if (held == null || !hashes.get(key).equals(held.get(key)))
+			{
+				changed.put(key, items.get(key));
+			}
+		}
+		if (held != null)
+		{
+			for (String key : held.keySet())
+			{
+				if (!hashes.containsKey(key)) removed.add(key);
+			}
+		}
+
+		(held == null ? fulls : deltas).increment();
+		itemsSent.add(changed.size());
+		itemsSkipped.add(hashes.size() - changed.size());
+		JSONObject delta = new JSONObject();
+		delta.put("version", version);
+		delta.put("full", held == null);
+		delta.put("items", changed);
+		delta.put("removed", removed);
+		delta.put("order", listing.get("order"));
+		return delta;
+	}
+
+	/**
+	 * Records the version of the listing and returns the item hashes of the version since, or null if it isn't known
+	 */
+	private static Map<String, String> remember(String listingKey, String version, Map<String, String> hashes,
+			String since)
+	{
+		synchronized (listings)
+		{
+			LinkedHashMap<String, Map<String, String>> versions = listings.get(listingKey);
+			if (versions == null)
+			{
+				versions = new LinkedHashMap<>();
+				listings.put(listingKey, versions);
+			}
+			Map<String, String> held = (since == null) ? null : versions.get(since);
+
+			// The current version becomes the newest one
+			versions.remove(version);
+			versions.put(version, new HashMap<>(hashes));
+			Iterator<String> oldest = versions.keySet().iterator();
+			while (versions.size() > history)
+			{
+				oldest.next();
+				oldest.remove();
+			}
+			Iterator<String> leastRecent = listings.keySet().iterator();
+			while (listings.size() > maxListings)
+			{
+				leastRecent.next();
+				leastRecent.remove();
+			}
+			return held;
+		}
+	}
+
+	/**
+	 * Adds the folder's files and subfolders, and theirs, to items. The path of an item is that of the folder that
+	 * holds it, relative to the course's top folder.
+	 */
+	@SuppressWarnings("unchecked")
+	private static void addFolder(JSONObject folder, String path, Map<String, JSONObject> items)
+	{
+		for (Object file : (JSONArray) folder.get("files"))
+		{
+			addFile((JSONObject) file, path, items);
+		}
+		for (Object subfolder : (JSONArray) folder.get("folders"))
+		{
+			JSONObject item = new JSONObject();
+			item.put("type", "folder");
+			item.put("id", ((JSONObject) subfolder).get("id"));
+			item.put("name", ((JSONObject) subfolder).get("name"));
+			item.put("path", path);
+			items.put("folder/" + item.get("id"), item);
+			String name = (String) item.get("name");
+			addFolder((JSONObject) subfolder, path.isEmpty() ? name : path + "/" + name, items);
+		}
+	}
+
+	/**
+	 * Adds a file from a manifest to items
+	 */
+	@SuppressWarnings("unchecked")
+	private static void addFile(JSONObject file, String path, Map<String, JSONObject> items)
+	{
+		JSONObject item = new JSONObject();
+		item.putAll(file);
+		item.put("type", "file");
+		item.put("path", path);
+		items.put("file/" + item.get("id"), item);
+	}
+
+	/**
+	 * Returns a short hex hash of the text
+	 */
+	private static String hash(String text)
+	{
+		return Hex.encodeHexString(newDigest().digest(text.getBytes(StandardCharsets.UTF_8))).substring(0, 16);
+	}
+
+	/**
+	 * Returns a SHA-256 digest
+	 */
+	private static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the number of requests answered with a delta or with the whole listing, items sent and items left out
+	 * because the client already had them, and listings whose versions are kept.
+	 */
+	public static Map<String, Number> getStats()
+	{
+		Map<String, Number> stats = new LinkedHashMap<>();
+		stats.put("deltas", deltas.sum());
+		stats.put("fulls", fulls.sum());
+		stats.put("itemsSent", itemsSent.sum());
+		stats.put("itemsSkipped", itemsSkipped.sum());
+		synchronized (listings)
+		{
+			stats.put("listings", listings.size());
+		}
+		return stats;
+	}
+}
@@ -0,0 +1,188 @@
+package utils;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Decides which thread runs a relay. In "blocking" mode (the default) the container thread that received the request
+ * runs it. In "async" mode it does too, but the plain relays of CoursesAndFolders and Token hand their Canvas call to
+ * AsyncRelay, which holds no thread while Canvas answers; the proxy's other endpoints still block. In "virtual" mode the
+ * request is put into asynchronous mode and the relay runs on its own JDK virtual thread, which requires a Java 21 or
+ * later runtime.
+ * 
+ * The relay path doesn't block while holding a monitor, so virtual threads are not pinned: the monitors in Utils,
+ * Encryption and the caches guard only in-memory work (including the StringBuffers that Matcher and getRequestURL
+ * require), and the connection pool uses java.util.concurrent locks. The one exception is the stack trace Encryption
+ * prints to System.err when a token can't be processed.
+ */
+public class Dispatch
+{
+	/**
+	 * A relay of one incoming request to Canvas
+	 */
+	public interface Handler
+	{
+		void handle(HttpServletRequest incomingRequest, HttpServletResponse incomingResponse)
+				throws ServletException, IOException;
+	}
+
+	/**
+	 * Value of relay.mode that runs relays on container threads
+	 */
+	public static final String BLOCKING = "blocking";
+
+	/**
+	 * Value of relay.mode that relays through AsyncRelay where it can
+	 */
+	public static final String ASYNC = "async";
+
+	/**
+	 * Value of relay.mode that runs each relay on a virtual thread
+	 */
+	public static final String VIRTUAL = "virtual";
+
+	/**
+	 * The configured relay mode
+	 */
+	private static String mode = BLOCKING;
+
+	/**
+	 * Runs relays in virtual mode
+	 */
+	private static ExecutorService executor;
+
+	/**
+	 * Used for logging
+	 */
+	private static ServletContext context;
+
+	/**
+	 * Reads the relay.mode context parameter and creates the virtual thread executor if it is needed.
+	 */
+	public static synchronized void start(ServletContext context)
+	{
+		Dispatch.context = context;
+		mode = Config.getString(context, "relay.mode", BLOCKING).toLowerCase();
+		if (mode.equals(VIRTUAL))
+		{
+			executor = newVirtualThreadExecutor();
+			if (executor == null)
+			{
+				context.log("Virtual threads need Java 21 or later, using " + BLOCKING);
+				mode = BLOCKING;
+			}
+		}
+		else if (!mode.equals(BLOCKING) && !mode.equals(ASYNC))
+		{
+			context.log("Unknown relay.mode " + mode + ", using " + BLOCKING);
+			mode = BLOCKING;
+		}
+		context.log("Relay mode: " + mode);
+	}
+
+	/**
+	 * Stops the virtual thread executor, if any.
+	 */
+	public static synchronized void stop(ServletContext context)
+	{
+		if (executor != null) executor.shutdownNow();
+		executor = null;
+	}
+
+	/**
+	 * Reports whether relays that can go through AsyncRelay should
+	 */
+	public static boolean isAsync()
+	{
+		return mode.equals(ASYNC);
+	}
+
+	/**
+	 * Runs the handler on the incoming request according to the relay mode.
+	 */
+	public static void run(HttpServletRequest incomingRequest, HttpServletResponse incomingResponse, Handler handler)
+			throws ServletException, IOException
+	{
+		ExecutorService relays = executor;
+		if (relays == null)
+		{
+			handler.handle(incomingRequest, incomingResponse);
+			return;
+		}
+
+		// Release the container thread. The relay has no container timeout because the upstream client has its
+		// own, and completing the request underneath a running relay would hand it a recycled response.
+		AsyncContext async = incomingRequest.startAsync(incomingRequest, incomingResponse);
+		async.setTimeout(0);
+		try
+		{
+			relays.execute(() -> relay(async, handler));
+		}
+		catch (RejectedExecutionException e)
+		{
+			incomingResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			async.complete();
+		}
+	}
+
+	/**
+	 * Runs the handler on the request held by the AsyncContext, then finishes its transcoded and compressed body, if
+	 * any, and completes it.
+	 */
+	private static void relay(AsyncContext async, Handler handler)
+	{
+		HttpServletResponse incomingResponse = (HttpServletResponse) async.getResponse();
+		try
+		{
+			handler.handle((HttpServletRequest) async.getRequest(), incomingResponse);
+		}
+		catch (ServletException | IOException | RuntimeException e)
+		{
+			context.log("Relay failed", e);
+			if (!incomingResponse.isCommitted())
+			{
+				incomingResponse.reset();
+				incomingResponse.setStatus(HttpServletResponse.SC_BAD_GATEWAY);
+			}
+		}
+		finally
+		{
+			try
+			{
+				Cbor.finish(incomingResponse);
+				Compression.finish(incomingResponse);
+			}
+			catch (IOException e)
+			{
+				context.log("Relay failed", e);
+			}
+			async.complete();
+		}
+	}
+
+	/**
+	 * Returns an executor that starts a virtual thread for each task, or null if the runtime doesn't have virtual
+	 * threads. Reflection keeps the proxy compatible with the Java 8 runtimes it is built for.
+	 */
+	public static ExecutorService newVirtualThreadExecutor()
+	{
+		try
+		{
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			return null;
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * Strong entity tags for the proxy's successful GET responses, computed from the bytes the client receives. Canvas's
+ * own validators are kept for revalidating the cache with Canvas but never reach the client, since many listings have
+ * none and those that do describe the body before the proxy trimmed or spliced it. A client that sends a matching
+ * If-None-Match is answered with a bodiless 304.
+ */
+public class ETags
+{
+	/**
+	 * Largest streamed body that is held back to be tagged; a larger one is sent untagged as it streams
+	 */
+	private static long maxBufferBytes = 1024 * 1024;
+
+	/**
+	 * Counters reported by the status servlet
+	 */
+	private static final LongAdder tagged = new LongAdder();
+	private static final LongAdder notModified = new LongAdder();
+	private static final LongAdder bytesSaved = new LongAdder();
+	private static final LongAdder untagged = new LongAdder();
+
+	/**
+	 * Reads the etags.maxBufferBytes context parameter.
+	 */
+	public static void start(ServletContext context)
+	{
+		maxBufferBytes = Config.getLong(context, "etags.maxBufferBytes", maxBufferBytes);
+	}
+
+	/**
+	 * Returns the strong entity tag of the body, quoted as it appears in headers
+	 */
+	public static String compute(byte[] body)
+	{
+		return "\"" + Hex.encodeHexString(Utils.sha256(body)).substring(0, 32) + "\"";
+	}
+
+	/**
+	 * Reports whether the If-None-Match header, which may be null, matches the entity tag. Tags are compared weakly,
+	 * as RFC 7232 requires for If-None-Match.
+	 */
+	public static boolean matches(String ifNoneMatch, String etag)
+	{
+		if (ifNoneMatch == null) return false;
+		for (String candidate : ifNoneMatch.split(","))
+		{
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+			if (candidate.equals("*") || candidate.equals(etag)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Sends the response to the incoming request. A successful response is tagged, and sent without its body if the
+	 * client already has it.
+	 */
+	public static void send(BufferedResponse response, HttpServletRequest incomingRequest,
+			HttpServletResponse incomingResponse) throws IOException
+	{
+		if (response.getStatusCode() != HttpStatus.SC_OK)
+		{
+			HttpResponse untaggedResponse = response.toHttpResponse();
+			Utils.filterResponseHeaders(untaggedResponse, incomingResponse, incomingRequest);
+			Utils.copyResponseBody(untaggedResponse, incomingResponse);
+			return;
+		}
+
+		String etag = response.getStrongETag();
+		boolean unchanged = matches(incomingRequest.getHeader("If-None-Match"), etag);
+		HttpResponse taggedResponse = response.withHeaders(new BasicHeader("ETag", etag)).toHttpResponse();
+		Utils.filterResponseHeaders(taggedResponse, incomingResponse, incomingRequest, !unchanged);
+		tagged.increment();
+		if (unchanged)
+		{
+			notModified.increment();
+			bytesSaved.add(response.getBody().length);
+			incomingResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		Utils.copyResponseBody(taggedResponse, incomingResponse);
+	}
+
+	/**
+	 * A stream for a successful body that is relayed as it is produced. The body is held back until it is complete,
+	 * so that it can be tagged and, if the client already has it, replaced by a 304. Once it outgrows
+	 * etags.maxBufferBytes, what has been held back is sent and the rest streams through untagged.
+	 */
+	public static class TaggingStream extends OutputStream
+	{
+		private final HttpServletRequest incomingRequest;
+		private final HttpServletResponse incomingResponse;
+
+		/**
+		 * The body so far, or null once it has been let through
+		 */
+		private ByteArrayOutputStream held = new ByteArrayOutputStream();
+
+		/**
+		 * The incoming response's stream, once the body has been let through
+		 */
+		private OutputStream through;
+
+		public TaggingStream(HttpServletRequest incomingRequest, HttpServletResponse incomingResponse)
+		{
+			this.incomingRequest = incomingRequest;
+			this.incomingResponse = incomingResponse;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			if (through == null && held.size() + len > maxBufferBytes)
+			{
+				untagged.increment();
+				through = incomingResponse.getOutputStream();
+				held.writeTo(through);
+				held = null;
+			}
+			if (through != null)
+			{
+				through.write(b, off, len);
+			}
+			else
+			{
+				held.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			if (through != null) through.flush();
+		}
+
+		/**
+		 * Sends whatever has been held back, or a 304 in its place
+		 */
+		public void finish() throws IOException
+		{
+			if (through != null)
+			{
+				through.flush();
+				return;
+			}
+
+			byte[] body = held.toByteArray();
+			String etag = compute(body);
+			incomingResponse.setHeader("ETag", etag);
+			tagged.increment();
+			if (matches(incomingRequest.getHeader("If-None-Match"), etag))
+			{
+				notModified.increment();
+				bytesSaved.add(body.length);
+				incomingResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+			incomingResponse.setContentLength(body.length);
+			incomingResponse.getOutputStream().write(body);
+			incomingResponse.getOutputStream().flush();
+		}
+
+		/**
+		 * Returns the whole body, or null if it outgrew etags.maxBufferBytes and was let through
+		 */
+		public byte[] getBody()
+		{
+			return (held == null) ? null : held.toByteArray();
+		}
+	}
+
+	/**
+	 * Returns the number of responses tagged, answered with 304 and the body bytes that saved, and streamed bodies
+	 * too large to tag.
+	 */
+	public static Map<String, Number> getStats()
+	{
+		Map<String, Number> stats = new LinkedHashMap<>();
+		stats.put("tagged", tagged.sum());
+		stats.put("notModified", notModified.sum());
+		stats.put("bytesSaved", bytesSaved.sum());
+		stats.put("untagged", untagged.sum());
+		return stats;
+	}
+}
@@ -0,0 +1,239 @@
+package utils;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.ServletResponseWrapper;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A response whose body may be sent in a different encoding from the one the servlet writes. How to send it is decided
+ * once the body starts, since the headers may change until then; a Content-Length set before that is held back,
+ * because it won't apply to an encoded body. Subclasses receive the body through write and send whatever they still
+ * hold when it is finished.
+ */
+abstract class EncodingResponse extends HttpServletResponseWrapper
+{
+	/**
+	 * Content-Length set while undecided, or -1
+	 */
+	protected long contentLength = -1;
+
+	/**
+	 * Whether it has been decided how to send the body
+	 */
+	protected boolean decided;
+
+	private Stream stream;
+	private PrintWriter writer;
+	private boolean finished;
+
+	EncodingResponse(HttpServletResponse incomingResponse)
+	{
+		super(incomingResponse);
+	}
+
+	/**
+	 * Writes to the body
+	 */
+	protected abstract void write(byte[] b, int off, int len) throws IOException;
+
+	/**
+	 * Sends what has been written so far, if it has been decided how
+	 */
+	protected abstract void flushBody() throws IOException;
+
+	/**
+	 * Sends the rest of the body, deciding how if that hasn't been done
+	 */
+	protected abstract void finishBody() throws IOException;
+
+	/**
+	 * Forgets the body, which is being started again
+	 */
+	protected abstract void resetBody();
+
+	/**
+	 * Applies the Content-Length that was held back, for a body that is sent as it was written
+	 */
+	protected void keepContentLength()
+	{
+		if (contentLength >= 0) super.setContentLengthLong(contentLength);
+	}
+
+	/**
+	 * Sends the rest of the body. Later calls do nothing.
+	 */
+	void finish() throws IOException
+	{
+		if (finished) return;
+		finished = true;
+		if (writer != null) writer.flush();
+		finishBody();
+	}
+
+	/**
+	 * Finishes the first response of the type among the response and those it wraps, if there is one
+	 */
+	static void finish(ServletResponse response, Class<? extends EncodingResponse> type) throws IOException
+	{
+		while (response instanceof ServletResponseWrapper)
+		{
+			if (type.isInstance(response))
+			{
+				((EncodingResponse) response).finish();
+				return;
+			}
+			response = ((ServletResponseWrapper) response).getResponse();
+		}
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream()
+	{
+		if (stream == null) stream = new Stream();
+		return stream;
+	}
+
+	@Override
+	public PrintWriter getWriter() throws IOException
+	{
+		if (writer == null)
+		{
+			writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+		}
+		return writer;
+	}
+
+	@Override
+	public void setContentLength(int len)
+	{
+		setContentLengthLong(len);
+	}
+
+	@Override
+	public void setContentLengthLong(long len)
+	{
+		if (!decided)
+		{
+			contentLength = len;
+		}
+		else
+		{
+			super.setContentLengthLong(len);
+		}
+	}
+
+	@Override
+	public void setHeader(String name, String value)
+	{
+		if (!decided && name.equalsIgnoreCase("Content-Length"))
+		{
+			contentLength = Long.parseLong(value.trim());
+		}
+		else
+		{
+			super.setHeader(name, value);
+		}
+	}
+
+	@Override
+	public void addHeader(String name, String value)
+	{
+		if (!decided && name.equalsIgnoreCase("Content-Length"))
+		{
+			contentLength = Long.parseLong(value.trim());
+		}
+		else
+		{
+			super.addHeader(name, value);
+		}
+	}
+
+	@Override
+	public void setIntHeader(String name, int value)
+	{
+		setHeader(name, Integer.toString(value));
+	}
+
+	@Override
+	public void addIntHeader(String name, int value)
+	{
+		addHeader(name, Integer.toString(value));
+	}
+
+	@Override
+	public void flushBuffer() throws IOException
+	{
+		if (writer != null) writer.flush();
+		flushBody();
+		if (decided) super.flushBuffer();
+	}
+
+	@Override
+	public void reset()
+	{
+		super.reset();
+		contentLength = -1;
+		decided = false;
+		finished = false;
+		stream = null;
+		writer = null;
+		resetBody();
+	}
+
+	@Override
+	public void resetBuffer()
+	{
+		super.resetBuffer();
+		resetBody();
+	}
+
+	/**
+	 * The stream handed to servlets in place of the incoming response's
+	 */
+	private class Stream extends ServletOutputStream
+	{
+		@Override
+		public void write(int b) throws IOException
+		{
+			EncodingResponse.this.write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			EncodingResponse.this.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			flushBody();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			finish();
+			getResponse().getOutputStream().close();
+		}
+
+		@Override
+		public boolean isReady()
+		{
+			return true;
+		}
+
+		@Override
+		public void setWriteListener(WriteListener listener)
+		{
+			throw new IllegalStateException("Encoded responses are written with blocking I/O");
+		}
+	}
+}
@@ -2,6 +2,10 @@ package utils;
 
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -10,6 +14,7 @@ import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.xml.bind.DatatypeConverter;
 
@@ -25,11 +30,63 @@ public class Encryption
 	 */
 	private final static int BITS = 128;
 
+	/**
+	 * Number of idle ciphers kept for each mode
+	 */
+	private final static int POOL_SIZE = 64;
+
 	/**
 	 * The key used throughout
 	 */
 	private final static SecretKey key;
 
+	/**
+	 * Idle ciphers initialized for encryption and decryption. A Cipher resets itself after doFinal, so it can be
+	 * reused without another getInstance and init.
+	 */
+	private final static BlockingQueue<Cipher> encrypters = new ArrayBlockingQueue<>(POOL_SIZE);
+	private final static BlockingQueue<Cipher> decrypters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+	/**
+	 * Maximum number of decrypted tokens that are remembered
+	 */
+	private static int cacheSize = 10000;
+
+	/**
+	 * How long a decrypted token is remembered. Canvas access tokens live for an hour.
+	 */
+	private static long cacheMillis = 3600 * 1000;
+
+	/**
+	 * Recently decrypted tokens by ciphertext, in least to most recently used order
+	 */
+	private final static LinkedHashMap<String, DecryptedToken> decrypted = new LinkedHashMap<String, DecryptedToken>(
+			256, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, DecryptedToken> eldest)
+		{
+			return size() > cacheSize;
+		}
+	};
+
+	/**
+	 * A remembered decryption
+	 */
+	private static class DecryptedToken
+	{
+		final String plaintext;
+		final long expires;
+
+		DecryptedToken(String plaintext, long expires)
+		{
+			this.plaintext = plaintext;
+			this.expires = expires;
+		}
+	}
+
 	static
 	{
 		byte[] encodedKey = DatatypeConverter.parseHexBinary(Secrets.AES_KEY);
@@ -47,16 +104,31 @@ public class Encryption
 		System.out.println(DatatypeConverter.printHexBinary(key.getEncoded()));
 	}
 
+	/**
+	 * Reads the encryption.* context parameters that size the decrypted token cache.
+	 */
+	public static void start(ServletContext context)
+	{
+		synchronized (decrypted)
+		{
+			cacheSize = Config.getInt(context, "encryption.cacheSize", cacheSize);
+			cacheMillis = Config.getLong(context, "encryption.cacheSeconds", cacheMillis / 1000) * 1000;
+			decrypted.clear();
+		}
+	}
+
 	/**
 	 * Encrypts s. Returns null on failure.
 	 */
 	public static String encrypt(String s) throws ServletException
 	{
+		long start = System.nanoTime();
 		try
 		{
-			Cipher encrypter = Cipher.getInstance("AES");
-			encrypter.init(Cipher.ENCRYPT_MODE, key);
-			return new String(Base64.encodeBase64(encrypter.doFinal(s.getBytes())));
+			Cipher encrypter = borrow(encrypters, Cipher.ENCRYPT_MODE);
+			String encrypted = new String(Base64.encodeBase64(encrypter.doFinal(s.getBytes())));
+			encrypters.offer(encrypter);
+			return encrypted;
 		}
 		catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException
 				| BadPaddingException e)
@@ -64,19 +136,56 @@ public class Encryption
 			e.printStackTrace();
 			return null;
 		}
+		finally
+		{
+			Metrics.recordEncryption(System.nanoTime() - start);
+		}
 	}
 
 	/**
-	 * Decrypts s. Returns null on failure.
+	 * Decrypts s. Returns null on failure. Successful decryptions are remembered for the lifetime of a token.
 	 */
 	public static String decrypt(String s) throws ServletException
 	{
-		Cipher decrypter;
+		long start = System.nanoTime();
+		try
+		{
+			if (s == null) return decryptUncached(s);
+
+			long now = System.currentTimeMillis();
+			synchronized (decrypted)
+			{
+				DecryptedToken token = decrypted.get(s);
+				if (token != null && token.expires > now) return token.plaintext;
+			}
+
+			String plaintext = decryptUncached(s);
+			if (plaintext != null)
+			{
+				synchronized (decrypted)
+				{
+					decrypted.put(s, new DecryptedToken(plaintext, now + cacheMillis));
+				}
+			}
+			return plaintext;
+		}
+		finally
+		{
+			Metrics.recordDecryption(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Decrypts s without consulting the decrypted token cache. Returns null on failure.
+	 */
+	static String decryptUncached(String s) throws ServletException
+	{
 		try
 		{
-			decrypter = Cipher.getInstance("AES");
-			decrypter.init(Cipher.DECRYPT_MODE, key);
-			return new String(decrypter.doFinal(Base64.decodeBase64(s)));
+			Cipher decrypter = borrow(decrypters, Cipher.DECRYPT_MODE);
+			String plaintext = new String(decrypter.doFinal(Base64.decodeBase64(s)));
+			decrypters.offer(decrypter);
+			return plaintext;
 		}
 		catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException
 				| BadPaddingException e)
@@ -88,4 +197,28 @@ public class Encryption
 			return null;
 		}
 	}
+
+	/**
+	 * Returns the key, for benchmarking
+	 */
+	static SecretKey getKey()
+	{
+		return key;
+	}
+
+	/**
+	 * Takes an idle cipher from the pool, or makes a new one initialized for the mode if the pool is empty. The
+	 * caller offers the cipher back to the pool only if it was used successfully.
+	 */
+	private static Cipher borrow(BlockingQueue<Cipher> pool, int mode)
+			throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException
+	{
+		Cipher cipher = pool.poll();
+		if (cipher == null)
+		{
+			cipher = Cipher.getInstance("AES");
+			cipher.init(mode, key);
+		}
+		return cipher;
+	}
 }
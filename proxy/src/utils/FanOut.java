@@ -0,0 +1,109 @@
+package utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+
+/**
+ * Runs the upstream calls that one incoming request fans out into, so that they can proceed in parallel. Each task runs
+ * on its own virtual thread when the runtime has them, and otherwise on a cached pool of daemon threads.
+ */
+public class FanOut
+{
+	/**
+	 * An upstream call
+	 */
+	public interface Call<T>
+	{
+		T call() throws IOException;
+	}
+
+	/**
+	 * Runs the calls
+	 */
+	private static ExecutorService executor = Executors.newCachedThreadPool(new FanOutThreadFactory());
+
+	/**
+	 * Replaces the default executor with virtual threads if the runtime has them.
+	 */
+	public static synchronized void start(ServletContext context)
+	{
+		executor.shutdown();
+		ExecutorService virtual = Dispatch.newVirtualThreadExecutor();
+		executor = (virtual == null) ? Executors.newCachedThreadPool(new FanOutThreadFactory()) : virtual;
+		context.log("Fan-out threads: " + ((virtual == null) ? "pooled" : "virtual"));
+	}
+
+	/**
+	 * Stops the executor.
+	 */
+	public static synchronized void stop(ServletContext context)
+	{
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Starts the call and returns its eventual result.
+	 */
+	public static <T> CompletableFuture<T> submit(Call<T> call)
+	{
+		CompletableFuture<T> future = new CompletableFuture<>();
+		executor.execute(() ->
+		{
+			try
+			{
+				future.complete(call.call());
+			}
+			catch (IOException | RuntimeException e)
+			{
+				future.completeExceptionally(e);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Waits for the future, rethrowing whatever it failed with.
+	 */
+	public static <T> T await(CompletableFuture<T> future) throws IOException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for Canvas");
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Names fan-out threads so they can be told apart from container threads
+	 */
+	private static class FanOutThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "proxy-fanout-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,461 @@
+package utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.ServletContext;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+/**
+ * Execution policy for the idempotent GETs that CoursesAndFolders relays. A GET that fails with an I/O error or a 500,
+ * 502, 503 or 504 is retried after a backoff chosen at random between zero and an exponentially growing cap. A GET
+ * that is still waiting once its route's 95th percentile latency has passed can optionally be hedged with a duplicate,
+ * and whichever response arrives first is used. Retries and hedges draw on a budget that every GET adds a fraction of
+ * a token to, so during an outage they add at most that fraction to the load on Canvas. POSTs never come here.
+ */
+public class GetPolicy
+{
+	/**
+	 * Number of latencies kept for each route
+	 */
+	private final static int WINDOW = 256;
+
+	/**
+	 * How often, in samples, a route's 95th percentile is recomputed
+	 */
+	private final static int RECOMPUTE = 32;
+
+	/**
+	 * Greatest number of attempts at a GET, including the first
+	 */
+	private static int attempts = 3;
+
+	/**
+	 * Cap on the first backoff, which doubles for each later one
+	 */
+	private static long baseMillis = 100;
+
+	/**
+	 * Largest backoff
+	 */
+	private static long maxMillis = 2000;
+
+	/**
+	 * Thousandths of a retry that each GET adds to the budget, and the most the budget can hold
+	 */
+	private static long depositMillis = 100;
+	private static long capMillis = 100 * 1000;
+
+	/**
+	 * Shortest delay before a hedge, so that fast routes aren't hedged on noise
+	 */
+	private static long hedgeMinNanos = TimeUnit.MILLISECONDS.toNanos(50);
+
+	/**
+	 * Runs hedged attempts, or null if hedging is off
+	 */
+	private static ExecutorService hedger;
+
+	/**
+	 * Retry budget in thousandths of a retry
+	 */
+	private final static AtomicLong budget = new AtomicLong();
+
+	/**
+	 * Recent latencies by route
+	 */
+	private final static ConcurrentHashMap<String, Latencies> latencies = new ConcurrentHashMap<>();
+
+	/**
+	 * Counters reported by the status servlet
+	 */
+	private final static LongAdder retries = new LongAdder();
+	private final static LongAdder hedges = new LongAdder();
+	private final static LongAdder hedgeWins = new LongAdder();
+	private final static LongAdder budgetExhausted = new LongAdder();
+
+	/**
+	 * Reads the retry.* context parameters and starts the hedging threads if hedging is on.
+	 */
+	public static synchronized void start(ServletContext context)
+	{
+		attempts = Math.max(1, Config.getInt(context, "retry.attempts", attempts));
+		baseMillis = Config.getLong(context, "retry.baseMillis", baseMillis);
+		maxMillis = Config.getLong(context, "retry.maxMillis", maxMillis);
+		depositMillis = Config.getInt(context, "retry.budgetPercent", 10) * 10;
+		capMillis = Config.getLong(context, "retry.budgetMax", 100) * 1000;
+		hedgeMinNanos = TimeUnit.MILLISECONDS.toNanos(Config.getLong(context, "retry.hedgeMinMillis", 50));
+		budget.set(capMillis);
+		latencies.clear();
+
+		if (Boolean.parseBoolean(Config.getString(context, "retry.hedge", "false").trim()))
+		{
+			hedger = Dispatch.newVirtualThreadExecutor();
+			if (hedger == null) hedger = Executors.newCachedThreadPool(new HedgeThreadFactory());
+		}
+		context.log("GET policy: attempts=" + attempts + " hedge=" + (hedger != null));
+	}
+
+	/**
+	 * Stops the hedging threads, if any.
+	 */
+	public static synchronized void stop(ServletContext context)
+	{
+		if (hedger != null) hedger.shutdownNow();
+		hedger = null;
+	}
+
+	/**
+	 * Executes the outgoing GET, whose incoming request has the given route (see Utils.getRoute), retrying and
+	 * hedging it as the policy allows. Returns the last response if every attempt got a retryable one, and throws the
+	 * last exception if every attempt failed. Throws a CircuitOpenException at once while the route's circuit is open.
+	 */
+	public static CloseableHttpResponse execute(HttpGet outgoingRequest, String route) throws IOException
+	{
+		deposit();
+		Latencies routeLatencies = getLatencies(route);
+		CircuitBreaker breaker = CircuitBreaker.forRoute(route);
+		for (int attempt = 1;; attempt++)
+		{
+			breaker.allow();
+			CloseableHttpResponse outgoingResponse;
+			try
+			{
+				outgoingResponse = attempt(copy(outgoingRequest), routeLatencies);
+			}
+			catch (IOException e)
+			{
+				breaker.record(false);
+				if (attempt == attempts || !withdraw()) throw e;
+				backoff(attempt);
+				continue;
+			}
+			catch (RuntimeException e)
+			{
+				breaker.record(false);
+				throw e;
+			}
+
+			// A request that Limiter shed never reached Canvas, so it is neither a success nor a failure of the route
+			if (Upstream.isShed(outgoingResponse))
+			{
+				breaker.cancel();
+				return outgoingResponse;
+			}
+
+			boolean retryable = isRetryable(outgoingResponse);
+			breaker.record(!isFailure(outgoingResponse));
+			if (attempt == attempts || !retryable || !withdraw()) return outgoingResponse;
+			outgoingResponse.close();
+			backoff(attempt);
+		}
+	}
+
+	/**
+	 * Returns the retries, hedges, hedges that won, and retries or hedges refused for lack of budget.
+	 */
+	public static Map<String, Number> getStats()
+	{
+		Map<String, Number> stats = new LinkedHashMap<>();
+		stats.put("retries", retries.sum());
+		stats.put("hedges", hedges.sum());
+		stats.put("hedgeWins", hedgeWins.sum());
+		stats.put("budgetExhausted", budgetExhausted.sum());
+		return stats;
+	}
+
+	/**
+	 * Reports whether a response counts against its route's circuit: any 5xx, including a 503 with Retry-After, and a
+	 * 429.
+	 */
+	static boolean isFailure(HttpResponse outgoingResponse)
+	{
+		int status = outgoingResponse.getStatusLine().getStatusCode();
+		return status >= HttpStatus.SC_INTERNAL_SERVER_ERROR || status == 429;
+	}
+
+	/**
+	 * Reports whether a response is worth retrying. A 503 with Retry-After, including one from Limiter, asks the proxy
+	 * to back off for longer than a retry would.
+	 */
+	private static boolean isRetryable(CloseableHttpResponse outgoingResponse)
+	{
+		int status = outgoingResponse.getStatusLine().getStatusCode();
+		if (status == HttpStatus.SC_SERVICE_UNAVAILABLE) return outgoingResponse.getFirstHeader("Retry-After") == null;
+		return status == HttpStatus.SC_INTERNAL_SERVER_ERROR || status == HttpStatus.SC_BAD_GATEWAY
+				|| status == HttpStatus.SC_GATEWAY_TIMEOUT;
+	}
+
+	/**
+	 * Makes one attempt, hedged if hedging is on and the route's 95th percentile is known.
+	 */
+	private static CloseableHttpResponse attempt(HttpGet outgoingRequest, Latencies routeLatencies)
+			throws IOException
+	{
+		ExecutorService executor = hedger;
+		long p95 = routeLatencies.p95;
+		if (executor == null || p95 < 0) return timed(outgoingRequest, routeLatencies);
+
+		// Wait for the first request until the 95th percentile has passed
+		CompletableFuture<CloseableHttpResponse> first = submit(executor, outgoingRequest, routeLatencies);
+		try
+		{
+			return first.get(Math.max(p95, hedgeMinNanos), TimeUnit.NANOSECONDS);
+		}
+		catch (TimeoutException e)
+		{
+			// Fall through to hedge
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for Canvas");
+		}
+		catch (ExecutionException e)
+		{
+			return await(first);
+		}
+		if (!withdraw()) return await(first);
+
+		// Take whichever response arrives first, and abandon the other request
+		hedges.increment();
+		HttpGet hedgeRequest = copy(outgoingRequest);
+		CompletableFuture<CloseableHttpResponse> second = submit(executor, hedgeRequest, routeLatencies);
+		CompletableFuture<CloseableHttpResponse> winner = new CompletableFuture<>();
+		AtomicInteger failures = new AtomicInteger();
+		first.whenComplete((r, e) -> settle(winner, r, e, failures, hedgeRequest, false));
+		second.whenComplete((r, e) -> settle(winner, r, e, failures, outgoingRequest, true));
+		return await(winner);
+	}
+
+	/**
+	 * Offers a finished attempt's outcome as the winner. A response that loses the race is closed, and the request
+	 * that loses is aborted. The winner fails only if both attempts do.
+	 */
+	private static void settle(CompletableFuture<CloseableHttpResponse> winner, CloseableHttpResponse outgoingResponse,
+			Throwable failure, AtomicInteger failures, HttpGet other, boolean isHedge)
+	{
+		if (failure != null)
+		{
+			if (failures.incrementAndGet() == 2) winner.completeExceptionally(failure);
+			return;
+		}
+		if (winner.complete(outgoingResponse))
+		{
+			if (isHedge) hedgeWins.increment();
+			other.abort();
+		}
+		else
+		{
+			close(outgoingResponse);
+		}
+	}
+
+	/**
+	 * Runs the request on the executor
+	 */
+	private static CompletableFuture<CloseableHttpResponse> submit(ExecutorService executor, HttpGet outgoingRequest,
+			Latencies routeLatencies)
+	{
+		CompletableFuture<CloseableHttpResponse> future = new CompletableFuture<>();
+		executor.execute(() ->
+		{
+			try
+			{
+				future.complete(timed(outgoingRequest, routeLatencies));
+			}
+			catch (IOException | RuntimeException e)
+			{
+				future.completeExceptionally(e);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Executes the request, recording how long the response took to arrive.
+	 */
+	private static CloseableHttpResponse timed(HttpGet outgoingRequest, Latencies routeLatencies) throws IOException
+	{
+		long start = System.nanoTime();
+		CloseableHttpResponse outgoingResponse = Upstream.execute(outgoingRequest);
+		routeLatencies.record(System.nanoTime() - start);
+		return outgoingResponse;
+	}
+
+	/**
+	 * Waits for the future, rethrowing whatever it failed with.
+	 */
+	private static CloseableHttpResponse await(CompletableFuture<CloseableHttpResponse> future) throws IOException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for Canvas");
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Sleeps for a random time up to the backoff cap of the attempt that just failed.
+	 */
+	private static void backoff(int attempt) throws InterruptedIOException
+	{
+		retries.increment();
+		long cap = Math.min(maxMillis, baseMillis << Math.min(attempt - 1, 20));
+		try
+		{
+			Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted backing off");
+		}
+	}
+
+	/**
+	 * Adds a GET's share to the retry budget.
+	 */
+	private static void deposit()
+	{
+		long current;
+		do
+		{
+			current = budget.get();
+			if (current >= capMillis) return;
+		}
+		while (!budget.compareAndSet(current, Math.min(capMillis, current + depositMillis)));
+	}
+
+	/**
+	 * Takes one retry from the budget. Returns false if there isn't one.
+	 */
+	private static boolean withdraw()
+	{
+		long current;
+		do
+		{
+			current = budget.get();
+			if (current < 1000)
+			{
+				budgetExhausted.increment();
+				return false;
+			}
+		}
+		while (!budget.compareAndSet(current, current - 1000));
+		return true;
+	}
+
+	/**
+	 * Returns a fresh GET with the same URI and headers, since a request that has been aborted can't be reused.
+	 */
+	private static HttpGet copy(HttpGet outgoingRequest)
+	{
+		HttpGet copy = new HttpGet(outgoingRequest.getURI());
+		copy.setHeaders(outgoingRequest.getAllHeaders());
+		copy.setConfig(outgoingRequest.getConfig());
+		return copy;
+	}
+
+	/**
+	 * Closes a response that won't be used.
+	 */
+	private static void close(CloseableHttpResponse outgoingResponse)
+	{
+		try
+		{
+			outgoingResponse.close();
+		}
+		catch (IOException e)
+		{
+			// Nothing more to do
+		}
+	}
+
+	/**
+	 * Returns the latencies of the route, creating them if needed.
+	 */
+	private static Latencies getLatencies(String route)
+	{
+		Latencies routeLatencies = latencies.get(route);
+		if (routeLatencies != null) return routeLatencies;
+		Latencies mine = new Latencies();
+		routeLatencies = latencies.putIfAbsent(route, mine);
+		return (routeLatencies == null) ? mine : routeLatencies;
+	}
+
+	/**
+	 * Recent upstream latencies of one route and their 95th percentile
+	 */
+	private static class Latencies
+	{
+		/**
+		 * Ring of recent latencies in nanoseconds. Concurrent writers may overwrite each other's slots, which only
+		 * loses a sample.
+		 */
+		private final long[] samples = new long[WINDOW];
+		private final AtomicInteger count = new AtomicInteger();
+
+		/**
+		 * 95th percentile of the samples, or -1 until the ring has filled
+		 */
+		volatile long p95 = -1;
+
+		void record(long nanos)
+		{
+			int n = count.getAndIncrement() & Integer.MAX_VALUE;
+			samples[n % WINDOW] = nanos;
+			if (n + 1 >= WINDOW && (n + 1) % RECOMPUTE == 0)
+			{
+				long[] sorted = samples.clone();
+				Arrays.sort(sorted);
+				p95 = sorted[WINDOW * 95 / 100];
+			}
+		}
+	}
+
+	/**
+	 * Names hedging threads so they can be told apart from container threads
+	 */
+	private static class HedgeThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "proxy-hedge-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
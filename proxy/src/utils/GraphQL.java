@@ -0,0 +1,214 @@
+package utils;
+
+import static utils.RemoteServer.*;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.ServletContext;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Queries that the proxy makes to Canvas's GraphQL API to build its composite responses. A query asks for exactly the
+ * members it needs, so one call can take the place of REST calls that send whole objects. Callers fall back to REST
+ * whenever a query returns null: when graphql.enabled is false, when Canvas has no GraphQL endpoint, when the
+ * endpoint's circuit is open, or when the query fails or reports errors. A 404 from the endpoint stops queries for
+ * graphql.retrySeconds, so a Canvas without GraphQL costs one wasted call in that time rather than one per listing.
+ */
+public class GraphQL
+{
+	/**
+	 * Route of the endpoint, for its circuit breaker
+	 */
+	private final static String ROUTE = "/api/graphql";
+
+	/**
+	 * Sends a query to Canvas. The local stand-in replaces it with its own client.
+	 */
+	interface Transport
+	{
+		CloseableHttpResponse execute(HttpPost outgoingRequest) throws IOException;
+	}
+
+	/**
+	 * URL of the endpoint and how queries are sent to it
+	 */
+	static String endpoint = OUTGOING_PREFIX + ROUTE;
+	static Transport transport = Upstream::execute;
+
+	/**
+	 * Whether queries are made at all
+	 */
+	private static boolean enabled = true;
+
+	/**
+	 * How long to go without queries after the endpoint answers 404
+	 */
+	private static long retryMillis = TimeUnit.MINUTES.toMillis(10);
+
+	/**
+	 * When queries may be made again, from System.currentTimeMillis
+	 */
+	private static volatile long unavailableUntil;
+
+	/**
+	 * Counters reported by the status servlet
+	 */
+	private static final LongAdder queries = new LongAdder();
+	private static final LongAdder answered = new LongAdder();
+	private static final LongAdder fallbacks = new LongAdder();
+
+	/**
+	 * Reads the graphql.* context parameters.
+	 */
+	public static void start(ServletContext context)
+	{
+		enabled = Boolean.parseBoolean(Config.getString(context, "graphql.enabled", "true"));
+		retryMillis = TimeUnit.SECONDS.toMillis(Config.getLong(context, "graphql.retrySeconds", 600));
+		unavailableUntil = 0;
+	}
+
+	/**
+	 * Runs the query with the variables as the owner of the token, and returns its data, or null if the caller should
+	 * use REST instead.
+	 */
+	@SuppressWarnings("unchecked")
+	public static JSONObject query(String document, JSONObject variables, String token)
+	{
+		if (!enabled || System.currentTimeMillis() < unavailableUntil) return null;
+		queries.increment();
+
+		CircuitBreaker breaker = CircuitBreaker.forRoute(ROUTE);
+		try
+		{
+			breaker.allow();
+		}
+		catch (CircuitOpenException e)
+		{
+			return fallBack();
+		}
+
+		JSONObject body = new JSONObject();
+		body.put("query", document);
+		body.put("variables", variables);
+		HttpPost outgoingRequest = new HttpPost(endpoint);
+		outgoingRequest.addHeader("Authorization", "Bearer " + token);
+		outgoingRequest.addHeader("Accept", "application/json");
+		outgoingRequest.setEntity(new StringEntity(body.toJSONString(), ContentType.APPLICATION_JSON));
+
+		Object response;
+		try (CloseableHttpResponse outgoingResponse = transport.execute(outgoingRequest))
+		{
+			// A query that Limiter shed never reached Canvas, and says nothing about the endpoint
+			if (Upstream.isShed(outgoingResponse))
+			{
+				breaker.cancel();
+				return fallBack();
+			}
+			int status = outgoingResponse.getStatusLine().getStatusCode();
+			breaker.record(status < 500 && status != 429);
+			if (status == HttpStatus.SC_NOT_FOUND) unavailableUntil = System.currentTimeMillis() + retryMillis;
+			if (status != HttpStatus.SC_OK) return fallBack();
+			try (Reader reader = new InputStreamReader(outgoingResponse.getEntity().getContent(),
+					StandardCharsets.UTF_8))
+			{
+				response = new JSONParser().parse(reader);
+			}
+		}
+		catch (IOException e)
+		{
+			breaker.record(false);
+			return fallBack();
+		}
+		catch (RuntimeException e)
+		{
+			breaker.record(false);
+			throw e;
+		}
+		catch (ParseException e)
+		{
+			return fallBack();
+		}
+
+		// Errors may come with partial data, which can't stand in for a REST answer
+		if (!(response instanceof JSONObject)) return fallBack();
+		Object errors = ((JSONObject) response).get("errors");
+		Object data = ((JSONObject) response).get("data");
+		if ((errors instanceof List && !((List<?>) errors).isEmpty()) || !(data instanceof JSONObject))
+		{
+			return fallBack();
+		}
+		answered.increment();
+		return (JSONObject) data;
+	}
+
+	/**
+	 * Returns every node of the connection at the path of members through the query's data, following its pages, or
+	 * null as for query. The query must take an $after cursor and ask for the connection's nodes and its pageInfo's
+	 * hasNextPage and endCursor.
+	 */
+	@SuppressWarnings("unchecked")
+	public static JSONArray getNodes(String document, JSONObject variables, String token, String... path)
+	{
+		JSONArray nodes = new JSONArray();
+		JSONObject pageVariables = new JSONObject(variables);
+		while (true)
+		{
+			JSONObject data = query(document, pageVariables, token);
+			if (data == null) return null;
+
+			Object connection = data;
+			for (String member : path)
+			{
+				connection = (connection instanceof JSONObject) ? ((JSONObject) connection).get(member) : null;
+			}
+			if (!(connection instanceof JSONObject)) return fallBack();
+			Object page = ((JSONObject) connection).get("nodes");
+			Object pageInfo = ((JSONObject) connection).get("pageInfo");
+			if (!(page instanceof JSONArray) || !(pageInfo instanceof JSONObject)) return fallBack();
+			nodes.addAll((JSONArray) page);
+
+			if (!Boolean.TRUE.equals(((JSONObject) pageInfo).get("hasNextPage"))) return nodes;
+			Object cursor = ((JSONObject) pageInfo).get("endCursor");
+			if (cursor == null) return fallBack();
+			pageVariables.put("after", cursor);
+		}
+	}
+
+	/**
+	 * Counts a query that REST must answer instead, and returns null
+	 */
+	private static <T> T fallBack()
+	{
+		fallbacks.increment();
+		return null;
+	}
+
+	/**
+	 * Returns the number of queries made, those answered, and those left to REST.
+	 */
+	public static Map<String, Number> getStats()
+	{
+		Map<String, Number> stats = new LinkedHashMap<>();
+		stats.put("queries", queries.sum());
+		stats.put("answered", answered.sum());
+		stats.put("fallbacks", fallbacks.sum());
+		return stats;
+	}
+}
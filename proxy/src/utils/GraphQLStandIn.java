@@ -0,0 +1,172 @@
+package utils;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks the GraphQL queries that stand in for REST calls against a local stand-in for Canvas's GraphQL endpoint: that
+ * a course's assignments are read across pages into the REST API's form, and that errors and a missing endpoint leave
+ * the listing to REST. Prints each check and exits with status 1 if any fails.
+ *
+ * Usage: GraphQLStandIn [assignments]
+ *
+ * The classpath needs the jars in WEB-INF/lib plus Tomcat's servlet-api.jar.
+ */
+public class GraphQLStandIn
+{
+	/**
+	 * Token the stand-in expects
+	 */
+	private static final String TOKEN = "stand-in-token";
+
+	/**
+	 * Assignments in each page the stand-in sends
+	 */
+	private static final int PAGE_SIZE = 100;
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception
+	{
+		int count = (args.length > 0) ? Integer.parseInt(args[0]) : 150;
+
+		HttpServer canvas = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		canvas.createContext("/api/graphql", exchange -> answer(exchange, count));
+		canvas.createContext("/errors/graphql", exchange -> send(exchange, 200,
+				"{\"data\":null,\"errors\":[{\"message\":\"Field 'course' doesn't exist\"}]}"));
+		canvas.createContext("/missing/graphql", exchange -> send(exchange, 404, ""));
+		canvas.start();
+		String prefix = "http://localhost:" + canvas.getAddress().getPort();
+
+		try (CloseableHttpClient client = HttpClients.createDefault())
+		{
+			GraphQL.transport = client::execute;
+
+			// Every page is read, and each assignment has the members and forms of the REST API
+			GraphQL.endpoint = prefix + "/api/graphql";
+			JSONArray assignments = Deltas.listAssignments("42", TOKEN);
+			check("pages", assignments != null && assignments.size() == count);
+			JSONObject first = (assignments == null || assignments.isEmpty()) ? null : (JSONObject) assignments.get(0);
+			Object expected = new JSONParser().parse("{\"id\":1001,\"name\":\"Assignment 1\","
+					+ "\"locked_for_user\":false,\"allowed_extensions\":[\"zip\"],\"unlock_at\":null,"
+					+ "\"due_at\":\"2024-01-10T06:59:59Z\",\"lock_at\":null}");
+			check("members", expected.equals(first));
+			JSONObject second = (assignments == null || assignments.size() < 2) ? null : (JSONObject) assignments.get(1);
+			check("no extensions", second != null && !second.containsKey("allowed_extensions"));
+
+			// A query that Canvas answers with errors is left to REST
+			GraphQL.endpoint = prefix + "/errors/graphql";
+			check("errors", Deltas.listAssignments("42", TOKEN) == null);
+
+			// So is one to a Canvas without GraphQL, which isn't asked again for a while
+			GraphQL.endpoint = prefix + "/missing/graphql";
+			check("missing", Deltas.listAssignments("42", TOKEN) == null);
+			long queries = GraphQL.getStats().get("queries").longValue();
+			GraphQL.endpoint = prefix + "/api/graphql";
+			check("not asked again", Deltas.listAssignments("42", TOKEN) == null
+					&& GraphQL.getStats().get("queries").longValue() == queries);
+		}
+		finally
+		{
+			canvas.stop(0);
+		}
+
+		System.out.println(GraphQL.getStats());
+		if (failures > 0) System.exit(1);
+	}
+
+	/**
+	 * Answers a query for a page of a course's assignments, as Canvas would. Odd-numbered assignments take zip files
+	 * and are due on a date given in the course's time zone; the others have neither.
+	 */
+	@SuppressWarnings("unchecked")
+	private static void answer(HttpExchange exchange, int count) throws IOException
+	{
+		if (!("Bearer " + TOKEN).equals(exchange.getRequestHeaders().getFirst("Authorization")))
+		{
+			send(exchange, 401, "");
+			return;
+		}
+		JSONObject variables;
+		try (Reader reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))
+		{
+			variables = (JSONObject) ((JSONObject) new JSONParser().parse(reader)).get("variables");
+		}
+		catch (ParseException e)
+		{
+			send(exchange, 400, "");
+			return;
+		}
+
+		Object after = variables.get("after");
+		int start = (after == null) ? 0 : Integer.parseInt((String) after);
+		int end = Math.min(count, start + PAGE_SIZE);
+		JSONArray nodes = new JSONArray();
+		for (int i = start; i < end; i++)
+		{
+			JSONObject lockInfo = new JSONObject();
+			lockInfo.put("isLocked", i % 3 == 2);
+			JSONObject node = new JSONObject();
+			node.put("_id", Integer.toString(1001 + i));
+			node.put("name", "Assignment " + (i + 1));
+			node.put("lockInfo", lockInfo);
+			JSONArray extensions = new JSONArray();
+			if (i % 2 == 0) extensions.add("zip");
+			node.put("allowedExtensions", (i % 2 == 0) ? extensions : null);
+			node.put("unlockAt", null);
+			node.put("dueAt", (i % 2 == 0) ? "2024-01-09T23:59:59-07:00" : null);
+			node.put("lockAt", null);
+			nodes.add(node);
+		}
+		JSONObject pageInfo = new JSONObject();
+		pageInfo.put("hasNextPage", end < count);
+		pageInfo.put("endCursor", Integer.toString(end));
+		JSONObject connection = new JSONObject();
+		connection.put("nodes", nodes);
+		connection.put("pageInfo", pageInfo);
+		JSONObject course = new JSONObject();
+		course.put("assignmentsConnection", connection);
+		JSONObject data = new JSONObject();
+		data.put("course", course);
+		JSONObject response = new JSONObject();
+		response.put("data", data);
+		send(exchange, 200, response.toJSONString());
+	}
+
+	/**
+	 * Sends a JSON response
+	 */
+	private static void send(HttpExchange exchange, int status, String body) throws IOException
+	{
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, (bytes.length == 0) ? -1 : bytes.length);
+		try (OutputStream out = exchange.getResponseBody())
+		{
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Reports the outcome of a check
+	 */
+	private static void check(String name, boolean passed)
+	{
+		System.out.println((passed ? "ok      " : "FAILED  ") + name);
+		if (!passed) failures++;
+	}
+}
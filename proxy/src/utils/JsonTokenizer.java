@@ -0,0 +1,307 @@
+package utils;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits a stream of JSON text into tokens without building a tree. Along with each token it keeps the exact text of
+ * the token and of the whitespace, commas and colons that preceded it, so that a document can be copied through
+ * unchanged except for the tokens a caller chooses to replace.
+ */
+public class JsonTokenizer
+{
+	/**
+	 * Kinds of token. A NAME is a string used as the name of an object member, and END follows the last token.
+	 */
+	public enum Token
+	{
+		BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, TRUE, FALSE, NULL, END
+	}
+
+	/**
+	 * Size of the read buffer
+	 */
+	private final static int BUFFER_SIZE = 4096;
+
+	/**
+	 * Maximum nesting depth, which bounds memory use on hostile input
+	 */
+	private final static int MAX_DEPTH = 256;
+
+	/**
+	 * Source of the JSON text
+	 */
+	private final Reader in;
+
+	/**
+	 * Characters read from the source but not yet consumed
+	 */
+	private final char[] buffer = new char[BUFFER_SIZE];
+	private int position;
+	private int limit;
+
+	/**
+	 * Whitespace and punctuation before the current token
+	 */
+	private final StringBuilder separator = new StringBuilder();
+
+	/**
+	 * Exact text of the current token
+	 */
+	private final StringBuilder text = new StringBuilder();
+
+	/**
+	 * Decoded value of the current NAME or STRING token
+	 */
+	private final StringBuilder string = new StringBuilder();
+
+	/**
+	 * For each open container, whether it is an object
+	 */
+	private final boolean[] isObject = new boolean[MAX_DEPTH];
+
+	/**
+	 * Number of open containers
+	 */
+	private int depth;
+
+	/**
+	 * Whether the next string in the current object is a member name
+	 */
+	private boolean expectName;
+
+	/**
+	 * Creates a tokenizer that reads from in
+	 */
+	public JsonTokenizer(Reader in)
+	{
+		this.in = in;
+	}
+
+	/**
+	 * Consumes and returns the next token. Throws an IOException if the text isn't well-formed JSON.
+	 */
+	public Token next() throws IOException
+	{
+		separator.setLength(0);
+		text.setLength(0);
+		string.setLength(0);
+
+		// Collect the separator
+		int c;
+		while (true)
+		{
+			c = read();
+			if (c == -1)
+			{
+				if (depth != 0) throw new IOException("Unexpected end of JSON");
+				return Token.END;
+			}
+			if (c == ',' && depth > 0 && isObject[depth - 1]) expectName = true;
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r' && c != ',' && c != ':') break;
+			separator.append((char) c);
+		}
+
+		text.append((char) c);
+		switch (c)
+		{
+		case '{':
+			push(true);
+			return Token.BEGIN_OBJECT;
+		case '[':
+			push(false);
+			return Token.BEGIN_ARRAY;
+		case '}':
+			pop(true);
+			return Token.END_OBJECT;
+		case ']':
+			pop(false);
+			return Token.END_ARRAY;
+		case '"':
+			readString();
+			if (expectName && depth > 0 && isObject[depth - 1])
+			{
+				expectName = false;
+				return Token.NAME;
+			}
+			return Token.STRING;
+		default:
+			return readLiteral();
+		}
+	}
+
+	/**
+	 * Returns the whitespace, commas and colons that preceded the current token
+	 */
+	public String getSeparator()
+	{
+		return separator.toString();
+	}
+
+	/**
+	 * Returns the exact text of the current token
+	 */
+	public String getText()
+	{
+		return text.toString();
+	}
+
+	/**
+	 * Returns the decoded value of the current NAME or STRING token
+	 */
+	public String getString()
+	{
+		return string.toString();
+	}
+
+	/**
+	 * Returns the number of containers open after the current token. Members of a top-level object are at depth 1.
+	 */
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	/**
+	 * Consumes the rest of the value that the current token begins, which is all of it unless the token begins an
+	 * object or array.
+	 */
+	public void skipValue(Token token) throws IOException
+	{
+		if (token != Token.BEGIN_OBJECT && token != Token.BEGIN_ARRAY) return;
+		int target = depth - 1;
+		while (depth > target)
+		{
+			if (next() == Token.END) throw new IOException("Unexpected end of JSON");
+		}
+	}
+
+	/**
+	 * Opens a container
+	 */
+	private void push(boolean object) throws IOException
+	{
+		if (depth == MAX_DEPTH) throw new IOException("JSON nested too deeply");
+		isObject[depth++] = object;
+		expectName = object;
+	}
+
+	/**
+	 * Closes a container, which must be of the given kind
+	 */
+	private void pop(boolean object) throws IOException
+	{
+		if (depth == 0 || isObject[depth - 1] != object) throw new IOException("Mismatched " + text);
+		depth--;
+		expectName = false;
+	}
+
+	/**
+	 * Reads the rest of a string whose opening quote has been consumed, decoding escapes.
+	 */
+	private void readString() throws IOException
+	{
+		while (true)
+		{
+			int c = read();
+			if (c == -1) throw new IOException("Unterminated JSON string");
+			text.append((char) c);
+			if (c == '"') return;
+			if (c != '\\')
+			{
+				string.append((char) c);
+				continue;
+			}
+
+			int e = read();
+			if (e == -1) throw new IOException("Unterminated JSON string");
+			text.append((char) e);
+			switch (e)
+			{
+			case 'b':
+				string.append('\b');
+				break;
+			case 'f':
+				string.append('\f');
+				break;
+			case 'n':
+				string.append('\n');
+				break;
+			case 'r':
+				string.append('\r');
+				break;
+			case 't':
+				string.append('\t');
+				break;
+			case 'u':
+				int code = 0;
+				for (int i = 0; i < 4; i++)
+				{
+					int h = read();
+					int digit = (h == -1) ? -1 : Character.digit(h, 16);
+					if (digit < 0) throw new IOException("Malformed JSON escape");
+					text.append((char) h);
+					code = code * 16 + digit;
+				}
+				string.append((char) code);
+				break;
+			default:
+				string.append((char) e);
+			}
+		}
+	}
+
+	/**
+	 * Reads the rest of a number, true, false or null whose first character has been consumed.
+	 */
+	private Token readLiteral() throws IOException
+	{
+		while (true)
+		{
+			int c = peek();
+			if (c == -1 || c == ',' || c == ':' || c == ']' || c == '}' || c == ' ' || c == '\t' || c == '\n'
+					|| c == '\r')
+			{
+				break;
+			}
+			text.append((char) read());
+		}
+
+		String literal = text.toString();
+		expectName = false;
+		if (literal.equals("true")) return Token.TRUE;
+		if (literal.equals("false")) return Token.FALSE;
+		if (literal.equals("null")) return Token.NULL;
+		char first = literal.charAt(0);
+		if (first == '-' || (first >= '0' && first <= '9')) return Token.NUMBER;
+		throw new IOException("Unexpected JSON text " + literal);
+	}
+
+	/**
+	 * Consumes and returns the next character, or -1 at the end of the source.
+	 */
+	private int read() throws IOException
+	{
+		int c = peek();
+		if (c != -1) position++;
+		return c;
+	}
+
+	/**
+	 * Returns the next character without consuming it, or -1 at the end of the source.
+	 */
+	private int peek() throws IOException
+	{
+		if (position == limit)
+		{
+			limit = in.read(buffer, 0, BUFFER_SIZE);
+			position = 0;
+			if (limit <= 0)
+			{
+				limit = 0;
+				return -1;
+			}
+		}
+		return buffer[position];
+	}
+}
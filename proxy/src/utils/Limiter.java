@@ -0,0 +1,397 @@
+package utils;
+
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.servlet.ServletContext;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+
+/**
+ * Adaptively caps the number of concurrent calls to Canvas, both in total and for each user's token, by additive
+ * increase and multiplicative decrease. Canvas gives every token a budget, reports what is left of it in
+ * X-Rate-Limit-Remaining, and answers 403 once it is spent. A token's limit is halved when its remaining budget falls
+ * below a low-water mark or it is throttled, and the limit of the whole upstream is halved when Canvas fails or says
+ * it is overloaded. Otherwise each successful call raises a limit by about one per limit's worth of calls. Calls over
+ * a limit wait for a bounded time and are then shed, so the proxy backs off before Canvas throttles it.
+ */
+public class Limiter
+{
+	/**
+	 * Header in which Canvas reports a token's remaining budget
+	 */
+	private final static String REMAINING = "X-Rate-Limit-Remaining";
+
+	/**
+	 * Greatest number of concurrent calls to Canvas, which is also the initial limit
+	 */
+	private static int upstreamLimit = 200;
+
+	/**
+	 * Greatest number of concurrent calls to Canvas for one token, which is also the initial limit
+	 */
+	private static int userLimit = 10;
+
+	/**
+	 * Remaining budget below which a token's limit is reduced
+	 */
+	private static double lowWater = 100;
+
+	/**
+	 * How long a call may wait for a permit before it is shed
+	 */
+	private static long queueNanos = TimeUnit.SECONDS.toNanos(10);
+
+	/**
+	 * Maximum number of tokens whose limits are remembered
+	 */
+	private static int maxUsers = 10000;
+
+	/**
+	 * Limit of the whole upstream
+	 */
+	private static Limiter upstream = new Limiter(upstreamLimit);
+
+	/**
+	 * Limits of recently seen tokens by token hash, in least to most recently used order. Past maxUsers the least
+	 * recently used limits with no calls in flight are forgotten. Those with calls in flight are kept, even if that
+	 * leaves more than maxUsers, since forgetting one would let its token's next calls start under a fresh limit.
+	 */
+	private final static LinkedHashMap<String, Limiter> users = new LinkedHashMap<String, Limiter>(256, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Limiter> eldest)
+		{
+			if (size() <= maxUsers) return false;
+			// The entry just added, which is last, is about to be used, so only those before it are candidates
+			Iterator<Limiter> limiters = values().iterator();
+			for (int candidates = size() - 1; candidates > 0 && size() > maxUsers; candidates--)
+			{
+				if (limiters.next().isIdle()) limiters.remove();
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * Counters reported by the status servlet
+	 */
+	private final static LongAdder shed = new LongAdder();
+	private final static LongAdder throttled = new LongAdder();
+
+	/**
+	 * How a completed call changes a limit
+	 */
+	private enum Signal
+	{
+		GROW, SHRINK, HOLD
+	}
+
+	/**
+	 * Guards limit and inFlight. A java.util.concurrent lock, rather than a monitor, so that a virtual thread waiting
+	 * for a permit isn't pinned.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+
+	/**
+	 * Greatest value of the limit
+	 */
+	private final int max;
+
+	/**
+	 * Number of concurrent calls allowed, which is fractional so that it can grow by less than one at a time
+	 */
+	private double limit;
+
+	/**
+	 * Number of calls holding a permit
+	 */
+	private int inFlight;
+
+	/**
+	 * Last remaining budget that Canvas reported, or NaN if it hasn't reported one
+	 */
+	private volatile double remaining = Double.NaN;
+
+	private Limiter(int max)
+	{
+		this.max = max;
+		this.limit = max;
+	}
+
+	/**
+	 * Permission for one call to Canvas, which must be released when the call's response (or failure) arrives
+	 */
+	public static class Permit
+	{
+		private final Limiter user;
+
+		private Permit(Limiter user)
+		{
+			this.user = user;
+		}
+
+		/**
+		 * Adjusts the limits according to the response, which is null if the call failed.
+		 */
+		public void release(HttpResponse outgoingResponse)
+		{
+			int status = (outgoingResponse == null) ? -1 : outgoingResponse.getStatusLine().getStatusCode();
+			double remaining = getRemaining(outgoingResponse);
+			boolean low = remaining < lowWater;
+			boolean isThrottled = status == 429 || (status == HttpStatus.SC_FORBIDDEN && low);
+			if (isThrottled) throttled.increment();
+
+			if (user != null)
+			{
+				if (!Double.isNaN(remaining)) user.remaining = remaining;
+				user.release((isThrottled || low) ? Signal.SHRINK : (status > 0) ? Signal.GROW : Signal.HOLD);
+			}
+
+			boolean overloaded = status < 0 || status == 429 || status == HttpStatus.SC_SERVICE_UNAVAILABLE
+					|| status == HttpStatus.SC_GATEWAY_TIMEOUT;
+			upstream.release(overloaded ? Signal.SHRINK : Signal.GROW);
+		}
+
+		/**
+		 * Gives the permit back without adjusting the limits, for a call the proxy abandoned.
+		 */
+		public void cancel()
+		{
+			if (user != null) user.release(Signal.HOLD);
+			upstream.release(Signal.HOLD);
+		}
+	}
+
+	/**
+	 * Reads the limiter.* context parameters.
+	 */
+	public static void start(ServletContext context)
+	{
+		upstreamLimit = Config.getInt(context, "limiter.upstreamLimit", upstreamLimit);
+		userLimit = Config.getInt(context, "limiter.userLimit", userLimit);
+		lowWater = Config.getInt(context, "limiter.lowWater", (int) lowWater);
+		queueNanos = TimeUnit.MILLISECONDS.toNanos(Config.getLong(context, "limiter.queueMillis", 10000));
+		synchronized (users)
+		{
+			maxUsers = Config.getInt(context, "limiter.users", maxUsers);
+			users.clear();
+		}
+		upstream = new Limiter(upstreamLimit);
+	}
+
+	/**
+	 * Waits for permission to call Canvas on behalf of the user with the given token hash, which is null for calls
+	 * without a token. Returns null if the call should be shed instead.
+	 */
+	public static Permit acquire(String user) throws InterruptedIOException
+	{
+		Permit permit = acquire(user, System.nanoTime() + queueNanos);
+		if (permit == null) shed.increment();
+		return permit;
+	}
+
+	/**
+	 * Returns permission to call Canvas on behalf of the user with the given token hash, which is null for calls
+	 * without a token, if a call is allowed now. Otherwise returns null without waiting, for callers that have no
+	 * thread to wait on and try again later. A caller that gives up once getQueueNanos has passed reports it with
+	 * recordShed.
+	 */
+	public static Permit tryAcquire(String user)
+	{
+		try
+		{
+			return acquire(user, System.nanoTime());
+		}
+		catch (InterruptedIOException e)
+		{
+			// Not thrown, since a call that can't be allowed at once isn't waited for
+			return null;
+		}
+	}
+
+	/**
+	 * Counts a call that tryAcquire never allowed and that is shed
+	 */
+	public static void recordShed()
+	{
+		shed.increment();
+	}
+
+	/**
+	 * Returns how long a call may wait for a permit, in nanoseconds
+	 */
+	public static long getQueueNanos()
+	{
+		return queueNanos;
+	}
+
+	/**
+	 * Waits for permission to call Canvas on behalf of the user until the deadline. Returns null if the call isn't
+	 * allowed by then.
+	 */
+	private static Permit acquire(String user, long deadline) throws InterruptedIOException
+	{
+		Limiter userLimiter = null;
+		if (user != null)
+		{
+			synchronized (users)
+			{
+				userLimiter = users.get(user);
+				if (userLimiter == null)
+				{
+					userLimiter = new Limiter(userLimit);
+					users.put(user, userLimiter);
+				}
+			}
+			if (!userLimiter.acquire(deadline)) return null;
+		}
+
+		// The token's permit is given back if the upstream one can't be had, including when the wait is interrupted
+		boolean allowed;
+		try
+		{
+			allowed = upstream.acquire(deadline);
+		}
+		catch (InterruptedIOException e)
+		{
+			if (userLimiter != null) userLimiter.release(Signal.HOLD);
+			throw e;
+		}
+		if (!allowed)
+		{
+			if (userLimiter != null) userLimiter.release(Signal.HOLD);
+			return null;
+		}
+		return new Permit(userLimiter);
+	}
+
+	/**
+	 * Returns the upstream limit and calls in flight, the number of tokens tracked and of those with a low budget,
+	 * and the shed and throttled counts.
+	 */
+	public static Map<String, Number> getStats()
+	{
+		Map<String, Number> stats = new LinkedHashMap<>();
+		Limiter limiter = upstream;
+		limiter.lock.lock();
+		try
+		{
+			stats.put("upstreamLimit", limiter.limit);
+			stats.put("upstreamInFlight", limiter.inFlight);
+		}
+		finally
+		{
+			limiter.lock.unlock();
+		}
+		synchronized (users)
+		{
+			int low = 0;
+			for (Limiter user : users.values())
+			{
+				if (user.remaining < lowWater) low++;
+			}
+			stats.put("users", users.size());
+			stats.put("usersLow", low);
+		}
+		stats.put("shed", shed.sum());
+		stats.put("throttled", throttled.sum());
+		return stats;
+	}
+
+	/**
+	 * Returns the remaining budget reported in the response, or NaN if there is none.
+	 */
+	private static double getRemaining(HttpResponse outgoingResponse)
+	{
+		Header header = (outgoingResponse == null) ? null : outgoingResponse.getFirstHeader(REMAINING);
+		try
+		{
+			return (header == null) ? Double.NaN : Double.parseDouble(header.getValue().trim());
+		}
+		catch (NumberFormatException e)
+		{
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * Waits until a call is allowed or the deadline passes. Returns whether the call is allowed.
+	 */
+	private boolean acquire(long deadline) throws InterruptedIOException
+	{
+		lock.lock();
+		try
+		{
+			while (inFlight >= (int) limit)
+			{
+				long wait = deadline - System.nanoTime();
+				if (wait <= 0) return false;
+				released.awaitNanos(wait);
+			}
+			inFlight++;
+			return true;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for an upstream permit");
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reports whether no calls hold a permit
+	 */
+	private boolean isIdle()
+	{
+		lock.lock();
+		try
+		{
+			return inFlight == 0;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Ends a call and adjusts the limit.
+	 */
+	private void release(Signal signal)
+	{
+		lock.lock();
+		try
+		{
+			inFlight--;
+			if (signal == Signal.GROW)
+			{
+				limit = Math.min(max, limit + 1 / limit);
+			}
+			else if (signal == Signal.SHRINK)
+			{
+				limit = Math.max(1, limit / 2);
+			}
+			if (inFlight < (int) limit) released.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.http.HttpStatus;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Builds manifests of a course's CPM folder tree: the course profile parsed from CPMConfig.xml, and every folder and
+ * file below the profile's root folder, down to the assignment folders of each project type. The tree is listed in
+ * parallel through FanOut.
+ */
+public class Manifests
+{
+	/**
+	 * Version of the manifest's format, which changes whenever a client would misread the old one
+	 */
+	private final static int VERSION = 1;
+
+	/**
+	 * Name of the configuration file in the course's top folder
+	 */
+	private final static String CONFIG_FILE = "CPMConfig.xml";
+
+	/**
+	 * Longest configuration file that will be read
+	 */
+	private final static int MAX_CONFIG_BYTES = 1024 * 1024;
+
+	/**
+	 * Depth below the root folder of the deepest folders listed: project type folders, then assignment folders
+	 */
+	private final static int MAX_DEPTH = 2;
+
+	/**
+	 * Returns the course's manifest, as seen by the owner of the token. Throws an UpstreamStatusException with a 404
+	 * if the course has no configuration file or root folder, or with the status of whichever Canvas call failed. If
+	 * blobPrefix isn't null and the blob store is enabled, file URLs that begin with blobPrefix take the place of
+	 * Canvas's download URLs.
+	 */
+	@SuppressWarnings("unchecked")
+	public static JSONObject build(String courseID, String token, String blobPrefix) throws IOException
+	{
+		// Find and read the configuration file in the top folder
+		JSONObject top = getFolder(courseID, "", token);
+		JSONObject config = null;
+		for (Object file : CanvasApi.getArray("/api/v1/folders/" + top.get("id") + "/files?per_page=100", token))
+		{
+			if (CONFIG_FILE.equals(((JSONObject) file).get("filename"))) config = (JSONObject) file;
+		}
+		if (config == null) throw new UpstreamStatusException(HttpStatus.SC_NOT_FOUND);
+		JSONObject profile = parseProfile(CanvasApi.download((String) config.get("url"), MAX_CONFIG_BYTES));
+
+		// List the tree below the root folder
+		String rootPath = (String) profile.get("root");
+		JSONObject root = rootPath.isEmpty() ? top : getFolder(courseID, rootPath, token);
+
+		JSONObject manifest = new JSONObject();
+		manifest.put("version", VERSION);
+		manifest.put("course", Long.valueOf(courseID));
+		manifest.put("profile", profile);
+		manifest.put("config", describeFile(config, blobPrefix));
+		manifest.put("root", walk(root, 0, token, blobPrefix));
+		return manifest;
+	}
+
+	/**
+	 * Returns the Canvas description of the folder at the path, which is relative to the course's top folder.
+	 */
+	private static JSONObject getFolder(String courseID, String path, String token) throws IOException
+	{
+		try
+		{
+			String encoded = new URI(null, null, "/" + path, null).getRawPath();
+			JSONArray folders = CanvasApi.getArray("/api/v1/courses/" + courseID + "/folders/by_path"
+					+ (path.isEmpty() ? "" : encoded) + "?per_page=100", token);
+			if (folders.isEmpty()) throw new UpstreamStatusException(HttpStatus.SC_NOT_FOUND);
+			return (JSONObject) folders.get(folders.size() - 1);
+		}
+		catch (URISyntaxException e)
+		{
+			throw new UpstreamStatusException(HttpStatus.SC_NOT_FOUND);
+		}
+	}
+
+	/**
+	 * Returns a description of the folder with its files and, unless it is at MAX_DEPTH, its subfolders. The files and
+	 * subfolders are listed in parallel, and so are the subfolders' own contents.
+	 */
+	@SuppressWarnings("unchecked")
+	private static JSONObject walk(JSONObject folder, int depth, String token, String blobPrefix) throws IOException
+	{
+		Object id = folder.get("id");
+		CompletableFuture<JSONArray> files =
+				FanOut.submit(() -> CanvasApi.getArray("/api/v1/folders/" + id + "/files?per_page=100", token));
+		CompletableFuture<JSONArray> folders = (depth < MAX_DEPTH)
+				? FanOut.submit(() -> CanvasApi.getArray("/api/v1/folders/" + id + "/folders?per_page=100", token))
+				: CompletableFuture.completedFuture(new JSONArray());
+
+		List<CompletableFuture<JSONObject>> subfolders = new ArrayList<>();
+		for (Object subfolder : FanOut.await(folders))
+		{
+			subfolders.add(FanOut.submit(() -> walk((JSONObject) subfolder, depth + 1, token, blobPrefix)));
+		}
+
+		JSONObject result = new JSONObject();
+		result.put("id", id);
+		result.put("name", folder.get("name"));
+		result.put("updated_at", folder.get("updated_at"));
+		JSONArray fileList = new JSONArray();
+		for (Object file : FanOut.await(files))
+		{
+			fileList.add(describeFile((JSONObject) file, blobPrefix));
+		}
+		result.put("files", fileList);
+		JSONArray folderList = new JSONArray();
+		for (CompletableFuture<JSONObject> subfolder : subfolders)
+		{
+			folderList.add(FanOut.await(subfolder));
+		}
+		result.put("folders", folderList);
+		return result;
+	}
+
+	/**
+	 * Returns the parts of Canvas's description of a file that the plugin uses, with the URL of its blob if the store
+	 * will keep it
+	 */
+	@SuppressWarnings("unchecked")
+	private static JSONObject describeFile(JSONObject file, String blobPrefix)
+	{
+		JSONObject result = new JSONObject();
+		result.put("id", file.get("id"));
+		result.put("filename", file.get("filename"));
+		result.put("size", file.get("size"));
+		result.put("updated_at", file.get("updated_at"));
+		String query = (blobPrefix != null && BlobStore.isEnabled())
+				? BlobStore.getQuery(file.get("id"), file.get("updated_at"), file.get("size"), (String) file.get("url"))
+				: null;
+		result.put("url", (query == null) ? file.get("url") : blobPrefix + query);
+		return result;
+	}
+
+	/**
+	 * Returns the course profile in the configuration file, with the same attributes the plugin's CourseProfile reads.
+	 */
+	@SuppressWarnings("unchecked")
+	private static JSONObject parseProfile(byte[] contents) throws IOException
+	{
+		Document document;
+		try
+		{
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+			document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(contents));
+		}
+		catch (ParserConfigurationException | SAXException e)
+		{
+			throw new IOException("Malformed " + CONFIG_FILE, e);
+		}
+
+		Element course = (Element) document.getElementsByTagName("course").item(0);
+		if (course == null) throw new IOException("No course element in " + CONFIG_FILE);
+		JSONObject profile = new JSONObject();
+		profile.put("root", course.getAttribute("root"));
+		profile.put("format", course.getAttribute("format"));
+		profile.put("library", course.getAttribute("library"));
+
+		JSONArray projectTypes = new JSONArray();
+		NodeList projects = document.getElementsByTagName("project");
+		for (int i = 0; i < projects.getLength(); i++)
+		{
+			Element project = (Element) projects.item(i);
+			JSONObject projectType = new JSONObject();
+			projectType.put("name", project.getAttribute("name"));
+			projectType.put("folder", project.getAttribute("folder"));
+			projectTypes.add(projectType);
+		}
+		profile.put("projects", projectTypes);
+		return profile;
+	}
+}
@@ -0,0 +1,326 @@
+package utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.http.pool.PoolStats;
+
+/**
+ * Records request counts and latencies by route, encryption timings and client exception intake, and writes them in
+ * the Prometheus text format. Recording only increments LongAdders, so it takes no locks on the relay path.
+ */
+public class Metrics
+{
+	/**
+	 * Name of the request attribute that holds the exchange being timed
+	 */
+	private final static String EXCHANGE = Metrics.class.getName() + ".exchange";
+
+	/**
+	 * Maximum number of routes tracked separately. Paths that aren't allowed can be anything, so further routes are
+	 * counted together.
+	 */
+	private final static int MAX_ROUTES = 256;
+
+	/**
+	 * Route under which requests are counted once MAX_ROUTES is reached
+	 */
+	private final static String OTHER_ROUTE = "other";
+
+	/**
+	 * Metrics of each route
+	 */
+	private final static ConcurrentHashMap<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+
+	/**
+	 * Encryption timings
+	 */
+	private final static Histogram encryptions = new Histogram();
+	private final static Histogram decryptions = new Histogram();
+
+	/**
+	 * Client exception reports and their total size
+	 */
+	private final static LongAdder clientExceptions = new LongAdder();
+	private final static LongAdder clientExceptionChars = new LongAdder();
+
+	/**
+	 * Timing of one incoming request
+	 */
+	public static class Exchange
+	{
+		private final String route;
+		private final long start = System.nanoTime();
+		private volatile long upstreamDone;
+
+		private Exchange(String route)
+		{
+			this.route = route;
+		}
+	}
+
+	/**
+	 * Starts timing the incoming request and returns its exchange, which must be passed to finish.
+	 */
+	public static Exchange begin(HttpServletRequest incomingRequest)
+	{
+		Exchange exchange = new Exchange(Utils.getRoute(incomingRequest));
+		incomingRequest.setAttribute(EXCHANGE, exchange);
+		return exchange;
+	}
+
+	/**
+	 * Notes that the response to the incoming request has arrived from Canvas (or the cache) and its body is about to
+	 * be copied. The time before this is the upstream wait and the time after is the body copy.
+	 */
+	public static void upstreamDone(HttpServletRequest incomingRequest)
+	{
+		Exchange exchange = (Exchange) incomingRequest.getAttribute(EXCHANGE);
+		if (exchange != null) exchange.upstreamDone = System.nanoTime();
+	}
+
+	/**
+	 * Records the completed exchange with the status code sent to the client.
+	 */
+	public static void finish(Exchange exchange, int status)
+	{
+		long end = System.nanoTime();
+		RouteMetrics metrics = getRouteMetrics(exchange.route);
+		metrics.count(status);
+		metrics.total.record(end - exchange.start);
+		long upstreamDone = exchange.upstreamDone;
+		if (upstreamDone != 0)
+		{
+			metrics.upstream.record(upstreamDone - exchange.start);
+			metrics.copy.record(end - upstreamDone);
+		}
+	}
+
+	/**
+	 * Records the time taken by a token encryption
+	 */
+	public static void recordEncryption(long nanos)
+	{
+		encryptions.record(nanos);
+	}
+
+	/**
+	 * Records the time taken by a token decryption, whether or not it was cached
+	 */
+	public static void recordDecryption(long nanos)
+	{
+		decryptions.record(nanos);
+	}
+
+	/**
+	 * Records a client exception report of the given length
+	 */
+	public static void recordClientException(int chars)
+	{
+		clientExceptions.increment();
+		clientExceptionChars.add(chars);
+	}
+
+	/**
+	 * Returns the metrics of the route, creating them if needed.
+	 */
+	private static RouteMetrics getRouteMetrics(String route)
+	{
+		RouteMetrics metrics = routes.get(route);
+		if (metrics != null) return metrics;
+		if (routes.size() >= MAX_ROUTES) route = OTHER_ROUTE;
+		metrics = new RouteMetrics();
+		RouteMetrics existing = routes.putIfAbsent(route, metrics);
+		return (existing == null) ? metrics : existing;
+	}
+
+	/**
+	 * Returns all of the metrics in the Prometheus text exposition format.
+	 */
+	public static String export()
+	{
+		StringBuilder out = new StringBuilder();
+		Map<String, RouteMetrics> sorted = new TreeMap<>(routes);
+
+		out.append("# HELP proxy_requests_total Requests received, by route and status code\n");
+		out.append("# TYPE proxy_requests_total counter\n");
+		for (Map.Entry<String, RouteMetrics> e : sorted.entrySet())
+		{
+			Map<Integer, LongAdder> statuses = new TreeMap<>(e.getValue().statuses);
+			for (Map.Entry<Integer, LongAdder> s : statuses.entrySet())
+			{
+				out.append("proxy_requests_total{route=\"").append(escape(e.getKey())).append("\",code=\"")
+						.append(s.getKey()).append("\"} ").append(s.getValue().sum()).append('\n');
+			}
+		}
+
+		out.append("# HELP proxy_request_duration_seconds Request latency by route and phase: total, upstream wait "
+				+ "and body copy\n");
+		out.append("# TYPE proxy_request_duration_seconds histogram\n");
+		for (Map.Entry<String, RouteMetrics> e : sorted.entrySet())
+		{
+			String route = "route=\"" + escape(e.getKey()) + "\",phase=";
+			e.getValue().total.write(out, "proxy_request_duration_seconds", route + "\"total\"");
+			e.getValue().upstream.write(out, "proxy_request_duration_seconds", route + "\"upstream\"");
+			e.getValue().copy.write(out, "proxy_request_duration_seconds", route + "\"copy\"");
+		}
+
+		PoolStats pool = Upstream.getPoolStats();
+		out.append("# HELP proxy_upstream_connections Connections in the upstream pool, by state\n");
+		out.append("# TYPE proxy_upstream_connections gauge\n");
+		out.append("proxy_upstream_connections{state=\"leased\"} ").append(pool.getLeased()).append('\n');
+		out.append("proxy_upstream_connections{state=\"pending\"} ").append(pool.getPending()).append('\n');
+		out.append("proxy_upstream_connections{state=\"available\"} ").append(pool.getAvailable()).append('\n');
+		out.append("proxy_upstream_connections{state=\"max\"} ").append(pool.getMax()).append('\n');
+
+		out.append("# HELP proxy_encryption_duration_seconds Token encryption and decryption latency\n");
+		out.append("# TYPE proxy_encryption_duration_seconds histogram\n");
+		encryptions.write(out, "proxy_encryption_duration_seconds", "operation=\"encrypt\"");
+		decryptions.write(out, "proxy_encryption_duration_seconds", "operation=\"decrypt\"");
+
+		out.append("# HELP proxy_client_exceptions_total Exception reports received from clients\n");
+		out.append("# TYPE proxy_client_exceptions_total counter\n");
+		out.append("proxy_client_exceptions_total ").append(clientExceptions.sum()).append('\n');
+		out.append("# HELP proxy_client_exception_chars_total Characters of exception reports received from clients\n");
+		out.append("# TYPE proxy_client_exception_chars_total counter\n");
+		out.append("proxy_client_exception_chars_total ").append(clientExceptionChars.sum()).append('\n');
+
+		writeStats(out, "proxy_async_", AsyncRelay.getStats());
+		writeStats(out, "proxy_buffers_", BufferPool.getStats());
+		writeStats(out, "proxy_cache_", ResponseCache.getStats());
+		writeStats(out, "proxy_coalescer_", Coalescer.getStats());
+		writeStats(out, "proxy_limiter_", Limiter.getStats());
+		writeStats(out, "proxy_get_policy_", GetPolicy.getStats());
+		writeStats(out, "proxy_breakers_", CircuitBreaker.getStats());
+		writeStats(out, "proxy_blobs_", BlobStore.getStats());
+		writeStats(out, "proxy_warmup_", WarmUp.getStats());
+		writeStats(out, "proxy_events_", CourseEvents.getStats());
+		writeStats(out, "proxy_delta_", Deltas.getStats());
+		writeStats(out, "proxy_projection_", Projection.getStats());
+		writeStats(out, "proxy_etags_", ETags.getStats());
+		writeStats(out, "proxy_compression_", Compression.getStats());
+		writeStats(out, "proxy_cbor_", Cbor.getStats());
+		writeStats(out, "proxy_batch_", Batches.getStats());
+		writeStats(out, "proxy_graphql_", GraphQL.getStats());
+		return out.toString();
+	}
+
+	/**
+	 * Writes each of the statistics reported by the status servlet as an untyped metric.
+	 */
+	private static void writeStats(StringBuilder out, String prefix, Map<String, ? extends Number> stats)
+	{
+		for (Map.Entry<String, ? extends Number> e : stats.entrySet())
+		{
+			String name = prefix + e.getKey().replaceAll("([A-Z])", "_$1").toLowerCase();
+			out.append("# TYPE ").append(name).append(" untyped\n");
+			out.append(name).append(' ').append(e.getValue()).append('\n');
+		}
+	}
+
+	/**
+	 * Escapes a label value
+	 */
+	private static String escape(String value)
+	{
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * Counts and latencies of one route
+	 */
+	private static class RouteMetrics
+	{
+		final ConcurrentHashMap<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+		final Histogram total = new Histogram();
+		final Histogram upstream = new Histogram();
+		final Histogram copy = new Histogram();
+
+		void count(int status)
+		{
+			LongAdder counter = statuses.get(status);
+			if (counter == null)
+			{
+				LongAdder mine = new LongAdder();
+				counter = statuses.putIfAbsent(status, mine);
+				if (counter == null) counter = mine;
+			}
+			counter.increment();
+		}
+	}
+
+	/**
+	 * Latency histogram with fixed buckets
+	 */
+	private static class Histogram
+	{
+		/**
+		 * Upper bounds of the buckets, in seconds
+		 */
+		private final static double[] BOUNDS = { 0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30,
+				60 };
+
+		/**
+		 * Upper bounds of the buckets, in nanoseconds
+		 */
+		private final static long[] NANOS = new long[BOUNDS.length];
+
+		static
+		{
+			for (int i = 0; i < BOUNDS.length; i++)
+			{
+				NANOS[i] = (long) (BOUNDS[i] * 1e9);
+			}
+		}
+
+		/**
+		 * Observations in each bucket, the last being for those above every bound
+		 */
+		private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+
+		/**
+		 * Sum of the observations in nanoseconds
+		 */
+		private final LongAdder sum = new LongAdder();
+
+		Histogram()
+		{
+			for (int i = 0; i < buckets.length; i++)
+			{
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		void record(long nanos)
+		{
+			int i = 0;
+			while (i < NANOS.length && nanos > NANOS[i])
+			{
+				i++;
+			}
+			buckets[i].increment();
+			sum.add(nanos);
+		}
+
+		/**
+		 * Writes the cumulative buckets, sum and count with the given labels.
+		 */
+		void write(StringBuilder out, String name, String labels)
+		{
+			long count = 0;
+			for (int i = 0; i < buckets.length; i++)
+			{
+				count += buckets[i].sum();
+				String le = (i < BOUNDS.length) ? Double.toString(BOUNDS[i]) : "+Inf";
+				out.append(name).append("_bucket{").append(labels).append(",le=\"").append(le).append("\"} ")
+						.append(count).append('\n');
+			}
+			out.append(name).append("_sum{").append(labels).append("} ").append(sum.sum() / 1e9).append('\n');
+			out.append(name).append("_count{").append(labels).append("} ").append(count).append('\n');
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package utils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Decides who may read /metrics and /status, which reveal the proxy's traffic, limits and cache. A request is allowed
+ * if it comes from one of the ops.allowAddresses, or if it carries ops.token as its bearer token, which is how a
+ * scraper behind a load balancer gets in. Without configuration only loopback requests are allowed.
+ */
+public class OpsAccess
+{
+	/**
+	 * Remote addresses that are allowed, in the form getRemoteAddr reports them
+	 */
+	private static Set<String> addresses = new HashSet<>();
+
+	/**
+	 * The bearer token that is allowed, or null if none is
+	 */
+	private static byte[] token;
+
+	/**
+	 * Reads the ops.allowAddresses and ops.token context parameters.
+	 */
+	public static synchronized void start(ServletContext context)
+	{
+		Set<String> allowed = new HashSet<>();
+		for (String address : Config.getString(context, "ops.allowAddresses", "127.0.0.1 ::1").split("[,\\s]+"))
+		{
+			if (address.isEmpty()) continue;
+			try
+			{
+				// Parsing a literal doesn't look anything up, and gives IPv6 addresses the form the container uses
+				allowed.add(InetAddress.getByName(address).getHostAddress());
+			}
+			catch (UnknownHostException e)
+			{
+				context.log("Ignoring malformed address " + address + " in ops.allowAddresses");
+			}
+		}
+		addresses = allowed;
+
+		String secret = Config.getString(context, "ops.token", "");
+		token = secret.isEmpty() ? null : secret.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reports whether the incoming request may read the operational endpoints
+	 */
+	public static boolean isAllowed(HttpServletRequest incomingRequest)
+	{
+		if (addresses.contains(incomingRequest.getRemoteAddr())) return true;
+
+		byte[] expected = token;
+		String authorization = incomingRequest.getHeader("Authorization");
+		if (expected == null || authorization == null || !authorization.startsWith("Bearer ")) return false;
+		byte[] presented = authorization.substring("Bearer ".length()).trim().getBytes(StandardCharsets.UTF_8);
+		return MessageDigest.isEqual(expected, presented);
+	}
+}
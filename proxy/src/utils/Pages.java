@@ -0,0 +1,335 @@
+package utils;
+
+import static utils.RemoteServer.*;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
+
+import utils.JsonTokenizer.Token;
+
+/**
+ * Joins every page of a paginated Canvas listing into one JSON array, for clients that ask for it with the
+ * X-Aggregate-Pages header. When the first page's Link header gives the number of the last page, the remaining pages
+ * are fetched in parallel, a few at a time; otherwise the rel="next" links are followed one after another. Either
+ * way the pages are spliced into the response in order as they stream in, so no more than the pages in flight are
+ * held open. The whole is held back only as far as ETags.TaggingStream holds it to be tagged, and if it fits there
+ * it can be cached as well.
+ */
+public class Pages
+{
+	/**
+	 * Request header that asks for every page
+	 */
+	public final static String HEADER = "X-Aggregate-Pages";
+
+	/**
+	 * Matches one link of a Link header
+	 */
+	private final static Pattern LINK = Pattern.compile("<([^>]*)>\\s*;\\s*rel=\"([^\"]*)\"");
+
+	/**
+	 * Number of pages fetched at once
+	 */
+	private static int parallel = 4;
+
+	/**
+	 * Reads the pages.parallel context parameter.
+	 */
+	public static void start(ServletContext context)
+	{
+		parallel = Math.max(1, Config.getInt(context, "pages.parallel", parallel));
+	}
+
+	/**
+	 * Reports whether the incoming request asks for every page
+	 */
+	public static boolean isRequested(HttpServletRequest incomingRequest)
+	{
+		return "true".equalsIgnoreCase(incomingRequest.getHeader(HEADER));
+	}
+
+	/**
+	 * Executes the outgoing GET and relays its response, with every following page spliced in if it is a successful
+	 * listing. The whole is tagged as in ETags.TaggingStream. A failure after the response has started truncates it,
+	 * which the client sees as malformed JSON. If key isn't null, a whole that was small enough to be tagged is also
+	 * offered to the response cache under it.
+	 */
+	public static void relay(HttpGet outgoingRequest, HttpServletRequest incomingRequest,
+			HttpServletResponse incomingResponse, String key) throws ServletException, IOException
+	{
+		String route = Utils.getRoute(incomingRequest);
+		prepare(outgoingRequest);
+		try (CloseableHttpResponse first = GetPolicy.execute(outgoingRequest, route))
+		{
+			Metrics.upstreamDone(incomingRequest);
+			if (first.getStatusLine().getStatusCode() != HttpStatus.SC_OK)
+			{
+				Utils.filterResponseHeaders(first, incomingResponse, incomingRequest);
+				Utils.copyResponseBody(first, incomingResponse);
+				return;
+			}
+
+			ETags.TaggingStream body = new ETags.TaggingStream(incomingRequest, incomingResponse);
+			Writer out = new OutputStreamWriter(body, StandardCharsets.UTF_8);
+			Set<String> fields = Projection.getFields(incomingRequest);
+			Map<String, URI> links = getLinks(first, outgoingRequest.getURI());
+			dropWholeHeaders(first);
+			Utils.filterResponseHeaders(first, incomingResponse, incomingRequest, false);
+			copyPages(first, links, outgoingRequest, route, out, fields);
+			out.flush();
+			body.finish();
+
+			byte[] whole = body.getBody();
+			if (key != null && whole != null)
+			{
+				first.removeHeaders("Content-Length");
+				ResponseCache.offer(key, incomingRequest,
+						new BufferedResponse(first.getStatusLine(), first.getAllHeaders(), whole));
+			}
+		}
+	}
+
+	/**
+	 * Readies the outgoing GET for its pages to be parsed, which needs them unencoded and unconditional
+	 */
+	private static void prepare(HttpGet outgoingRequest)
+	{
+		outgoingRequest.removeHeaders(HEADER);
+		outgoingRequest.removeHeaders("Accept-Encoding");
+		outgoingRequest.removeHeaders("If-None-Match");
+		outgoingRequest.removeHeaders("If-Modified-Since");
+	}
+
+	/**
+	 * Removes the first page's headers that don't apply to the whole. The pages will be all there is, so the client has
+	 * no links to follow, and the first page's validators don't describe the whole.
+	 */
+	private static void dropWholeHeaders(CloseableHttpResponse first)
+	{
+		first.removeHeaders("Link");
+		first.removeHeaders("ETag");
+		first.removeHeaders("Last-Modified");
+	}
+
+	/**
+	 * Writes the elements of the first page, whose links are given, and every following page to out as one JSON array
+	 */
+	private static void copyPages(CloseableHttpResponse first, Map<String, URI> links, HttpGet outgoingRequest,
+			String route, Writer out, Set<String> fields) throws IOException
+	{
+		out.write('[');
+		boolean any = copyElements(first, out, false, fields);
+		int last = getPageNumber(links.get("last"));
+		int current = getPageNumber(links.get("current"));
+		if (last > 0 && current == 1)
+		{
+			copyNumberedPages(outgoingRequest, links.get("last"), last, route, out, any, fields);
+		}
+		else
+		{
+			copyLinkedPages(outgoingRequest, links.get("next"), route, out, any, fields);
+		}
+		out.write(']');
+	}
+
+	/**
+	 * Copies pages 2 through last, fetching up to parallel of them at once. Returns whether any element was copied.
+	 */
+	private static boolean copyNumberedPages(HttpGet outgoingRequest, URI lastURI, int last, String route, Writer out,
+			boolean any, Set<String> fields) throws IOException
+	{
+		ArrayDeque<CompletableFuture<CloseableHttpResponse>> window = new ArrayDeque<>();
+		int next = 2;
+		try
+		{
+			while (next <= last || !window.isEmpty())
+			{
+				while (next <= last && window.size() < parallel)
+				{
+					HttpGet pageRequest = copy(outgoingRequest, setPageNumber(lastURI, next++));
+					window.add(FanOut.submit(() -> GetPolicy.execute(pageRequest, route)));
+				}
+				try (CloseableHttpResponse page = FanOut.await(window.poll()))
+				{
+					checkStatus(page);
+					any = copyElements(page, out, any, fields);
+				}
+			}
+			return any;
+		}
+		finally
+		{
+			// Release the connections of pages that won't be copied
+			for (CompletableFuture<CloseableHttpResponse> pending : window)
+			{
+				pending.thenAccept(Pages::close);
+			}
+		}
+	}
+
+	/**
+	 * Copies the page at next and the pages linked after it, one at a time.
+	 */
+	private static void copyLinkedPages(HttpGet outgoingRequest, URI next, String route, Writer out, boolean any,
+			Set<String> fields) throws IOException
+	{
+		while (next != null)
+		{
+			try (CloseableHttpResponse page = GetPolicy.execute(copy(outgoingRequest, next), route))
+			{
+				checkStatus(page);
+				any = copyElements(page, out, any, fields);
+				next = getLinks(page, outgoingRequest.getURI()).get("next");
+			}
+		}
+	}
+
+	/**
+	 * Copies the elements of the JSON array in the page's body to out, each preceded by a comma if any elements have
+	 * already been copied, and trimmed to the fields unless they are null. Returns whether any elements have now
+	 * been copied.
+	 */
+	private static boolean copyElements(CloseableHttpResponse page, Writer out, boolean any, Set<String> fields)
+			throws IOException
+	{
+		try (Reader reader = new InputStreamReader(page.getEntity().getContent(), StandardCharsets.UTF_8))
+		{
+			JsonTokenizer tokenizer = new JsonTokenizer(reader);
+			if (tokenizer.next() != Token.BEGIN_ARRAY) throw new IOException("Page is not a JSON array");
+			Token token;
+			while ((token = tokenizer.next()) != Token.END_ARRAY)
+			{
+				if (any) out.write(',');
+				any = true;
+				Projection.copyValue(tokenizer, token, out, fields);
+			}
+			return any;
+		}
+	}
+
+	/**
+	 * Returns the links in the response's Link header by relation, keeping only those to the same Canvas path as the
+	 * original request so that a page can't send the proxy anywhere else.
+	 */
+	static Map<String, URI> getLinks(CloseableHttpResponse page, URI original)
+	{
+		Map<String, URI> links = new HashMap<>();
+		for (Header header : page.getHeaders("Link"))
+		{
+			Matcher m = LINK.matcher(header.getValue());
+			while (m.find())
+			{
+				try
+				{
+					URI uri = new URI(m.group(1));
+					if (OUTGOING_HOST.equals(uri.getHost()) && original.getPath().equals(uri.getPath()))
+					{
+						links.put(m.group(2), uri);
+					}
+				}
+				catch (URISyntaxException e)
+				{
+					// Ignore the link
+				}
+			}
+		}
+		return links;
+	}
+
+	/**
+	 * Returns the page number of the link, or 0 if it has none, as with Canvas's opaque bookmark pages.
+	 */
+	private static int getPageNumber(URI link)
+	{
+		if (link == null) return 0;
+		for (NameValuePair pair : new URIBuilder(link).getQueryParams())
+		{
+			if (pair.getName().equals("page"))
+			{
+				try
+				{
+					return Integer.parseInt(pair.getValue());
+				}
+				catch (NumberFormatException e)
+				{
+					return 0;
+				}
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the link with its page number changed
+	 */
+	private static URI setPageNumber(URI link, int page) throws IOException
+	{
+		try
+		{
+			return new URIBuilder(link).setParameter("page", Integer.toString(page)).build();
+		}
+		catch (URISyntaxException e)
+		{
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Returns a GET for the URI with the same headers as the outgoing request
+	 */
+	private static HttpGet copy(HttpGet outgoingRequest, URI uri)
+	{
+		HttpGet copy = new HttpGet(uri);
+		copy.setHeaders(outgoingRequest.getAllHeaders());
+		return copy;
+	}
+
+	/**
+	 * Throws an IOException unless the page was fetched successfully
+	 */
+	private static void checkStatus(CloseableHttpResponse page) throws IOException
+	{
+		int status = page.getStatusLine().getStatusCode();
+		if (status != HttpStatus.SC_OK) throw new IOException("Canvas answered " + status + " for a later page");
+	}
+
+	/**
+	 * Closes a page that won't be copied
+	 */
+	private static void close(CloseableHttpResponse page)
+	{
+		try
+		{
+			page.close();
+		}
+		catch (IOException e)
+		{
+			// Nothing more to do
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+
+import utils.JsonTokenizer.Token;
+
+/**
+ * Trims JSON responses to the members a client names in a fields query parameter, such as fields=id,name. Each
+ * object in a top-level array, or the top-level object itself, keeps only the named members; their values are copied
+ * whole. Canvas ignores the parameter, so it is passed through and stays in the pagination links. Bodies are
+ * transcoded token by token as they stream from Canvas, without building a tree.
+ */
+public class Projection
+{
+	/**
+	 * Name of the query parameter
+	 */
+	public final static String PARAMETER = "fields";
+
+	/**
+	 * Counters reported by the status servlet
+	 */
+	private static final LongAdder projected = new LongAdder();
+	private static final LongAdder bytesIn = new LongAdder();
+	private static final LongAdder bytesOut = new LongAdder();
+
+	/**
+	 * Returns the member names in the incoming request's fields parameters, or null if it has none.
+	 */
+	public static Set<String> getFields(HttpServletRequest incomingRequest)
+	{
+		String[] values = incomingRequest.getParameterValues(PARAMETER);
+		if (values == null) return null;
+		Set<String> fields = new HashSet<>();
+		for (String value : values)
+		{
+			for (String field : value.split(","))
+			{
+				if (!field.trim().isEmpty()) fields.add(field.trim());
+			}
+		}
+		return fields.isEmpty() ? null : fields;
+	}
+
+	/**
+	 * Reads all of the outgoing response, trimming a successful JSON body to the fields as it streams in. If fields
+	 * is null the response is read as it is.
+	 */
+	public static BufferedResponse read(HttpResponse outgoingResponse, Set<String> fields) throws IOException
+	{
+		if (fields == null || !isJson(outgoingResponse.getStatusLine().getStatusCode(),
+				outgoingResponse.getFirstHeader("Content-Type")))
+		{
+			return BufferedResponse.read(outgoingResponse);
+		}
+		try (InputStream in = outgoingResponse.getEntity().getContent())
+		{
+			return trimmed(outgoingResponse.getStatusLine(), outgoingResponse.getAllHeaders(), in, fields);
+		}
+	}
+
+	/**
+	 * Returns the response with a successful JSON body trimmed to the fields, or the response itself if fields is
+	 * null. A body that isn't well-formed is left alone.
+	 */
+	public static BufferedResponse apply(BufferedResponse response, Set<String> fields)
+	{
+		if (fields == null) return response;
+		Header contentType = null;
+		for (Header h : response.getHeaders())
+		{
+			if (h.getName().equalsIgnoreCase("Content-Type")) contentType = h;
+		}
+		if (!isJson(response.getStatusCode(), contentType)) return response;
+		try
+		{
+			return trimmed(response.getStatusLine(), response.getHeaders(),
+					new ByteArrayInputStream(response.getBody()), fields);
+		}
+		catch (IOException e)
+		{
+			return response;
+		}
+	}
+
+	/**
+	 * Copies the JSON in to out, trimming the objects of a top-level array, or a top-level object, to the fields.
+	 */
+	public static void project(Reader in, Writer out, Set<String> fields) throws IOException
+	{
+		JsonTokenizer tokenizer = new JsonTokenizer(in);
+		Token token = tokenizer.next();
+		if (token == Token.BEGIN_ARRAY)
+		{
+			out.write('[');
+			boolean any = false;
+			while ((token = tokenizer.next()) != Token.END_ARRAY)
+			{
+				if (any) out.write(',');
+				any = true;
+				copyValue(tokenizer, token, out, fields);
+			}
+			out.write(']');
+		}
+		else if (token != Token.END)
+		{
+			copyValue(tokenizer, token, out, fields);
+		}
+		if (tokenizer.next() != Token.END) throw new IOException("Unexpected text after JSON");
+		out.flush();
+	}
+
+	/**
+	 * Copies the value that begins with the tokenizer's current token, which is the given token. If fields isn't null
+	 * and the value is an object, only the named members are copied; otherwise the value is copied whole.
+	 */
+	public static void copyValue(JsonTokenizer tokenizer, Token token, Writer out, Set<String> fields)
+			throws IOException
+	{
+		if (fields == null || token != Token.BEGIN_OBJECT)
+		{
+			out.write(tokenizer.getText());
+			if (token != Token.BEGIN_OBJECT && token != Token.BEGIN_ARRAY) return;
+			int outer = tokenizer.getDepth() - 1;
+			while (tokenizer.getDepth() > outer)
+			{
+				tokenizer.next();
+				out.write(tokenizer.getSeparator());
+				out.write(tokenizer.getText());
+			}
+			return;
+		}
+
+		out.write('{');
+		boolean any = false;
+		while (tokenizer.next() == Token.NAME)
+		{
+			boolean keep = fields.contains(tokenizer.getString());
+			String name = tokenizer.getText();
+			Token value = tokenizer.next();
+			if (!keep)
+			{
+				tokenizer.skipValue(value);
+				continue;
+			}
+			if (any) out.write(',');
+			any = true;
+			out.write(name);
+			out.write(':');
+			copyValue(tokenizer, value, out, null);
+		}
+		out.write('}');
+	}
+
+	/**
+	 * Returns a response whose body is the JSON in trimmed to the fields. Content-Length no longer applies.
+	 */
+	private static BufferedResponse trimmed(StatusLine statusLine, Header[] headers, InputStream in,
+			Set<String> fields) throws IOException
+	{
+		CountingInputStream counted = new CountingInputStream(in);
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		Writer out = new OutputStreamWriter(body, StandardCharsets.UTF_8);
+		project(new InputStreamReader(counted, StandardCharsets.UTF_8), out, fields);
+
+		List<Header> kept = new ArrayList<>();
+		for (Header h : headers)
+		{
+			if (!h.getName().equalsIgnoreCase("Content-Length")) kept.add(h);
+		}
+		projected.increment();
+		bytesIn.add(counted.getByteCount());
+		bytesOut.add(body.size());
+		return new BufferedResponse(statusLine, kept.toArray(new Header[kept.size()]), body.toByteArray());
+	}
+
+	/**
+	 * Reports whether a response with the status and Content-Type header has a body that can be trimmed
+	 */
+	private static boolean isJson(int status, Header contentType)
+	{
+		return status == HttpStatus.SC_OK && contentType != null
+				&& contentType.getValue().toLowerCase().startsWith("application/json");
+	}
+
+	/**
+	 * Returns the number of buffered bodies trimmed, and their bytes before and after. Aggregated pages are trimmed as
+	 * they are relayed, and aren't counted.
+	 */
+	public static Map<String, Number> getStats()
+	{
+		Map<String, Number> stats = new LinkedHashMap<>();
+		stats.put("projected", projected.sum());
+		stats.put("bytesIn", bytesIn.sum());
+		stats.put("bytesOut", bytesOut.sum());
+		return stats;
+	}
+}
@@ -0,0 +1,343 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.webresources.DirResourceSet;
+import org.apache.catalina.webresources.StandardRoot;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.tomcat.util.descriptor.web.ApplicationParameter;
+import org.apache.tomcat.util.scan.StandardJarScanner;
+
+/**
+ * Compares the relay modes end to end. For each mode the proxy webapp is started in an embedded Tomcat, pointed at a
+ * local stand-in for Canvas that answers every request after a fixed delay, and sent assignment listings with a fixed
+ * number of requests in flight. The blocking mode runs on platformThreads container threads, the way the proxy is
+ * deployed today, and the async and virtual modes on containerThreads of them, since their container threads only
+ * hand requests off. The upstream pool and limiter are sized to the concurrency so that only the threading model limits either mode.
+ *
+ * Prints throughput and latency percentiles for each mode, followed by where the mean latency went: waiting for a
+ * container thread (client latency less the time the proxy's metrics saw), waiting in the proxy for the upstream
+ * response, and the rest. The most requests the stand-in saw at once shows how many relays each mode really ran.
+ *
+ * Usage: RelayBenchmark [requests [concurrency [delayMillis [platformThreads [containerThreads]]]]]
+ *
+ * Run it from the proxy directory, with the compiled classes in a directory (they are mounted as WEB-INF/classes) and
+ * the jars in WEB-INF/lib plus Tomcat's lib directory on the classpath. The virtual mode needs Java 21 and is skipped
+ * on earlier runtimes.
+ */
+public class RelayBenchmark
+{
+	/**
+	 * The body returned by the slow upstream, about the size of a page of assignments
+	 */
+	private static final byte[] BODY = new byte[16 * 1024];
+
+	/**
+	 * Numbers the course of every request, so that none are cached or coalesced
+	 */
+	private static final AtomicInteger courses = new AtomicInteger();
+
+	/**
+	 * Requests in flight at the stand-in, and the most seen at once
+	 */
+	private static final AtomicInteger upstreamInFlight = new AtomicInteger();
+	private static final AtomicInteger upstreamPeak = new AtomicInteger();
+
+	/**
+	 * Keeps the root logger, which is quietened so that only failures interrupt the report, from being collected
+	 */
+	private static final Logger rootLogger = Logger.getLogger("");
+
+	public static void main(String[] args) throws Exception
+	{
+		int requests = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+		int concurrency = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+		int delayMillis = (args.length > 2) ? Integer.parseInt(args[2]) : 200;
+		int platformThreads = (args.length > 3) ? Integer.parseInt(args[3]) : 200;
+		int containerThreads = (args.length > 4) ? Integer.parseInt(args[4]) : 16;
+		Arrays.fill(BODY, (byte) ' ');
+		rootLogger.setLevel(Level.SEVERE);
+
+		Tomcat upstream = startUpstream(delayMillis);
+		System.setProperty("cpm.canvas.protocol", "http");
+		System.setProperty("cpm.canvas.host", "localhost");
+		System.setProperty("cpm.canvas.port", Integer.toString(upstream.getConnector().getLocalPort()));
+
+		// The load generator's own pool, with a connection for every request in flight
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(concurrency);
+		connectionManager.setDefaultMaxPerRoute(concurrency);
+		String authorization = "Bearer " + Encryption.encrypt("benchmark-token");
+		try (CloseableHttpClient client = HttpClients.custom().setConnectionManager(connectionManager)
+				.disableContentCompression().build())
+		{
+			System.out.println("requests=" + requests + " concurrency=" + concurrency + " delayMillis=" + delayMillis
+					+ " platformThreads=" + platformThreads + " containerThreads=" + containerThreads + " cpus="
+					+ Runtime.getRuntime().availableProcessors());
+
+			run(Dispatch.BLOCKING, platformThreads, client, authorization, requests, concurrency, delayMillis);
+			run(Dispatch.ASYNC, containerThreads, client, authorization, requests, concurrency, delayMillis);
+
+			if (Dispatch.newVirtualThreadExecutor() == null)
+			{
+				System.out.println(Dispatch.VIRTUAL + ": skipped, virtual threads need Java 21 or later");
+			}
+			else
+			{
+				run(Dispatch.VIRTUAL, containerThreads, client, authorization, requests, concurrency, delayMillis);
+			}
+		}
+		finally
+		{
+			upstream.stop();
+		}
+	}
+
+	/**
+	 * Starts the proxy in the given mode with the given number of container threads, warms it up, and reports on the
+	 * requests.
+	 */
+	private static void run(String mode, int threads, CloseableHttpClient client, String authorization, int requests,
+			int concurrency, int delayMillis) throws Exception
+	{
+		Tomcat proxy = startProxy(mode, threads, concurrency);
+		try
+		{
+			String url = "http://localhost:" + proxy.getConnector().getLocalPort() + "/api/v1/courses/";
+
+			// Open the connections and warm up the JIT before measuring
+			load(client, url, authorization, concurrency * 2, concurrency, null);
+
+			double[] before = getMeans(client, url);
+			upstreamPeak.set(0);
+			long start = System.nanoTime();
+			long[] latencies = new long[requests];
+			int failures = load(client, url, authorization, requests, concurrency, latencies);
+			long elapsed = System.nanoTime() - start;
+			double[] after = getMeans(client, url);
+
+			Arrays.sort(latencies);
+			double mean = Arrays.stream(latencies).average().orElse(0) / 1e6;
+			double servlet = (after[0] - before[0]) / (after[2] - before[2]) * 1000;
+			double waiting = (after[1] - before[1]) / (after[2] - before[2]) * 1000;
+			System.out.printf("%s (%d container threads): %.1f req/s  p50=%d ms  p99=%d ms  max=%d ms  failures=%d%n",
+					mode, threads, requests / (elapsed / 1e9), percentile(latencies, 0.50),
+					percentile(latencies, 0.99), latencies[requests - 1] / 1000000, failures);
+			System.out.printf("  mean %.0f ms = %.0f queued for a container thread + %.0f waiting for Canvas "
+					+ "(%d of them its delay) + %.0f relaying; Canvas saw at most %d at once%n", mean,
+					mean - servlet, waiting, delayMillis, servlet - waiting, upstreamPeak.get());
+		}
+		finally
+		{
+			proxy.stop();
+		}
+	}
+
+	/**
+	 * Sends the requests to the proxy from concurrency threads, each sending its next request when the last one is
+	 * answered, and records their latencies if latencies isn't null. Returns the number that failed.
+	 */
+	private static int load(CloseableHttpClient client, String url, String authorization, int requests,
+			int concurrency, long[] latencies) throws InterruptedException
+	{
+		AtomicInteger next = new AtomicInteger();
+		AtomicInteger failures = new AtomicInteger();
+		Thread[] threads = new Thread[concurrency];
+		for (int t = 0; t < concurrency; t++)
+		{
+			threads[t] = new Thread(() ->
+			{
+				int index;
+				while ((index = next.getAndIncrement()) < requests)
+				{
+					long start = System.nanoTime();
+					HttpGet request = new HttpGet(url + courses.incrementAndGet() + "/assignments");
+					request.addHeader("Authorization", authorization);
+					try (CloseableHttpResponse response = client.execute(request);
+							InputStream in = response.getEntity().getContent())
+					{
+						byte[] buffer = new byte[4096];
+						while (in.read(buffer) != -1)
+						{
+						}
+						if (response.getStatusLine().getStatusCode() != 200) failures.incrementAndGet();
+					}
+					catch (IOException e)
+					{
+						failures.incrementAndGet();
+					}
+					if (latencies != null) latencies[index] = System.nanoTime() - start;
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		return failures.get();
+	}
+
+	/**
+	 * Returns the total seconds the proxy's metrics saw requests take, the total seconds of that spent waiting for
+	 * Canvas, and the number of requests.
+	 */
+	private static double[] getMeans(CloseableHttpClient client, String url) throws IOException
+	{
+		double[] sums = new double[3];
+		String metrics;
+		try (CloseableHttpResponse response = client.execute(new HttpGet(url.replace("/api/v1/courses/", "/metrics"))))
+		{
+			metrics = IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8);
+		}
+		for (String line : metrics.split("\n"))
+		{
+			if (!line.startsWith("proxy_request_duration_seconds_")) continue;
+			double value = Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1));
+			if (line.startsWith("proxy_request_duration_seconds_sum") && line.contains("phase=\"total\""))
+			{
+				sums[0] += value;
+			}
+			else if (line.startsWith("proxy_request_duration_seconds_sum") && line.contains("phase=\"upstream\""))
+			{
+				sums[1] += value;
+			}
+			else if (line.startsWith("proxy_request_duration_seconds_count") && line.contains("phase=\"total\""))
+			{
+				sums[2] += value;
+			}
+		}
+		return sums;
+	}
+
+	/**
+	 * Starts the proxy webapp in the given relay mode with the given number of container threads. Its context
+	 * parameters are overridden so that the upstream pool and limiter admit concurrency calls, and nothing is cached.
+	 */
+	private static Tomcat startProxy(String mode, int threads, int concurrency) throws Exception
+	{
+		Tomcat tomcat = newTomcat(threads);
+		tomcat.setAddDefaultWebXmlToWebapp(false);
+		Context context = tomcat.addWebapp("", new File("WebContent").getAbsolutePath());
+		StandardRoot resources = new StandardRoot(context);
+		File classes = new File(RelayBenchmark.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+		resources.addPreResources(new DirResourceSet(resources, "/WEB-INF/classes", classes.getAbsolutePath(), "/"));
+		context.setResources(resources);
+		((StandardJarScanner) context.getJarScanner()).setScanClassPath(false);
+
+		setParameter(context, "relay.mode", mode);
+		setParameter(context, "upstream.maxTotal", concurrency);
+		setParameter(context, "upstream.maxPerRoute", concurrency);
+		setParameter(context, "limiter.upstreamLimit", concurrency);
+		setParameter(context, "limiter.userLimit", concurrency);
+		setParameter(context, "cache.defaultTtlSeconds", 0);
+		setParameter(context, "cache.ttlSeconds", "");
+		tomcat.start();
+		return tomcat;
+	}
+
+	/**
+	 * Starts the stand-in for Canvas. It answers asynchronously from a timer, so that it never runs out of threads
+	 * itself however many requests are waiting out the delay.
+	 */
+	private static Tomcat startUpstream(int delayMillis) throws Exception
+	{
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable ->
+		{
+			Thread thread = new Thread(runnable, "canvas-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		Tomcat tomcat = newTomcat(4);
+		Context context = tomcat.addContext("", null);
+		Wrapper wrapper = Tomcat.addServlet(context, "canvas", new HttpServlet()
+		{
+			private static final long serialVersionUID = 1L;
+
+			protected void doGet(HttpServletRequest req, HttpServletResponse rsp)
+			{
+				upstreamPeak.accumulateAndGet(upstreamInFlight.incrementAndGet(), Math::max);
+				AsyncContext async = req.startAsync();
+				timer.schedule(() ->
+				{
+					upstreamInFlight.decrementAndGet();
+					try
+					{
+						rsp.setContentType("application/json");
+						rsp.setContentLength(BODY.length);
+						rsp.getOutputStream().write(BODY);
+					}
+					catch (IOException e)
+					{
+					}
+					async.complete();
+				}, delayMillis, TimeUnit.MILLISECONDS);
+			}
+		});
+		wrapper.setAsyncSupported(true);
+		context.addServletMappingDecoded("/*", "canvas");
+		tomcat.start();
+		return tomcat;
+	}
+
+	/**
+	 * Returns a Tomcat on an ephemeral port with the given number of container threads, which keeps its connections
+	 * open and queues connections it can't yet serve.
+	 */
+	private static Tomcat newTomcat(int threads) throws IOException
+	{
+		Tomcat tomcat = new Tomcat();
+		tomcat.setBaseDir(Files.createTempDirectory("relay-benchmark").toString());
+		tomcat.setPort(0);
+		tomcat.setSilent(true);
+		tomcat.getConnector().setProperty("maxThreads", Integer.toString(threads));
+		tomcat.getConnector().setProperty("maxKeepAliveRequests", "-1");
+		tomcat.getConnector().setProperty("acceptCount", "10000");
+		return tomcat;
+	}
+
+	/**
+	 * Sets the context parameter, replacing its value in web.xml.
+	 */
+	private static void setParameter(Context context, String name, Object value)
+	{
+		ApplicationParameter parameter = new ApplicationParameter();
+		parameter.setName(name);
+		parameter.setValue(value.toString());
+		parameter.setOverride(false);
+		context.addApplicationParameter(parameter);
+	}
+
+	/**
+	 * Returns the given percentile, in milliseconds, of the sorted latencies.
+	 */
+	private static long percentile(long[] sorted, double p)
+	{
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, index)] / 1000000;
+	}
+}
@@ -3,24 +3,25 @@ package utils;
 import java.util.regex.Pattern;
 
 /**
- * Constants used for contacting the remote Canvas server.
+ * Constants used for contacting the remote Canvas server. The cpm.canvas.protocol, cpm.canvas.host and cpm.canvas.port
+ * system properties replace the defaults, so that the proxy can be run against a local stand-in (see RelayBenchmark).
  */
 class RemoteServer
 {
 	/**
 	 * Protocol of Canvas server
 	 */
-	static final String OUTGOING_PROTOCOL = "https";
+	static final String OUTGOING_PROTOCOL = System.getProperty("cpm.canvas.protocol", "https");
 	
 	/**
 	 * Domain name of Canvas server
 	 */
-	static final String OUTGOING_HOST = "utah.instructure.com";
+	static final String OUTGOING_HOST = System.getProperty("cpm.canvas.host", "utah.instructure.com");
 	
 	/**
 	 * Port (if any) of Canvas server
 	 */
-	static final Integer OUTGOING_PORT = null;
+	static final Integer OUTGOING_PORT = Integer.getInteger("cpm.canvas.port");
 
 	/**
 	 * Protocol/domain/port of Canvas server
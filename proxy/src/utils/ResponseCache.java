@@ -0,0 +1,476 @@
+package utils;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * Bounded LRU cache of Canvas responses to allowlisted GET requests. Entries are keyed by path, query string and a
+ * hash of the decrypted bearer token, so one user's responses are never served to another. Each route has its own
+ * time to live; once it passes, the entry is revalidated with Canvas using its ETag or Last-Modified header. Expired
+ * entries stay in the cache until the LRU policy evicts them, and are served with a Warning header if Canvas fails or
+ * its circuit is open.
+ */
+public class ResponseCache
+{
+	/**
+	 * A cached response and its freshness
+	 */
+	public static class Entry
+	{
+		/**
+		 * The cached response
+		 */
+		final BufferedResponse response;
+
+		/**
+		 * When the entry stops being fresh, in milliseconds since the epoch
+		 */
+		volatile long expires;
+
+		/**
+		 * When the response was last received or revalidated, in milliseconds since the epoch
+		 */
+		volatile long received = System.currentTimeMillis();
+
+		Entry(BufferedResponse response, long expires)
+		{
+			this.response = response;
+			this.expires = expires;
+		}
+
+		/**
+		 * Returns the cached response
+		 */
+		public BufferedResponse getResponse()
+		{
+			return response;
+		}
+	}
+
+	/**
+	 * Maximum bytes of memory that cached responses may use
+	 */
+	private static long maxBytes;
+
+	/**
+	 * Largest response that will be cached
+	 */
+	private static long maxEntryBytes;
+
+	/**
+	 * Time to live of routes that have none of their own
+	 */
+	private static long defaultTtlMillis;
+
+	/**
+	 * Time to live of each route with one of its own
+	 */
+	private static final Map<String, Long> ttlMillis = new HashMap<>();
+
+	/**
+	 * Entries in least to most recently used order. Guarded by its own monitor, which is never held during I/O.
+	 */
+	private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+	/**
+	 * Bytes of memory used by entries
+	 */
+	private static long bytes;
+
+	/**
+	 * Counters reported by the status servlet
+	 */
+	private static final LongAdder hits = new LongAdder();
+	private static final LongAdder misses = new LongAdder();
+	private static final LongAdder revalidations = new LongAdder();
+	private static final LongAdder evictions = new LongAdder();
+	private static final LongAdder staleServed = new LongAdder();
+
+	/**
+	 * Reads the cache.* context parameters. The cache.ttlSeconds parameter is a list of route=seconds pairs, and a
+	 * route with a ttl of 0 isn't cached.
+	 */
+	public static synchronized void start(ServletContext context)
+	{
+		maxBytes = Config.getLong(context, "cache.maxBytes", 64L * 1024 * 1024);
+		maxEntryBytes = Config.getLong(context, "cache.maxEntryBytes", 1024 * 1024);
+		defaultTtlMillis = Config.getLong(context, "cache.defaultTtlSeconds", 60) * 1000;
+		ttlMillis.clear();
+		for (String pair : Config.getString(context, "cache.ttlSeconds", "").split("[,\\s]+"))
+		{
+			int index = pair.indexOf('=');
+			if (index < 0) continue;
+			try
+			{
+				ttlMillis.put(pair.substring(0, index), Long.parseLong(pair.substring(index + 1)) * 1000);
+			}
+			catch (NumberFormatException e)
+			{
+				context.log("Ignoring malformed cache.ttlSeconds entry " + pair);
+			}
+		}
+		clear();
+	}
+
+	/**
+	 * Discards every entry
+	 */
+	public static void clear()
+	{
+		synchronized (entries)
+		{
+			entries.clear();
+			bytes = 0;
+		}
+	}
+
+	/**
+	 * Returns the response to the incoming GET request, whose key comes from Utils.getRequestKey. A fresh cached
+	 * response is returned as is. Otherwise Canvas is asked, conditionally if a stale entry has validators, and a
+	 * successful answer is cached if the route has a non-zero ttl. Identical concurrent requests share one upstream
+	 * call.
+	 */
+	public static BufferedResponse get(String key, HttpServletRequest incomingRequest)
+			throws ServletException, IOException
+	{
+		long ttl = getTtlMillis(incomingRequest);
+		if (ttl <= 0)
+		{
+			return Coalescer.execute(key, () -> fetch(new Miss(key, null, 0, incomingRequest)));
+		}
+
+		Entry entry = lookup(key);
+		if (entry != null && entry.expires > System.currentTimeMillis())
+		{
+			hits.increment();
+			return entry.response;
+		}
+		misses.increment();
+		return Coalescer.execute(key, () -> fetch(new Miss(key, entry, ttl, incomingRequest)));
+	}
+
+	/**
+	 * Returns the response to the incoming request as composed by fetch from its own calls to Canvas, as for the
+	 * proxy's composite endpoints. Caching, coalescing and stale serving are as above, except that there are no
+	 * validators, so an expired entry is simply composed again.
+	 */
+	public static BufferedResponse get(String key, HttpServletRequest incomingRequest, Coalescer.Fetch fetch)
+			throws ServletException, IOException
+	{
+		long ttl = getTtlMillis(incomingRequest);
+		Entry entry = (ttl > 0) ? lookup(key) : null;
+		if (entry != null && entry.expires > System.currentTimeMillis())
+		{
+			hits.increment();
+			return entry.response;
+		}
+		if (ttl > 0) misses.increment();
+		return Coalescer.execute(key, () -> compose(key, entry, ttl, fetch));
+	}
+
+	/**
+	 * Returns the fresh cached response to the incoming request, or null if there is none, for responses that the
+	 * caller streams from Canvas itself and offers to the cache as it goes
+	 */
+	public static BufferedResponse getFresh(String key, HttpServletRequest incomingRequest)
+	{
+		long ttl = getTtlMillis(incomingRequest);
+		if (ttl <= 0) return null;
+		Entry entry = lookup(key);
+		if (entry != null && entry.expires > System.currentTimeMillis())
+		{
+			hits.increment();
+			return entry.response;
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * Returns the cached response, marked as stale, for when Canvas can't be asked, or null if there is none
+	 */
+	public static BufferedResponse getStale(String key)
+	{
+		Entry entry = lookup(key);
+		return (entry == null) ? null : serveStale(entry);
+	}
+
+	/**
+	 * Caches a response that the caller composed itself, if the route of the incoming request has a non-zero ttl and
+	 * the response may be cached
+	 */
+	public static void offer(String key, HttpServletRequest incomingRequest, BufferedResponse response)
+	{
+		long ttl = getTtlMillis(incomingRequest);
+		if (ttl > 0 && isCacheable(response)) put(key, new Entry(response, System.currentTimeMillis() + ttl));
+	}
+
+	/**
+	 * Returns the miss for the incoming GET request, for a caller that has found no fresh response with getFresh and
+	 * executes the request itself rather than through get. Identical requests aren't coalesced.
+	 */
+	public static Miss miss(String key, HttpServletRequest incomingRequest) throws ServletException
+	{
+		long ttl = getTtlMillis(incomingRequest);
+		return new Miss(key, (ttl > 0) ? lookup(key) : null, ttl, incomingRequest);
+	}
+
+	/**
+	 * Runs fetch, serving the stale entry if there is one and fetch fails, and caches the answer if ttl is positive.
+	 */
+	private static BufferedResponse compose(String key, Entry entry, long ttl, Coalescer.Fetch fetch)
+			throws ServletException, IOException
+	{
+		BufferedResponse response;
+		try
+		{
+			response = fetch.fetch();
+		}
+		catch (IOException e)
+		{
+			if (entry == null) throw e;
+			return serveStale(entry);
+		}
+
+		if (entry != null && response.getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR)
+		{
+			return serveStale(entry);
+		}
+		if (ttl > 0 && isCacheable(response))
+		{
+			put(key, new Entry(response, System.currentTimeMillis() + ttl));
+		}
+		return response;
+	}
+
+	/**
+	 * Asks Canvas for the missing response, retrying it if Canvas has a transient failure.
+	 */
+	private static BufferedResponse fetch(Miss miss) throws ServletException, IOException
+	{
+		try (CloseableHttpResponse outgoingResponse = GetPolicy.execute(miss.outgoingRequest, miss.route))
+		{
+			return miss.settle(outgoingResponse);
+		}
+		catch (IOException e)
+		{
+			return miss.fail(e);
+		}
+	}
+
+	/**
+	 * A response to a GET request that must be asked of Canvas, revalidating the stale entry if there is one, and
+	 * cached if its route has a positive ttl
+	 */
+	public static class Miss
+	{
+		private final String key;
+		private final Entry entry;
+		private final long ttl;
+		private final String route;
+		private final Set<String> fields;
+		private final HttpGet outgoingRequest;
+
+		private Miss(String key, Entry entry, long ttl, HttpServletRequest incomingRequest) throws ServletException
+		{
+			this.key = key;
+			this.entry = entry;
+			this.ttl = ttl;
+			this.route = Utils.getRoute(incomingRequest);
+			this.fields = Projection.getFields(incomingRequest);
+
+			// Compose the request. Bodies are cached uncompressed and trimmed to any requested fields, and the
+			// client's own validators don't apply to the cached entry.
+			outgoingRequest = new HttpGet();
+			Utils.mapRequestURL(outgoingRequest, incomingRequest);
+			Utils.filterRequestHeaders(outgoingRequest, incomingRequest);
+			outgoingRequest.removeHeaders("Accept-Encoding");
+			outgoingRequest.removeHeaders("If-None-Match");
+			outgoingRequest.removeHeaders("If-Modified-Since");
+			if (entry != null)
+			{
+				String etag = entry.response.getHeader("ETag");
+				String lastModified = entry.response.getHeader("Last-Modified");
+				if (etag != null) outgoingRequest.addHeader("If-None-Match", etag);
+				if (lastModified != null) outgoingRequest.addHeader("If-Modified-Since", lastModified);
+			}
+		}
+
+		/**
+		 * Returns the request to send to Canvas
+		 */
+		public HttpGet getRequest()
+		{
+			return outgoingRequest;
+		}
+
+		/**
+		 * Returns the route of the incoming request (see Utils.getRoute)
+		 */
+		public String getRoute()
+		{
+			return route;
+		}
+
+		/**
+		 * Reads Canvas's answer and returns the response to send: the stale entry, fresh again, if Canvas says it
+		 * is unchanged, or marked as stale if Canvas failed, and otherwise the answer, which is cached if it may be.
+		 */
+		public BufferedResponse settle(HttpResponse outgoingResponse) throws IOException
+		{
+			BufferedResponse response = Projection.read(outgoingResponse, fields);
+
+			// An unchanged entry is fresh again
+			if (entry != null && response.getStatusCode() == HttpStatus.SC_NOT_MODIFIED)
+			{
+				revalidations.increment();
+				entry.expires = System.currentTimeMillis() + ttl;
+				entry.received = System.currentTimeMillis();
+				return entry.response;
+			}
+
+			// So is a stale entry better than a server error
+			if (entry != null && response.getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR)
+			{
+				return serveStale(entry);
+			}
+
+			if (ttl > 0 && isCacheable(response))
+			{
+				put(key, new Entry(response, System.currentTimeMillis() + ttl));
+			}
+			return response;
+		}
+
+		/**
+		 * Returns the stale entry, if there is one, in place of an answer from Canvas, which can't be reached or whose
+		 * circuit is open. Otherwise rethrows the failure.
+		 */
+		public BufferedResponse fail(IOException e) throws IOException
+		{
+			if (entry == null) throw e;
+			return serveStale(entry);
+		}
+	}
+
+	/**
+	 * Returns the stale entry's response marked with an Age header and a Warning that revalidation failed.
+	 */
+	private static BufferedResponse serveStale(Entry entry)
+	{
+		staleServed.increment();
+		long age = (System.currentTimeMillis() - entry.received) / 1000;
+		return entry.response.withHeaders(new BasicHeader("Age", Long.toString(age)),
+				new BasicHeader("Warning", "111 - \"Revalidation Failed\""));
+	}
+
+	/**
+	 * Discards every entry whose key passes the test, for when Canvas is known to have changed.
+	 */
+	public static void removeIf(Predicate<String> test)
+	{
+		synchronized (entries)
+		{
+			Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+			while (iterator.hasNext())
+			{
+				Map.Entry<String, Entry> entry = iterator.next();
+				if (test.test(entry.getKey()))
+				{
+					bytes -= entry.getValue().response.getSize();
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the entry with the given key, fresh or not, or null if there is none.
+	 */
+	public static Entry lookup(String key)
+	{
+		synchronized (entries)
+		{
+			return entries.get(key);
+		}
+	}
+
+	/**
+	 * Adds the entry, then evicts least recently used entries until the cache fits in maxBytes.
+	 */
+	private static void put(String key, Entry entry)
+	{
+		synchronized (entries)
+		{
+			Entry old = entries.put(key, entry);
+			if (old != null) bytes -= old.response.getSize();
+			bytes += entry.response.getSize();
+
+			Iterator<Entry> iterator = entries.values().iterator();
+			while (bytes > maxBytes && iterator.hasNext())
+			{
+				bytes -= iterator.next().response.getSize();
+				iterator.remove();
+				evictions.increment();
+			}
+		}
+	}
+
+	/**
+	 * Reports whether the response may be cached.
+	 */
+	private static boolean isCacheable(BufferedResponse response)
+	{
+		String cacheControl = response.getHeader("Cache-Control");
+		return response.getStatusCode() == HttpStatus.SC_OK && response.getSize() <= maxEntryBytes
+				&& (cacheControl == null || !cacheControl.toLowerCase().contains("no-store"));
+	}
+
+	/**
+	 * Returns the time to live of the route of the incoming request.
+	 */
+	private static long getTtlMillis(HttpServletRequest incomingRequest)
+	{
+		Long ttl = ttlMillis.get(Utils.getRoute(incomingRequest));
+		return (ttl == null) ? defaultTtlMillis : ttl;
+	}
+
+	/**
+	 * Returns hits, misses, hit ratio, revalidations, evictions, stale responses served, entry count and memory use.
+	 */
+	public static Map<String, Number> getStats()
+	{
+		Map<String, Number> stats = new LinkedHashMap<>();
+		long hitCount = hits.sum();
+		long missCount = misses.sum();
+		stats.put("hits", hitCount);
+		stats.put("misses", missCount);
+		stats.put("hitRatio", (hitCount + missCount == 0) ? 0.0 : (double) hitCount / (hitCount + missCount));
+		stats.put("revalidations", revalidations.sum());
+		stats.put("evictions", evictions.sum());
+		stats.put("staleServed", staleServed.sum());
+		synchronized (entries)
+		{
+			stats.put("entries", entries.size());
+			stats.put("bytes", bytes);
+		}
+		stats.put("maxBytes", maxBytes);
+		return stats;
+	}
+}
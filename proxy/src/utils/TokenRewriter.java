@@ -0,0 +1,65 @@
+package utils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+import javax.servlet.ServletException;
+
+import org.json.simple.JSONValue;
+
+import utils.JsonTokenizer.Token;
+
+/**
+ * Copies a JSON body from a reader to a writer, replacing the string values of chosen members of the top-level object
+ * and passing everything else through untouched. Nested objects, such as the user object in a token response, are
+ * copied as they are even if they have members with the chosen names.
+ */
+public class TokenRewriter
+{
+	/**
+	 * Decides the replacement for a string member of the top-level object
+	 */
+	public interface Rewrite
+	{
+		/**
+		 * Returns the replacement for the named member's value, or null to leave it alone.
+		 */
+		String rewrite(String name, String value) throws ServletException;
+	}
+
+	/**
+	 * Copies the JSON in to out, applying the rewrite to each string member of the top-level object.
+	 */
+	public static void rewrite(Reader in, Writer out, Rewrite rewrite) throws IOException, ServletException
+	{
+		JsonTokenizer tokenizer = new JsonTokenizer(in);
+		String name = null;
+		Token token;
+		while ((token = tokenizer.next()) != Token.END)
+		{
+			out.write(tokenizer.getSeparator());
+			String replacement = null;
+			if (token == Token.NAME && tokenizer.getDepth() == 1)
+			{
+				name = tokenizer.getString();
+			}
+			else if (token == Token.STRING && tokenizer.getDepth() == 1 && name != null)
+			{
+				replacement = rewrite.rewrite(name, tokenizer.getString());
+			}
+			if (token != Token.NAME) name = null;
+			out.write((replacement == null) ? tokenizer.getText() : quote(replacement));
+		}
+		out.write(tokenizer.getSeparator());
+		out.flush();
+	}
+
+	/**
+	 * Returns s as a JSON string, escaped the way json-simple escapes it.
+	 */
+	public static String quote(String s)
+	{
+		return "\"" + JSONValue.escape(s) + "\"";
+	}
+}
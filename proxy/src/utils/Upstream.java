@@ -0,0 +1,216 @@
+package utils;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.execchain.RequestAbortedException;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Owns the pooled, keep-alive HTTP client that all of the servlets use to contact Canvas. The client is created when
+ * the web application starts and closed when it stops.
+ */
+public class Upstream
+{
+	/**
+	 * Maximum number of pooled connections
+	 */
+	private static int maxTotal;
+
+	/**
+	 * Maximum number of pooled connections to a single host
+	 */
+	private static int maxPerRoute;
+
+	/**
+	 * Seconds after which an idle pooled connection is closed
+	 */
+	private static long idleSeconds;
+
+	/**
+	 * Seconds a connection is kept alive when Canvas doesn't say otherwise
+	 */
+	private static long keepAliveSeconds;
+
+	/**
+	 * Pool shared by all requests
+	 */
+	private static PoolingHttpClientConnectionManager connectionManager;
+
+	/**
+	 * Client shared by all requests
+	 */
+	private static CloseableHttpClient client;
+
+	/**
+	 * Creates the pool and the client using the upstream.* context parameters.
+	 */
+	public static synchronized void start(ServletContext context)
+	{
+		maxTotal = Config.getInt(context, "upstream.maxTotal", 200);
+		maxPerRoute = Config.getInt(context, "upstream.maxPerRoute", 200);
+		idleSeconds = Config.getLong(context, "upstream.idleSeconds", 30);
+		keepAliveSeconds = Config.getLong(context, "upstream.keepAliveSeconds", 60);
+
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxTotal);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+		connectionManager.setValidateAfterInactivity(Config.getInt(context, "upstream.validateAfterMillis", 2000));
+
+		// Bound every wait on Canvas, since async relays have no container timeout to fall back on
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(Config.getInt(context, "upstream.connectTimeoutMillis", 10000))
+				.setSocketTimeout(Config.getInt(context, "upstream.socketTimeoutMillis", 120000))
+				.setConnectionRequestTimeout(Config.getInt(context, "upstream.leaseTimeoutMillis", 30000))
+				.build();
+
+		// Like the minimal clients this replaces, the shared client must not follow redirects, decode bodies, retry,
+		// or keep cookies and auth state, since the same connections carry requests for every student.
+		client = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.setKeepAliveStrategy(keepAliveStrategy)
+				.evictExpiredConnections()
+				.evictIdleConnections(idleSeconds, TimeUnit.SECONDS)
+				.disableRedirectHandling()
+				.disableContentCompression()
+				.disableAutomaticRetries()
+				.disableCookieManagement()
+				.disableAuthCaching()
+				.disableConnectionState()
+				.build();
+
+		context.log("Upstream pool started: maxTotal=" + maxTotal + " maxPerRoute=" + maxPerRoute + " idleSeconds="
+				+ idleSeconds + " keepAliveSeconds=" + keepAliveSeconds);
+	}
+
+	/**
+	 * Closes the client, which also closes the pooled connections.
+	 */
+	public static synchronized void stop(ServletContext context)
+	{
+		try
+		{
+			if (client != null) client.close();
+		}
+		catch (Exception e)
+		{
+			context.log("Problem closing upstream pool", e);
+		}
+		client = null;
+		connectionManager = null;
+	}
+
+	/**
+	 * Returns the shared client. It must not be closed by the caller.
+	 */
+	public static CloseableHttpClient getClient()
+	{
+		return client;
+	}
+
+	/**
+	 * Executes the outgoing request with the shared client once Limiter allows it. A request that is shed gets a 503
+	 * response with a Retry-After header instead, which the servlets relay like any other response.
+	 */
+	public static CloseableHttpResponse execute(HttpRequestBase outgoingRequest) throws IOException
+	{
+		Limiter.Permit permit = Limiter.acquire(getUser(outgoingRequest));
+		if (permit == null) return new ShedResponse();
+
+		CloseableHttpResponse outgoingResponse;
+		try
+		{
+			outgoingResponse = client.execute(outgoingRequest);
+		}
+		catch (RequestAbortedException e)
+		{
+			// Abandoned by the proxy itself, which says nothing about Canvas
+			permit.cancel();
+			throw e;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			permit.release(null);
+			throw e;
+		}
+		permit.release(outgoingResponse);
+		return outgoingResponse;
+	}
+
+	/**
+	 * Reports whether the response is the one execute returns for a request that Limiter shed, which never reached
+	 * Canvas.
+	 */
+	public static boolean isShed(HttpResponse outgoingResponse)
+	{
+		return outgoingResponse instanceof ShedResponse;
+	}
+
+	/**
+	 * Returns the hash of the bearer token of the outgoing request, whose authorization header has already been
+	 * decrypted, or null if it has none.
+	 */
+	static String getUser(HttpRequestBase outgoingRequest)
+	{
+		Header authorization = outgoingRequest.getFirstHeader("Authorization");
+		if (authorization == null || !authorization.getValue().startsWith("Bearer ")) return null;
+		String token = authorization.getValue().substring("Bearer ".length());
+		return token.isEmpty() ? null : Utils.hashToken(token);
+	}
+
+	/**
+	 * Returns the leased, pending (waiting for a lease), available and maximum connection counts of the pool.
+	 */
+	public static PoolStats getPoolStats()
+	{
+		PoolingHttpClientConnectionManager manager = connectionManager;
+		return (manager == null) ? new PoolStats(0, 0, 0, 0) : manager.getTotalStats();
+	}
+
+	/**
+	 * Uses the keep-alive period announced by Canvas, capped at keepAliveSeconds.
+	 */
+	static final ConnectionKeepAliveStrategy keepAliveStrategy = new ConnectionKeepAliveStrategy()
+	{
+		@Override
+		public long getKeepAliveDuration(HttpResponse response, HttpContext context)
+		{
+			long millis = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+			long max = keepAliveSeconds * 1000;
+			return (millis <= 0 || millis > max) ? max : millis;
+		}
+	};
+
+	/**
+	 * Response to a request that Limiter shed
+	 */
+	static class ShedResponse extends BasicHttpResponse implements CloseableHttpResponse
+	{
+		ShedResponse()
+		{
+			super(HttpVersion.HTTP_1_1, HttpStatus.SC_SERVICE_UNAVAILABLE, "Service Unavailable");
+			addHeader("Retry-After", "1");
+		}
+
+		public void close()
+		{
+		}
+	}
+}
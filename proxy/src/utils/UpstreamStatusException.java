@@ -0,0 +1,29 @@
+package utils;
+
+import java.io.IOException;
+
+/**
+ * Thrown when Canvas answers a call that the proxy makes on its own behalf with an unexpected status
+ */
+@SuppressWarnings("serial")
+public class UpstreamStatusException extends IOException
+{
+	/**
+	 * The status Canvas answered with
+	 */
+	private final int status;
+
+	public UpstreamStatusException(int status)
+	{
+		super("Canvas answered " + status);
+		this.status = status;
+	}
+
+	/**
+	 * Returns the status Canvas answered with
+	 */
+	public int getStatus()
+	{
+		return status;
+	}
+}
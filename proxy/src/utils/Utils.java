@@ -6,12 +6,17 @@ import static utils.RemoteServer.*;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
-import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -21,15 +26,13 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.EntityTemplate;
 import org.apache.http.entity.InputStreamEntity;
-import org.apache.http.entity.StringEntity;
-import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
 
 /**
  * Variety of utilities that support the proxy
@@ -37,6 +40,27 @@ import org.json.simple.JSONValue;
 @SuppressWarnings("serial")
 public class Utils extends HttpServlet
 {
+	/**
+	 * Matches a numeric path segment
+	 */
+	private final static Pattern ID_PATTERN = Pattern.compile("/\\d+(?=/|$)");
+
+	/**
+	 * Matches the by_path segment, after which a path names a folder
+	 */
+	private final static Pattern BY_PATH_PATTERN = Pattern.compile("/by_path(?=/|$)");
+
+	/**
+	 * Request attribute holding the decrypted bearer token, or an empty string if there is none, so that it is
+	 * decrypted once per incoming request however many times it is needed
+	 */
+	private final static String TOKEN_ATTRIBUTE = "utils.Utils.bearerToken";
+
+	/**
+	 * Longest a relayed body is held back from its receiver while more of it is arriving (see relay)
+	 */
+	private final static long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
 	/**
 	 * Reports whether the path info of the incoming request meets the pattern
 	 */
@@ -48,6 +72,84 @@ public class Utils extends HttpServlet
 	}
 	
 	
+	/**
+	 * Returns the route of the incoming request: its path with numeric IDs replaced by {id} and anything after
+	 * by_path dropped, such as /api/v1/courses/{id}/folders/by_path.
+	 */
+	public static String getRoute(HttpServletRequest incomingRequest)
+	{
+		String pathInfo = incomingRequest.getPathInfo();
+		return getRoute(incomingRequest.getServletPath() + ((pathInfo == null) ? "" : pathInfo));
+	}
+
+	/**
+	 * Returns the route of a Canvas path, as above.
+	 */
+	public static String getRoute(String path)
+	{
+		Matcher m = BY_PATH_PATTERN.matcher(path);
+		if (m.find()) path = path.substring(0, m.end());
+		return ID_PATTERN.matcher(path).replaceAll("/{id}");
+	}
+
+	/**
+	 * Returns a key that identifies the user, method, path and query of the incoming request, or null if the request
+	 * has no bearer token or asks for only part of a response. Requests with the same key get the same response.
+	 */
+	public static String getRequestKey(HttpServletRequest incomingRequest) throws ServletException
+	{
+		if (incomingRequest.getHeader("range") != null) return null;
+		String token = getBearerToken(incomingRequest);
+		if (token == null) return null;
+
+		String pathInfo = incomingRequest.getPathInfo();
+		String query = incomingRequest.getQueryString();
+		return hashToken(token) + " " + incomingRequest.getMethod() + " " + incomingRequest.getServletPath()
+				+ ((pathInfo == null) ? "" : pathInfo) + ((query == null) ? "" : "?" + query);
+	}
+
+	/**
+	 * Returns the decrypted bearer token of the incoming request, or null if it doesn't have one. The token is kept in
+	 * a request attribute, which the requests that wrap the incoming request share.
+	 */
+	public static String getBearerToken(HttpServletRequest incomingRequest) throws ServletException
+	{
+		Object kept = incomingRequest.getAttribute(TOKEN_ATTRIBUTE);
+		if (kept instanceof String) return ((String) kept).isEmpty() ? null : (String) kept;
+
+		String value = incomingRequest.getHeader("authorization");
+		String token = "";
+		if (value != null && value.trim().toLowerCase().startsWith("bearer"))
+		{
+			token = decryptAuthorization(value).substring("Bearer ".length());
+		}
+		incomingRequest.setAttribute(TOKEN_ATTRIBUTE, token);
+		return token.isEmpty() ? null : token;
+	}
+
+	/**
+	 * Returns a hex SHA-256 hash of the token, which identifies a user without keeping the token itself.
+	 */
+	public static String hashToken(String token)
+	{
+		return Hex.encodeHexString(sha256(token.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Returns the SHA-256 hash of the bytes.
+	 */
+	public static byte[] sha256(byte[] bytes)
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256").digest(bytes);
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
 	/**
 	 * Uses the URL of the incoming request to set the URL of the outgoing request.
 	 */
@@ -57,7 +159,7 @@ public class Utils extends HttpServlet
 		try
 		{
 			String query = incomingRequest.getQueryString();
-			StringBuffer path = new StringBuffer();
+			StringBuilder path = new StringBuilder();
 			path.append(incomingRequest.getServletPath());
 			String pathinfo = incomingRequest.getPathInfo();
 			if (pathinfo != null) path.append(pathinfo);
@@ -80,8 +182,10 @@ public class Utils extends HttpServlet
 	}
 
 	/**
-	 * Copies the headers from the incoming request into the outgoing request, except that x-forwarded-* and content-length 
-	 * headers are ignored, the host header is set to OUTGOING_HOST, and any authorization header is decrypted.
+	 * Copies the headers from the incoming request into the outgoing request, except that x-forwarded-*, content-length 
+	 * and hop-by-hop connection headers are ignored, the host header is set to OUTGOING_HOST, and any authorization 
+	 * header is decrypted.  Connection headers are dropped so that a client can't close a pooled upstream connection.
+	 * A client that prefers CBOR is sent it by the proxy, so Canvas is asked for JSON.
 	 */
 	public static void filterRequestHeaders(HttpRequestBase outgoingRequest, HttpServletRequest incomingRequest)
 			throws ServletException
@@ -93,71 +197,110 @@ public class Utils extends HttpServlet
 			String header = headers.nextElement();
 			if (header.toLowerCase().startsWith("x-forwarded-")) continue;
 			if (header.toLowerCase().equals("content-length")) continue;
+			if (header.toLowerCase().equals("connection")) continue;
+			if (header.toLowerCase().equals("keep-alive")) continue;
 			Enumeration<String> values = incomingRequest.getHeaders(header);
 			while (values.hasMoreElements())
 			{
 				String value = values.nextElement();
 				if (header.toLowerCase().equals("host")) value = OUTGOING_HOST;
-				if (header.toLowerCase().equals("authorization")) value = decryptAuthorization(value);
+				if (header.toLowerCase().equals("authorization") && value.trim().toLowerCase().startsWith("bearer"))
+				{
+					String token = getBearerToken(incomingRequest);
+					value = "Bearer " + ((token == null) ? "" : token);
+				}
+				if (header.toLowerCase().equals("accept") && Cbor.prefersCbor(value)) value = "application/json";
 				outgoingRequest.addHeader(header, value);
 			}
 		}
 	}
 
 	/**
-	 * Copies the body of the incoming request as the body of the outgoing request.
+	 * Streams the body of the incoming request as the body of the outgoing request, keeping its length if it has one.
 	 */
 	public static void copyRequestBody(HttpPost outgoingRequest, HttpServletRequest incomingRequest) throws IOException
 	{
-		outgoingRequest.setEntity(new InputStreamEntity(incomingRequest.getInputStream()));
+		outgoingRequest.setEntity(
+				new InputStreamEntity(incomingRequest.getInputStream(), incomingRequest.getContentLengthLong())
+				{
+					@Override
+					public void writeTo(OutputStream outputStream) throws IOException
+					{
+						try (InputStream inputStream = getContent())
+						{
+							relay(inputStream, outputStream);
+						}
+					}
+				});
 	}
 
 	/**
-	 * Converts the body of the incoming request into JSON, makes some changes, and uses the result as the body
-	 * of the outgoing request.  Specifically, a (meta) client_secret is replaced with the real client secret and
-	 * refresh/access tokens are decrypted.
+	 * Streams the JSON body of the incoming request into the body of the outgoing request, making some changes on the
+	 * way.  Specifically, a (meta) client_secret is replaced with the real client secret and refresh/access tokens are
+	 * decrypted.  Everything else is passed through untouched.
 	 */
-	@SuppressWarnings("unchecked")
 	public static void mapRequestBody(HttpPost outgoingRequest, HttpServletRequest incomingRequest)
 			throws IOException, ServletException
 	{
-		// Obtain the incoming JSON
-		JSONObject params = (JSONObject) JSONValue.parse(incomingRequest.getReader());
+		Reader reader = incomingRequest.getReader();
+		outgoingRequest.setEntity(new EntityTemplate(outputStream ->
+		{
+			try
+			{
+				TokenRewriter.rewrite(reader, new OutputStreamWriter(outputStream, StandardCharsets.ISO_8859_1),
+						Utils::mapRequestToken);
+			}
+			catch (ServletException e)
+			{
+				throw new IOException(e);
+			}
+		}));
+	}
 
+	/**
+	 * Returns the replacement for a top-level member of a token request, or null to leave it alone.
+	 */
+	private static String mapRequestToken(String name, String value) throws ServletException
+	{
 		// If the meta client secret is present, replace it with the real client secret.
 		// Otherwise, leave it alone which will lead to an authorization failure later.
-		if (META_CLIENT_SECRET.equals(params.get("client_secret")))
+		if (name.equals("client_secret"))
 		{
-			params.put("client_secret", CLIENT_SECRET);
+			return META_CLIENT_SECRET.equals(value) ? CLIENT_SECRET : null;
 		}
 
-		// If there are incoming refresh or access tokens, decrypt them
-		decryptToken(params, "refresh_token");
-		decryptToken(params, "access_token");
-
-		// Store the params into the outgoingRequest body
-		try
+		// If there are incoming refresh or access tokens, decrypt them.  If decryption fails substitute an empty string.
+		if (name.equals("refresh_token") || name.equals("access_token"))
 		{
-			outgoingRequest.setEntity(new StringEntity(params.toString()));
-		}
-		catch (UnsupportedEncodingException e)
-		{
-			throw new ServletException(e.getMessage());
+			String decrypted = Encryption.decrypt(value);
+			return (decrypted == null) ? "" : decrypted;
 		}
+		return null;
 	}
 
 	/**
-	 * Copies the headers from the outgoing response into the incoming response, except that the content-length and
-	 * transfer-encoding headers are ignored and the Link header is modified to make it work with the proxy.
+	 * Copies the headers from the outgoing response into the incoming response, for a body that will be relayed
+	 * unchanged.  See the four-argument version.
 	 */
 	public static void filterResponseHeaders(HttpResponse outgoingResponse, HttpServletResponse incomingResponse,
 			HttpServletRequest incomingRequest)
+	{
+		filterResponseHeaders(outgoingResponse, incomingResponse, incomingRequest, true);
+	}
+
+	/**
+	 * Copies the headers from the outgoing response into the incoming response, except that the transfer-encoding
+	 * header is ignored and the Link header is modified to make it work with the proxy.  The content-length header is
+	 * kept only if the body will be relayed unchanged, which also covers 206 responses to Range requests.
+	 */
+	public static void filterResponseHeaders(HttpResponse outgoingResponse, HttpServletResponse incomingResponse,
+			HttpServletRequest incomingRequest, boolean unchangedBody)
 	{
 		String incomingPrefix = getIncomingPrefix(incomingRequest);
 		incomingResponse.setStatus(outgoingResponse.getStatusLine().getStatusCode());
 		for (Header h : outgoingResponse.getAllHeaders())
 		{
-			if (h.getName().toLowerCase().equals("content-length")) continue;
+			if (h.getName().toLowerCase().equals("content-length") && !unchangedBody) continue;
 			if (h.getName().toLowerCase().equals("transfer-encoding")) continue;
 			incomingResponse.addHeader(h.getName(),
 					adjustLink(h.getName(), h.getValue(), incomingPrefix));
@@ -165,21 +308,53 @@ public class Utils extends HttpServlet
 	}
 
 	/**
-	 * Copies the body of the outgoing response as the body of the incoming response.
+	 * Copies the body of the outgoing response, if it has one, as the body of the incoming response.
 	 */
 	public static void copyResponseBody(HttpResponse outgoingResponse, HttpServletResponse incomingResponse)
 			throws IOException
 	{
+		if (outgoingResponse.getEntity() == null) return;
 		try (InputStream inputStream = outgoingResponse.getEntity().getContent();
 				ServletOutputStream outputStream = incomingResponse.getOutputStream())
 		{
-			IOUtils.copy(inputStream, outputStream);
+			relay(inputStream, outputStream);
+		}
+	}
+
+	/**
+	 * Copies the input stream to the output stream through a pooled buffer, so memory use per relay is constant however
+	 * large the body.  What has been copied is flushed at the end, and before a read that would block once
+	 * FLUSH_INTERVAL_NANOS have passed since the last flush, so the receiver of a slow body sees it as it arrives
+	 * without a fast one being flushed, and its compression cut short, at every pause between packets.  Neither
+	 * stream is closed.
+	 */
+	public static void relay(InputStream inputStream, OutputStream outputStream) throws IOException
+	{
+		byte[] buffer = BufferPool.borrow();
+		try
+		{
+			long flushed = System.nanoTime();
+			int n;
+			while ((n = inputStream.read(buffer)) != -1)
+			{
+				outputStream.write(buffer, 0, n);
+				if (inputStream.available() == 0 && System.nanoTime() - flushed >= FLUSH_INTERVAL_NANOS)
+				{
+					outputStream.flush();
+					flushed = System.nanoTime();
+				}
+			}
+			outputStream.flush();
+		}
+		finally
+		{
+			BufferPool.release(buffer);
 		}
 	}
 
 	/**
-	 * Converts the body of the outgoing response into JSON, makes some changes, and uses the result as the body
-	 * of the incoming response.  Specifically, any refresh/access tokens are encrypted.
+	 * Streams the JSON body of the outgoing response into the body of the incoming response, making some changes on
+	 * the way.  Specifically, any refresh/access tokens are encrypted.  Everything else is passed through untouched.
 	 */
 	public static void mapResponseBody(HttpResponse outgoingResponse, HttpServletResponse incomingResponse)
 			throws IOException, ServletException
@@ -187,17 +362,28 @@ public class Utils extends HttpServlet
 		try (InputStream inputStream = outgoingResponse.getEntity().getContent();
 				Reader reader = new InputStreamReader(inputStream))
 		{
-			JSONObject params = (JSONObject) JSONValue.parse(reader);
-			encryptToken(params, "refresh_token");
-			encryptToken(params, "access_token");
-			params.writeJSONString(incomingResponse.getWriter());
+			TokenRewriter.rewrite(reader, incomingResponse.getWriter(), Utils::mapResponseToken);
 		}
 	}
-	
+
+	/**
+	 * Returns the replacement for a top-level member of a token response, or null to leave it alone.
+	 */
+	private static String mapResponseToken(String name, String value) throws ServletException
+	{
+		// Encrypt refresh and access tokens.  If encryption fails substitute an empty string.
+		if (name.equals("refresh_token") || name.equals("access_token"))
+		{
+			String encrypted = Encryption.encrypt(value);
+			return (encrypted == null) ? "" : encrypted;
+		}
+		return null;
+	}
+
 	/**
 	 * Uses the incoming request to compose the prefix of the outgoing response's URL.
 	 */
-	private static String getIncomingPrefix(HttpServletRequest incomingRequest)
+	public static String getIncomingPrefix(HttpServletRequest incomingRequest)
 	{
 		String context = incomingRequest.getServletContext().getContextPath();
 		
@@ -212,7 +398,7 @@ public class Utils extends HttpServlet
 		{
 			// Assume https unless the host is localhost
 			String protocol = (host.startsWith("localhost")) ? "http" : "https";
-			StringBuffer url = new StringBuffer(protocol).append("://").append(host).append(context);
+			StringBuilder url = new StringBuilder(protocol).append("://").append(host).append(context);
 			return url.toString();
 		}
 		else
@@ -246,7 +432,7 @@ public class Utils extends HttpServlet
 	/**
 	 * Adjusts the Link header so that the URLs it contains work properly with the proxy.
 	 */
-	private static String adjustLink(String name, String value, String incomingPrefix)
+	public static String adjustLink(String name, String value, String incomingPrefix)
 	{
 		if (name.toLowerCase().equals("link"))
 		{
@@ -264,32 +450,4 @@ public class Utils extends HttpServlet
 			return value;
 		}
 	}
-
-	/**
-	 * Encrypts params[tokenName] if present.  If encryption fails substitutes an empty string.
-	 */
-	@SuppressWarnings("unchecked")
-	private static void encryptToken(JSONObject params, String tokenName) throws ServletException
-	{
-		String token = (String) params.get(tokenName);
-		if (token != null)
-		{
-			String encrypted = Encryption.encrypt(token);
-			params.put(tokenName, (encrypted == null) ? "" : encrypted);
-		}
-	}
-	
-	/**
-	 * Decrypts params[tokenName] if present.  If decryption fails substitutes an empty string.
-	 */
-	@SuppressWarnings("unchecked")
-	private static void decryptToken(JSONObject params, String tokenName) throws ServletException
-	{
-		String token = (String) params.get(tokenName);
-		if (token != null)
-		{
-			String decrypted = Encryption.decrypt(token);
-			params.put(tokenName, (decrypted == null) ? "" : decrypted);
-		}
-	}
 }
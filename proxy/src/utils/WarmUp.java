@@ -0,0 +1,260 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.ServletContext;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Fills the blob store with a course's files shortly before each of its assignments unlocks or falls due, when a
+ * whole lab section is about to download them at once. The course is read with a service token kept in a local
+ * file. Only the blob store is warmed, because it is the one cache that users share: every other cache is keyed by
+ * the user's own token.
+ */
+public class WarmUp
+{
+	/**
+	 * File extensions of the files the plugin downloads: configuration and format files, projects and jars
+	 */
+	private final static String[] EXTENSIONS = { ".xml", ".zip", ".jar" };
+
+	/**
+	 * Assignment members whose times are worth warming up for
+	 */
+	private final static String[] TIMES = { "unlock_at", "due_at" };
+
+	/**
+	 * Runs the planning and the warm-ups, one at a time, so that Canvas sees no burst from the proxy itself
+	 */
+	private static ScheduledExecutorService scheduler;
+
+	/**
+	 * Service token that reads the courses
+	 */
+	private static String token;
+
+	/**
+	 * IDs of the courses to warm up
+	 */
+	private static List<String> courses = new ArrayList<>();
+
+	/**
+	 * How long before an assignment time a warm-up runs
+	 */
+	private static long leadMillis;
+
+	/**
+	 * How often assignment times are read again
+	 */
+	private static long refreshMillis;
+
+	/**
+	 * Used for logging
+	 */
+	private static ServletContext context;
+
+	/**
+	 * Warm-ups already scheduled, as course@millis
+	 */
+	private static final Set<String> planned = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Counters reported by the status servlet
+	 */
+	private static final LongAdder warmUps = new LongAdder();
+	private static final LongAdder blobs = new LongAdder();
+	private static final LongAdder failures = new LongAdder();
+
+	/**
+	 * Reads the warmup.* context parameters and, if courses and a token are configured, starts planning warm-ups.
+	 */
+	public static synchronized void start(ServletContext context)
+	{
+		WarmUp.context = context;
+		leadMillis = Config.getLong(context, "warmup.leadMinutes", 10) * 60 * 1000;
+		refreshMillis = Math.max(1, Config.getLong(context, "warmup.refreshMinutes", 60)) * 60 * 1000;
+		courses = new ArrayList<>();
+		for (String course : Config.getString(context, "warmup.courses", "").split("[,\\s]+"))
+		{
+			if (!course.isEmpty()) courses.add(course);
+		}
+		if (courses.isEmpty()) return;
+
+		String tokenFile = Config.getString(context, "warmup.tokenFile", "");
+		try
+		{
+			token = new String(Files.readAllBytes(Paths.get(tokenFile)), StandardCharsets.UTF_8).trim();
+		}
+		catch (IOException | RuntimeException e)
+		{
+			context.log("Warm-up disabled: can't read warmup.tokenFile " + tokenFile);
+			return;
+		}
+		if (!BlobStore.isEnabled())
+		{
+			context.log("Warm-up disabled: it fills the blob store, which isn't enabled");
+			return;
+		}
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(r ->
+		{
+			Thread thread = new Thread(r, "proxy-warmup");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(WarmUp::plan, 0, refreshMillis, TimeUnit.MILLISECONDS);
+		context.log("Warm-up started: courses=" + courses + " leadMinutes=" + leadMillis / 60000);
+	}
+
+	/**
+	 * Stops planning and cancels the planned warm-ups.
+	 */
+	public static synchronized void stop(ServletContext context)
+	{
+		if (scheduler != null) scheduler.shutdownNow();
+		scheduler = null;
+		planned.clear();
+	}
+
+	/**
+	 * Schedules a warm-up of each course before each of its assignment times that falls before the next planning
+	 */
+	private static void plan()
+	{
+		long now = System.currentTimeMillis();
+		planned.removeIf(key -> Long.parseLong(key.substring(key.indexOf('@') + 1)) < now);
+		for (String course : courses)
+		{
+			JSONArray assignments;
+			try
+			{
+				assignments = CanvasApi.getArray("/api/v1/courses/" + course + "/assignments?per_page=100", token);
+			}
+			catch (IOException e)
+			{
+				failures.increment();
+				context.log("Warm-up can't read assignments of course " + course + ": " + e.getMessage());
+				continue;
+			}
+
+			for (Object assignment : assignments)
+			{
+				for (String name : TIMES)
+				{
+					long time = parseTime(((JSONObject) assignment).get(name));
+					if (time <= now || time - leadMillis > now + refreshMillis) continue;
+					if (planned.add(course + "@" + time))
+					{
+						scheduler.schedule(() -> warm(course), Math.max(0, time - leadMillis - now),
+								TimeUnit.MILLISECONDS);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stores every file in the course's manifest that the plugin might download
+	 */
+	private static void warm(String course)
+	{
+		warmUps.increment();
+		try
+		{
+			JSONObject manifest = Manifests.build(course, token, null);
+			List<JSONObject> files = new ArrayList<>();
+			files.add((JSONObject) manifest.get("config"));
+			collectFiles((JSONObject) manifest.get("root"), files);
+			for (JSONObject file : files)
+			{
+				if (!isDownloaded((String) file.get("filename"))) continue;
+				Object id = file.get("id");
+				Object updatedAt = file.get("updated_at");
+				Object size = file.get("size");
+				String url = (String) file.get("url");
+				if (BlobStore.getQuery(id, updatedAt, size, url) == null) continue;
+				BlobStore.open(String.valueOf(id), String.valueOf(updatedAt), ((Number) size).longValue(), url);
+				blobs.increment();
+			}
+		}
+		catch (IOException | RuntimeException e)
+		{
+			failures.increment();
+			context.log("Warm-up of course " + course + " failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Adds the files in the folder and its subfolders to files
+	 */
+	private static void collectFiles(JSONObject folder, List<JSONObject> files)
+	{
+		for (Object file : (JSONArray) folder.get("files"))
+		{
+			files.add((JSONObject) file);
+		}
+		for (Object subfolder : (JSONArray) folder.get("folders"))
+		{
+			collectFiles((JSONObject) subfolder, files);
+		}
+	}
+
+	/**
+	 * Reports whether the plugin might download a file with the name
+	 */
+	private static boolean isDownloaded(String filename)
+	{
+		if (filename == null) return false;
+		for (String extension : EXTENSIONS)
+		{
+			if (filename.toLowerCase().endsWith(extension)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a Canvas time in milliseconds since the epoch, or 0 if there isn't one.
+	 */
+	private static long parseTime(Object time)
+	{
+		if (!(time instanceof String)) return 0;
+		try
+		{
+			return Instant.parse((String) time).toEpochMilli();
+		}
+		catch (DateTimeParseException e)
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * Returns the number of warm-ups run, blobs stored or confirmed by them, failures, and warm-ups scheduled.
+	 */
+	public static Map<String, Number> getStats()
+	{
+		Map<String, Number> stats = new LinkedHashMap<>();
+		stats.put("warmUps", warmUps.sum());
+		stats.put("blobs", blobs.sum());
+		stats.put("failures", failures.sum());
+		stats.put("planned", planned.size());
+		return stats;
+	}
+}